@@ -0,0 +1,184 @@
+/******************************************************************************
+ *  Compilation:  javac FormFindingFixture.java
+ *  Execution:    java FormFindingFixture [grid size]
+ *  Dependencies: BranchNodeGraph.java  ForceDensityMethod.java  FormFindingWorkspace.java
+ *                SparseCholeskySolver.java  GridMultigridSolver.java  toxi.geom.Vec3D
+ *
+ *  The stages of evaluating the Force Density Method on a square grid
+ *  pinned at its four corners, each set up so it can be repeated on its
+ *  own: building the graph, assembling Dn and Df, factoring Dn, solving
+ *  for the three coordinates, computing lengths and forces, a whole
+ *  evalFD for a new load and for new force densities, and reading the
+ *  state back. JMH only accepts benchmarks in a named package, which
+ *  cannot refer to classes of the default package, so the stages are
+ *  handed to benchmarks.FormFindingBenchmark as Suppliers by name.
+ *
+ *  @author Alexandros Haridis | Digital Structures, MIT
+ ******************************************************************************/
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import toxi.geom.Vec3D;
+
+public class FormFindingFixture {
+
+    private FormFindingFixture() { }
+
+    /**
+     *  prepares the stages for an m x m grid
+     *  @return the stages by name, in pipeline order
+     */
+    public static Map<String, Supplier<Object>> stages(int m) {
+        int V = m * m;
+        final BranchNodeGraph bng = new BranchNodeGraph(V, new int[] { 0, m - 1, m * (m - 1), V - 1 });
+        for (int y = 0; y < m; y++)
+            for (int x = 0; x < m - 1; x++) bng.addBranch(y * m + x, y * m + x + 1);
+        for (int x = 0; x < m; x++)
+            for (int y = 0; y < m - 1; y++) bng.addBranch(y * m + x, (y + 1) * m + x);
+        bng.build();
+
+        final double[] xp = new double[V], yp = new double[V], zp = new double[V];
+        for (int j = 0; j < m; j++) {
+            for (int i = 0; i < m; i++) {
+                xp[j * m + i] = i * 100;
+                yp[j * m + i] = j * 100;
+            }
+        }
+
+        // the stages of evalFD, on a workspace of their own
+        final BranchIncidence inc = bng.incidence();
+        final FormFindingWorkspace ws = new FormFindingWorkspace(inc);
+        final double[] q = new double[bng.B()];
+        Arrays.fill(q, 1.0);
+        int n = bng.unknown();
+        int[] node = bng.getNodeOfColumn();
+        for (int c = 0; c < V; c++) {
+            ws.x[c] = xp[node[c]];
+            ws.y[c] = yp[node[c]];
+            ws.z[c] = zp[node[c]];
+        }
+        for (int c = n; c < V; c++) {
+            ws.Xf[3 * (c - n)]     = ws.x[c];
+            ws.Xf[3 * (c - n) + 1] = ws.y[c];
+            ws.Xf[3 * (c - n) + 2] = ws.z[c];
+        }
+        inc.assembleDn(q, ws.Dn.values());
+        inc.assembleDf(q, ws.Df.values());
+        final SparseCholeskySolver cholesky = new SparseCholeskySolver();
+        cholesky.factor(ws.Dn);
+        final GridMultigridSolver multigrid = new GridMultigridSolver(bng);
+        multigrid.factor(ws.Dn);
+
+        // right-hand side P - Df Xf for a unit downward load
+        final double[] rhs = new double[3 * n];
+        ws.Df.times(ws.Xf, rhs, 3);
+        for (int i = 0; i < 3 * n; i++) rhs[i] = ((i % 3 == 2) ? -1 : 0) - rhs[i];
+        cholesky.solve(rhs, ws.Xn, 3);
+        for (int i = 0; i < n; i++) {
+            ws.x[i] = ws.Xn[3 * i];
+            ws.y[i] = ws.Xn[3 * i + 1];
+            ws.z[i] = ws.Xn[3 * i + 2];
+        }
+
+        // whole evaluations, alternating between two loads or two sets of densities
+        final ForceDensityMethod fdm = new ForceDensityMethod(bng);
+        fdm.setBoundaryConditions(xp, yp, zp);
+        fdm.evalFD();
+        final Vec3D[] loads = { new Vec3D(0, 0, -1), new Vec3D(0.5f, 0, -1) };
+        final double[][] densities = { q.clone(), q.clone() };
+        Arrays.fill(densities[1], 1.5);
+        final FloatBuffer positions = FloatBuffer.allocate(3 * V);
+
+        Map<String, Supplier<Object>> stages = new LinkedHashMap<String, Supplier<Object>>();
+        stages.put("build", new Supplier<Object>() {
+            public Object get() {
+                bng.build();
+                return bng.incidence();
+            }
+        });
+        stages.put("assemble", new Supplier<Object>() {
+            public Object get() {
+                inc.assembleDn(q, ws.Dn.values());
+                inc.assembleDf(q, ws.Df.values());
+                return ws.Dn;
+            }
+        });
+        stages.put("factor", new Supplier<Object>() {
+            public Object get() {
+                cholesky.factor(ws.Dn);
+                return cholesky;
+            }
+        });
+        stages.put("solve", new Supplier<Object>() {
+            public Object get() {
+                cholesky.solve(rhs, ws.Xn, 3);
+                return ws.Xn;
+            }
+        });
+        stages.put("solveMultigrid", new Supplier<Object>() {
+            public Object get() {
+                Arrays.fill(ws.lambda, 0.0);
+                multigrid.solve(rhs, ws.lambda, 3);
+                return ws.lambda;
+            }
+        });
+        stages.put("lengthsAndForces", new Supplier<Object>() {
+            public Object get() {
+                return inc.lengthsAndForces(ws.x, ws.y, ws.z, q, ws.L, ws.F);
+            }
+        });
+        stages.put("evalFDNewLoad", new Supplier<Object>() {
+            int k = 0;
+            public Object get() {
+                fdm.setLoad(loads[k ^= 1]);
+                fdm.evalFD();
+                return fdm.getSigmaFL();
+            }
+        });
+        stages.put("evalFDNewDensities", new Supplier<Object>() {
+            int k = 0;
+            public Object get() {
+                fdm.setForceDensities(densities[k ^= 1]);
+                fdm.evalFD();
+                return fdm.getSigmaFL();
+            }
+        });
+        stages.put("getState", new Supplier<Object>() {
+            public Object get() {
+                return fdm.getState();
+            }
+        });
+        stages.put("getPositions", new Supplier<Object>() {
+            public Object get() {
+                fdm.getPositions(positions);
+                return positions;
+            }
+        });
+        return stages;
+    }
+
+    /**
+     *  Test client and sample execution: a rough timing of every stage,
+     *  without the care JMH takes against warm-up and dead code.
+     */
+    public static void main(String[] args) {
+        int m = (args.length > 0) ? Integer.parseInt(args[0]) : 100;
+        Map<String, Supplier<Object>> stages = stages(m);
+        for (Map.Entry<String, Supplier<Object>> e : stages.entrySet()) {
+            Supplier<Object> stage = e.getValue();
+            int reps = 0;
+            long t0 = System.nanoTime(), t1 = t0;
+            while (t1 - t0 < 500000000L) {
+                stage.get();
+                reps++;
+                t1 = System.nanoTime();
+            }
+            System.out.println(String.format("%-20s %12.1f us", e.getKey(), (t1 - t0) / 1e3 / reps));
+        }
+    }
+
+}
@@ -0,0 +1,80 @@
+/******************************************************************************
+ *  Compilation:  mvn package
+ *  Execution:    java -jar benchmarks/target/benchmarks.jar [JMH options]
+ *  Dependencies: FormFindingFixture.java  org.openjdk.jmh
+ *
+ *  JMH benchmarks of the stages of the Force Density Method on square
+ *  grids from 6 x 6 to 300 x 300 nodes: BranchNodeGraph.build(), the
+ *  assembly of Dn and Df, the factorization and the solve of evalFD, by
+ *  sparse Cholesky and by multigrid, the lengths and forces computed
+ *  afterwards, whole evaluations and reading the state back. The stages
+ *  are prepared by FormFindingFixture in the default package, looked up
+ *  by name once per trial. For a quick run of a few sizes:
+ *
+ *      java -jar benchmarks/target/benchmarks.jar -p size=6,30 -wi 2 -i 3
+ *
+ *  @author Alexandros Haridis | Digital Structures, MIT
+ ******************************************************************************/
+
+package benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormFindingBenchmark {
+
+    @Param({ "6", "30", "100", "300" })
+    public int size;                          // nodes along each side of the grid
+
+    private Supplier<Object> build, assemble, factor, solve, solveMultigrid, lengthsAndForces;
+    private Supplier<Object> evalFDNewLoad, evalFDNewDensities, getState, getPositions;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void setup() throws ReflectiveOperationException {
+        Map<String, Supplier<Object>> stages = (Map<String, Supplier<Object>>)
+                Class.forName("FormFindingFixture").getMethod("stages", int.class).invoke(null, size);
+        build              = stages.get("build");
+        assemble           = stages.get("assemble");
+        factor             = stages.get("factor");
+        solve              = stages.get("solve");
+        solveMultigrid     = stages.get("solveMultigrid");
+        lengthsAndForces   = stages.get("lengthsAndForces");
+        evalFDNewLoad      = stages.get("evalFDNewLoad");
+        evalFDNewDensities = stages.get("evalFDNewDensities");
+        getState           = stages.get("getState");
+        getPositions       = stages.get("getPositions");
+    }
+
+    @Benchmark public Object build()              {  return build.get();               }
+    @Benchmark public Object assemble()           {  return assemble.get();            }
+    @Benchmark public Object factor()             {  return factor.get();              }
+    @Benchmark public Object solve()              {  return solve.get();               }
+    @Benchmark public Object solveMultigrid()     {  return solveMultigrid.get();      }
+    @Benchmark public Object lengthsAndForces()   {  return lengthsAndForces.get();    }
+    @Benchmark public Object evalFDNewLoad()      {  return evalFDNewLoad.get();       }
+    @Benchmark public Object evalFDNewDensities() {  return evalFDNewDensities.get();  }
+    @Benchmark public Object getState()           {  return getState.get();            }
+    @Benchmark public Object getPositions()       {  return getPositions.get();        }
+
+}
@@ -0,0 +1,126 @@
+/******************************************************************************
+ *  Compilation:  javac BackgroundFormFinder.java
+ *  Execution:    java BackgroundFormFinder
+ *  Dependencies: ForceDensityMethod.java  FormFindingResult.java
+ *                toxi.geom.Vec3D
+ *
+ *  Runs the evaluations of one ForceDensityMethod on a background thread,
+ *  so an interactive caller such as the Processing draw loop never waits
+ *  for the solver. Loads are submitted without blocking; while a solve is
+ *  running, newer submissions replace older ones that have not started,
+ *  so a burst of slider events costs at most one solve beyond the one in
+ *  progress and the latest load is always the one solved. Every finished
+ *  solve is published as an immutable FormFindingResult through an atomic
+ *  reference, which the caller reads whenever it draws. Only the load
+ *  changes between submissions, so every solve after the first reuses the
+ *  cached factorization and costs a forward and back substitution.
+ *
+ *  The ForceDensityMethod handed in is owned by the background thread
+ *  from then on and must not be used by the caller.
+ *
+ *  @author Alexandros Haridis | Digital Structures, MIT
+ ******************************************************************************/
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import toxi.geom.Vec3D;
+
+public class BackgroundFormFinder {
+
+    private final ForceDensityMethod fdm_;    // confined to the solver thread
+    private final ExecutorService executor_;
+    private final AtomicReference<Request> pending_ = new AtomicReference<Request>();
+    private final AtomicBoolean scheduled_ = new AtomicBoolean();
+    private final AtomicReference<FormFindingResult> latest_ = new AtomicReference<FormFindingResult>();
+    private final AtomicReference<RuntimeException> failure_ = new AtomicReference<RuntimeException>();
+    private final AtomicInteger submitted_ = new AtomicInteger();
+    private final Runnable drain_;
+    private volatile long solveNanos_;        // duration of the last solve
+    private volatile long latencyNanos_;      // from submission to publication of the last result
+
+    // a load waiting to be solved, with the sequence number and time of its submission
+    private static class Request {
+        final Vec3D p;
+        final int id;
+        final long submitted;
+        Request(Vec3D p, int id, long submitted) {  this.p = p;  this.id = id;  this.submitted = submitted;  }
+    }
+
+    // background evaluation of fdm, which must not be used by the caller afterwards
+    public BackgroundFormFinder(ForceDensityMethod fdm) {
+        fdm_ = fdm;
+        executor_ = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "form-finding");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        drain_ = new Runnable() {
+            public void run() {  drain();  }
+        };
+    }
+
+    /**
+     *  requests a solve for the load p and returns at once. A request that
+     *  has not started yet is replaced by this one.
+     */
+    public void submit(Vec3D p) {
+        if (p == null) throw new RuntimeException("Load must not be null");
+        pending_.set(new Request(p, submitted_.incrementAndGet(), System.nanoTime()));
+        if (scheduled_.compareAndSet(false, true)) executor_.execute(drain_);
+    }
+
+    // solves the latest pending load until none is left
+    private void drain() {
+        while (true) {
+            Request r;
+            while ((r = pending_.getAndSet(null)) != null) {
+                try {
+                    long t0 = System.nanoTime();
+                    fdm_.setLoad(r.p);
+                    fdm_.evalFD();
+                    latest_.set(fdm_.getResult(r.id));
+                    long t1 = System.nanoTime();
+                    solveNanos_ = t1 - t0;
+                    latencyNanos_ = t1 - r.submitted;
+                    failure_.set(null);
+                } catch (RuntimeException e) {
+                    failure_.set(e);
+                }
+            }
+            scheduled_.set(false);
+
+            // a load submitted after the last check but before the flag was
+            // cleared found the drain still scheduled, so it is picked up here
+            if (pending_.get() == null || !scheduled_.compareAndSet(false, true)) return;
+        }
+    }
+
+    // @return the result of the last finished solve, or null if none has finished
+    public FormFindingResult latest() {  return latest_.get();  }
+
+    // @return the failure of the last solve, or null if it succeeded
+    public RuntimeException failure() {  return failure_.get();  }
+
+    // @return true while a submitted load has not been solved
+    public boolean busy() {  return scheduled_.get();  }
+
+    // @return the number of loads submitted, results carry it as their id when solved
+    public int submitted() {  return submitted_.get();  }
+
+    // @return the time the last solve took, in nanoseconds
+    public long solveNanos() {  return solveNanos_;  }
+
+    // @return the time from submission to publication of the last result, in nanoseconds
+    public long latencyNanos() {  return latencyNanos_;  }
+
+    // stops the solver thread, a solve in progress is finished first
+    public void shutdown() {  executor_.shutdown();  }
+
+}
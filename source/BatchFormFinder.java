@@ -0,0 +1,195 @@
+/******************************************************************************
+ *  Compilation:  javac BatchFormFinder.java
+ *  Execution:    java BatchFormFinder [grid size] [cases] [threads]
+ *  Dependencies: BranchNodeGraph.java  BranchNodeTopology.java
+ *                ForceDensityMethod.java  LoadCase.java
+ *                FormFindingResult.java  LinearSolver.java  toxi.geom.Vec3D
+ *
+ *  Headless batch form-finding engine. A single immutable BranchNodeTopology
+ *  is shared without copies by a fork-join pool of workers, and a
+ *  stream of LoadCases is evaluated concurrently against it. Every worker
+ *  thread keeps its own ForceDensityMethod, and with it its own cached
+ *  factorization and solver workspace, so consecutive cases on the same
+ *  thread that share force densities only cost a forward and back
+ *  substitution. Results are handed back in completion order, and at most
+ *  a few cases per thread are in flight, so arbitrarily long streams run
+ *  in bounded memory.
+ *
+ *  @author Alexandros Haridis | Digital Structures, MIT
+ ******************************************************************************/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import toxi.geom.Vec3D;
+
+public class BatchFormFinder {
+
+    private final BranchNodeTopology top_;    // topology shared by all workers
+    private final double[] xp_, yp_, zp_;     // default node coordinates
+    private final double[] q_;                // default force densities
+    private final int threads_;               // number of worker threads
+    private final ForkJoinPool pool_;
+    private final ThreadLocal<ForceDensityMethod> workers_;
+    private volatile Supplier<LinearSolver> solverFactory_;
+
+    // batch runner over the topology top with default coordinates xp, yp, zp
+    public BatchFormFinder(BranchNodeTopology top, double[] xp, double[] yp, double[] zp, int threads) {
+        if (threads < 1) throw new RuntimeException("Number of threads must be positive");
+        top_ = top;
+        xp_ = xp.clone();
+        yp_ = yp.clone();
+        zp_ = zp.clone();
+        q_ = new double[top.B()];
+        Arrays.fill(q_, 1.0);
+        threads_ = threads;
+        pool_ = new ForkJoinPool(threads);
+        solverFactory_ = null;
+        workers_ = new ThreadLocal<ForceDensityMethod>() {
+            @Override
+            protected ForceDensityMethod initialValue() {
+                ForceDensityMethod fdm = new ForceDensityMethod(top_);
+                Supplier<LinearSolver> factory = solverFactory_;
+                if (factory != null) fdm.setSolver(factory.get());
+                return fdm;
+            }
+        };
+    }
+
+    // batch runner over the graph bng, built first if needed
+    public BatchFormFinder(BranchNodeGraph bng, double[] xp, double[] yp, double[] zp, int threads) {
+        this(bng.freeze(), xp, yp, zp, threads);
+    }
+
+    // batch runner using one worker per available processor
+    public BatchFormFinder(BranchNodeGraph bng, double[] xp, double[] yp, double[] zp) {
+        this(bng.freeze(), xp, yp, zp, Runtime.getRuntime().availableProcessors());
+    }
+
+    // set the solver each worker creates, applies to workers started afterwards
+    public void setSolverFactory(Supplier<LinearSolver> factory) {  solverFactory_ = factory;  }
+
+    // set the default force densities of cases that do not give their own
+    public void setForceDensities(double[] q) {
+        if (q.length != top_.B()) throw new RuntimeException("Expected " + top_.B() + " force densities, found " + q.length);
+        System.arraycopy(q, 0, q_, 0, q.length);
+    }
+
+    // @return the number of worker threads
+    public int threads() {  return threads_;  }
+
+    /**
+     *  evaluates a single case with the workspace of the calling thread
+     *  @return the form found for the case
+     */
+    public FormFindingResult evaluate(LoadCase lc) {
+        ForceDensityMethod fdm = workers_.get();
+        if (lc.getX() != null) fdm.setBoundaryConditions(lc.getX(), lc.getY(), lc.getZ());
+        else                   fdm.setBoundaryConditions(xp_, yp_, zp_);
+        fdm.setForceDensities(lc.getForceDensities() != null ? lc.getForceDensities() : q_);
+        if (lc.hasNodeLoads()) fdm.setLoads(lc.getLoadX(), lc.getLoadY(), lc.getLoadZ());
+        else                   fdm.setLoad(lc.getLoad());
+        fdm.evalFD();
+        return fdm.getResult(lc.id());
+    }
+
+    /**
+     *  evaluates every case of the stream concurrently and hands each result
+     *  to {@code sink} on the calling thread as soon as it is available, in order
+     *  of completion. Returns once all cases are done.
+     *  @throws RuntimeException if a case fails, remaining cases are cancelled
+     */
+    public void run(Iterator<LoadCase> cases, Consumer<FormFindingResult> sink) {
+        CompletionService<FormFindingResult> done = new ExecutorCompletionService<FormFindingResult>(pool_);
+        int maxInFlight = 2 * threads_;
+        ArrayList<Future<FormFindingResult>> inFlight = new ArrayList<Future<FormFindingResult>>(maxInFlight);
+        try {
+            while (cases.hasNext() || !inFlight.isEmpty()) {
+                while (inFlight.size() < maxInFlight && cases.hasNext()) {
+                    final LoadCase lc = cases.next();
+                    inFlight.add(done.submit(new Callable<FormFindingResult>() {
+                        public FormFindingResult call() {  return evaluate(lc);  }
+                    }));
+                }
+                Future<FormFindingResult> f = done.take();
+                inFlight.remove(f);
+                sink.accept(f.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Batch interrupted", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Load case failed: " + e.getCause(), e.getCause());
+        } finally {
+            // cases still running after a failure are not waited for
+            for (Future<FormFindingResult> f : inFlight) f.cancel(true);
+        }
+    }
+
+    // stops the worker threads, the runner can't be used afterwards
+    public void shutdown() {  pool_.shutdown();  }
+
+    /**
+     *  Test client and sample execution: random loads on a square grid
+     *  pinned at its four corners.
+     */
+    public static void main(String[] args) {
+        final int m = (args.length > 0) ? Integer.parseInt(args[0]) : 40;
+        final int cases = (args.length > 1) ? Integer.parseInt(args[1]) : 1000;
+        int threads = (args.length > 2) ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        int V = m * m;
+        BranchNodeGraph bng = new BranchNodeGraph(V, new int[] { 0, m - 1, m * (m - 1), V - 1 });
+        for (int y = 0; y < m; y++)
+            for (int x = 0; x < m - 1; x++) bng.addBranch(y * m + x, y * m + x + 1);
+        for (int x = 0; x < m; x++)
+            for (int y = 0; y < m - 1; y++) bng.addBranch(y * m + x, (y + 1) * m + x);
+        bng.build();
+
+        double[] xp = new double[V], yp = new double[V], zp = new double[V];
+        for (int j = 0; j < m; j++) {
+            for (int i = 0; i < m; i++) {
+                xp[j * m + i] = i * 100;
+                yp[j * m + i] = j * 100;
+            }
+        }
+
+        BatchFormFinder batch = new BatchFormFinder(bng, xp, yp, zp, threads);
+        final Random rnd = new Random(0);
+        Iterator<LoadCase> stream = new Iterator<LoadCase>() {
+            int next = 0;
+            public boolean hasNext() {  return next < cases;  }
+            public LoadCase next() {
+                return new LoadCase(next++, new Vec3D(rnd.nextFloat() * 10 - 5, rnd.nextFloat() * 10 - 5, -rnd.nextFloat() * 80));
+            }
+        };
+
+        final ArrayList<FormFindingResult> best = new ArrayList<FormFindingResult>();
+        long t0 = System.nanoTime();
+        batch.run(stream, new Consumer<FormFindingResult>() {
+            public void accept(FormFindingResult r) {
+                if (best.isEmpty() || r.getSigmaFL() < best.get(0).getSigmaFL()) {
+                    best.clear();
+                    best.add(r);
+                }
+            }
+        });
+        double seconds = (System.nanoTime() - t0) / 1e9;
+        batch.shutdown();
+
+        System.out.println(cases + " cases on a " + m + "x" + m + " grid with " + threads + " threads: "
+                + String.format("%.3f s, %.1f cases/s", seconds, cases / seconds));
+        System.out.println("lowest Sigma FL " + best.get(0).getSigmaFL() + " for case " + best.get(0).id());
+    }
+
+}
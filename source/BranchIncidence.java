@@ -0,0 +1,450 @@
+/******************************************************************************
+ *  Compilation:  javac BranchIncidence.java
+ *  Execution:    java BranchIncidence
+ *  Dependencies: SparseMatrix.java  Jama.Matrix
+ *
+ *  Implicit (from/to index array) form of the Branch-Node matrix <b>C</b>.
+ *  Every row of <b>C</b> holds exactly two nonzeros, +1 in the column of the
+ *  node where the branch begins and -1 in the column of the node where it
+ *  ends, so the whole matrix is kept as two int arrays of length B instead
+ *  of a dense B x N matrix. Columns are numbered as in C = [Cn Cf]: unknown
+ *  nodes first, fixed nodes after them.
+ *
+ *  The sparsity patterns of <b>Dn</b> = Cn^T Q Cn and <b>Df</b> = Cn^T Q Cf
+ *  are derived once from the branch list, together with the position each
+ *  branch writes to, so both matrices are assembled for any force density
+ *  vector q in O(B). The branches incident to each node are indexed as
+ *  well, so an edit around one node, e.g. pinning it, touches only those.
+ *
+ *  A branch that adds no entry to either pattern is appended without a
+ *  rebuild: the new incidence shares the patterns and, through the spare
+ *  capacity of its parent, the per-branch arrays, of which the parent
+ *  only reads its own first B entries. Only the first append to an
+ *  incidence takes its capacity, later ones copy. Appended branches are
+ *  searched linearly at their nodes and indexed again once more than
+ *  max(64, sqrt(B)) of them have accumulated, so an append costs
+ *  O(max(64, sqrt(B))) amortized.
+ *
+ *  @author Alexandros Haridis | Digital Structures, MIT
+ ******************************************************************************/
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class BranchIncidence {
+
+    private final int nodes_;          // number of nodes (columns of C)
+    private final int branches_;       // number of branches (rows of C)
+    private final int unknown_;        // number of unknown nodes (columns of Cn)
+
+    private final int[] from_;         // column of the +1 entry of each branch, capacity >= B
+    private final int[] to_;           // column of the -1 entry of each branch, capacity >= B
+
+    private final int[] dnPtr_, dnInd_;    // pattern of Dn, n x n
+    private final int[] dfPtr_, dfInd_;    // pattern of Df, n x f
+
+    // positions each branch contributes to, -1 where it does not
+    private final int[] slotFrom_;     // Dn(from, from)
+    private final int[] slotTo_;       // Dn(to, to)
+    private final int[] slotFromTo_;   // Dn(from, to)
+    private final int[] slotToFrom_;   // Dn(to, from)
+    private final int[] slotDf_;       // Df(unknown end, fixed end)
+
+    private final int[] adjPtr_, adjInd_;  // branches incident to each column, N x B
+    private final int indexed_;        // branches in adjPtr_ and adjInd_, the rest are searched
+
+    private final AtomicBoolean extended_ = new AtomicBoolean();  // capacity taken by an append
+
+    // incidence of the given directed branches, with nodes split into unknown and fixed
+    public BranchIncidence(int N, int[] from, int[] to, int B, int[] unknown, int[] fixed) {
+        if (unknown.length + fixed.length != N) {
+            throw new RuntimeException("Unknown and fixed nodes must partition the " + N + " nodes");
+        }
+        nodes_ = N;
+        branches_ = B;
+        unknown_ = unknown.length;
+
+        // column of each node in C = [Cn Cf]
+        int[] col = new int[N];
+        Arrays.fill(col, -1);
+        for (int k = 0; k < unknown.length; k++) col[unknown[k]] = k;
+        for (int k = 0; k < fixed.length; k++)   col[fixed[k]] = unknown_ + k;
+
+        from_ = new int[B];
+        to_   = new int[B];
+        for (int b = 0; b < B; b++) {
+            from_[b] = col[from[b]];
+            to_[b]   = col[to[b]];
+        }
+
+        int n = unknown_;
+
+        // Dn: the diagonal plus one entry per branch between two unknown nodes
+        int[] ptr = new int[n + 1];
+        for (int i = 0; i < n; i++) ptr[i + 1] = 1;
+        for (int b = 0; b < B; b++) {
+            int i = from_[b], j = to_[b];
+            if (i != j && i < n && j < n) {
+                ptr[i + 1]++;
+                ptr[j + 1]++;
+            }
+        }
+        for (int i = 0; i < n; i++) ptr[i + 1] += ptr[i];
+        int[] ind = new int[ptr[n]];
+        int[] next = Arrays.copyOf(ptr, n);
+        for (int i = 0; i < n; i++) ind[next[i]++] = i;
+        for (int b = 0; b < B; b++) {
+            int i = from_[b], j = to_[b];
+            if (i != j && i < n && j < n) {
+                ind[next[i]++] = j;
+                ind[next[j]++] = i;
+            }
+        }
+        dnPtr_ = ptr;
+        dnInd_ = compress(n, ptr, ind);
+
+        // Df: one entry per branch between an unknown and a fixed node
+        ptr = new int[n + 1];
+        for (int b = 0; b < B; b++) {
+            int i = from_[b], j = to_[b];
+            if (i < n && j >= n)      ptr[i + 1]++;
+            else if (j < n && i >= n) ptr[j + 1]++;
+        }
+        for (int i = 0; i < n; i++) ptr[i + 1] += ptr[i];
+        ind = new int[ptr[n]];
+        next = Arrays.copyOf(ptr, n);
+        for (int b = 0; b < B; b++) {
+            int i = from_[b], j = to_[b];
+            if (i < n && j >= n)      ind[next[i]++] = j - n;
+            else if (j < n && i >= n) ind[next[j]++] = i - n;
+        }
+        dfPtr_ = ptr;
+        dfInd_ = compress(n, ptr, ind);
+
+        // locate the entries of every branch once
+        slotFrom_   = new int[B];
+        slotTo_     = new int[B];
+        slotFromTo_ = new int[B];
+        slotToFrom_ = new int[B];
+        slotDf_     = new int[B];
+        for (int b = 0; b < B; b++) {
+            int i = from_[b], j = to_[b];
+            boolean loop = (i == j);
+            slotFrom_[b]   = (!loop && i < n) ? SparseMatrix.find(dnPtr_, dnInd_, i, i) : -1;
+            slotTo_[b]     = (!loop && j < n) ? SparseMatrix.find(dnPtr_, dnInd_, j, j) : -1;
+            slotFromTo_[b] = (!loop && i < n && j < n) ? SparseMatrix.find(dnPtr_, dnInd_, i, j) : -1;
+            slotToFrom_[b] = (!loop && i < n && j < n) ? SparseMatrix.find(dnPtr_, dnInd_, j, i) : -1;
+            if (i < n && j >= n)      slotDf_[b] = SparseMatrix.find(dfPtr_, dfInd_, i, j - n);
+            else if (j < n && i >= n) slotDf_[b] = SparseMatrix.find(dfPtr_, dfInd_, j, i - n);
+            else                      slotDf_[b] = -1;
+        }
+
+        adjPtr_ = new int[N + 1];
+        adjInd_ = index(N, from_, to_, B, adjPtr_);
+        indexed_ = B;
+    }
+
+    // the parent p with the branch between columns i and j appended, slots already located
+    private BranchIncidence(BranchIncidence p, int i, int j, int[] slots) {
+        nodes_ = p.nodes_;
+        branches_ = p.branches_ + 1;
+        unknown_ = p.unknown_;
+        dnPtr_ = p.dnPtr_;
+        dnInd_ = p.dnInd_;
+        dfPtr_ = p.dfPtr_;
+        dfInd_ = p.dfInd_;
+
+        // the spare capacity of the parent, if no other append took it first
+        int b = p.branches_;
+        boolean share = b < p.from_.length && p.extended_.compareAndSet(false, true);
+        int capacity = share ? p.from_.length : Math.max(16, 2 * branches_);
+        from_       = share ? p.from_       : Arrays.copyOf(p.from_, capacity);
+        to_         = share ? p.to_         : Arrays.copyOf(p.to_, capacity);
+        slotFrom_   = share ? p.slotFrom_   : Arrays.copyOf(p.slotFrom_, capacity);
+        slotTo_     = share ? p.slotTo_     : Arrays.copyOf(p.slotTo_, capacity);
+        slotFromTo_ = share ? p.slotFromTo_ : Arrays.copyOf(p.slotFromTo_, capacity);
+        slotToFrom_ = share ? p.slotToFrom_ : Arrays.copyOf(p.slotToFrom_, capacity);
+        slotDf_     = share ? p.slotDf_     : Arrays.copyOf(p.slotDf_, capacity);
+        from_[b] = i;
+        to_[b] = j;
+        slotFrom_[b]   = slots[0];
+        slotTo_[b]     = slots[1];
+        slotFromTo_[b] = slots[2];
+        slotToFrom_[b] = slots[3];
+        slotDf_[b]     = slots[4];
+
+        // appended branches are indexed again once searching them costs more
+        if (branches_ - p.indexed_ <= Math.max(64, (int) Math.sqrt(branches_))) {
+            adjPtr_ = p.adjPtr_;
+            adjInd_ = p.adjInd_;
+            indexed_ = p.indexed_;
+        } else {
+            adjPtr_ = new int[nodes_ + 1];
+            adjInd_ = index(nodes_, from_, to_, branches_, adjPtr_);
+            indexed_ = branches_;
+        }
+    }
+
+    // the branches at each column, a loop listed once, with ptr of size N + 1 filled in
+    private static int[] index(int N, int[] from, int[] to, int B, int[] ptr) {
+        for (int b = 0; b < B; b++) {
+            ptr[from[b] + 1]++;
+            if (to[b] != from[b]) ptr[to[b] + 1]++;
+        }
+        for (int c = 0; c < N; c++) ptr[c + 1] += ptr[c];
+        int[] ind = new int[ptr[N]];
+        int[] next = Arrays.copyOf(ptr, N);
+        for (int b = 0; b < B; b++) {
+            ind[next[from[b]]++] = b;
+            if (to[b] != from[b]) ind[next[to[b]]++] = b;
+        }
+        return ind;
+    }
+
+    /**
+     *  appends the branch from column i to column j in O(sqrt(B)) amortized
+     *  time; this incidence is left unchanged
+     *  @return the incidence with the branch, or null if it adds an entry 
+     *          to the pattern of Dn or Df and the incidence must be rebuilt
+     */
+    public BranchIncidence append(int i, int j) {
+        if (i < 0 || i >= nodes_ || j < 0 || j >= nodes_) throw new IndexOutOfBoundsException("branch " + i + "-" + j + " has a column not between 0 and " + nodes_);
+        int n = unknown_;
+        boolean loop = (i == j);
+        int[] slots = new int[5];
+        slots[0] = (!loop && i < n) ? SparseMatrix.find(dnPtr_, dnInd_, i, i) : -1;
+        slots[1] = (!loop && j < n) ? SparseMatrix.find(dnPtr_, dnInd_, j, j) : -1;
+        slots[2] = (!loop && i < n && j < n) ? SparseMatrix.find(dnPtr_, dnInd_, i, j) : -1;
+        slots[3] = (!loop && i < n && j < n) ? SparseMatrix.find(dnPtr_, dnInd_, j, i) : -1;
+        if (i < n && j >= n)      slots[4] = SparseMatrix.find(dfPtr_, dfInd_, i, j - n);
+        else if (j < n && i >= n) slots[4] = SparseMatrix.find(dfPtr_, dfInd_, j, i - n);
+        else                      slots[4] = -1;
+        if (!loop && i < n && j < n && slots[2] < 0) return null;
+        if ((i < n) != (j < n) && slots[4] < 0) return null;
+        return new BranchIncidence(this, i, j, slots);
+    }
+
+    // @return true if other has the very patterns of Dn and Df of this incidence
+    public boolean samePattern(BranchIncidence other) {
+        return dnPtr_ == other.dnPtr_ && dnInd_ == other.dnInd_ && dfPtr_ == other.dfPtr_ && dfInd_ == other.dfInd_;
+    }
+
+    // sorts the column indices of each row and merges duplicates, rewriting ptr in place
+    private static int[] compress(int rows, int[] ptr, int[] ind) {
+        int nz = 0;
+        int start = ptr[0];
+        for (int i = 0; i < rows; i++) {
+            int end = ptr[i + 1];
+            Arrays.sort(ind, start, end);
+            ptr[i] = nz;
+            for (int p = start; p < end; p++) {
+                if (p == start || ind[p] != ind[p - 1]) ind[nz++] = ind[p];
+            }
+            start = end;
+        }
+        ptr[rows] = nz;
+        return (nz == ind.length) ? ind : Arrays.copyOf(ind, nz);
+    }
+
+    // A S S E M B L Y
+
+    // writes the values of Dn = Cn^T Q Cn into a pattern sized array
+    public void assembleDn(double[] q, double[] values) {
+        Arrays.fill(values, 0, dnPtr_[unknown_], 0.0);
+        for (int b = 0; b < branches_; b++) {
+            double qb = q[b];
+            if (slotFrom_[b] >= 0)   values[slotFrom_[b]]   += qb;
+            if (slotTo_[b] >= 0)     values[slotTo_[b]]     += qb;
+            if (slotFromTo_[b] >= 0) values[slotFromTo_[b]] -= qb;
+            if (slotToFrom_[b] >= 0) values[slotToFrom_[b]] -= qb;
+        }
+    }
+
+    // writes the values of Df = Cn^T Q Cf into a pattern sized array
+    public void assembleDf(double[] q, double[] values) {
+        Arrays.fill(values, 0, dfPtr_[unknown_], 0.0);
+        for (int b = 0; b < branches_; b++) {
+            if (slotDf_[b] >= 0) values[slotDf_[b]] -= q[b];
+        }
+    }
+
+    // @return Dn = Cn^T Q Cn for the force densities q
+    public SparseMatrix assembleDn(double[] q) {
+        double[] values = new double[dnPtr_[unknown_]];
+        assembleDn(q, values);
+        return new SparseMatrix(unknown_, unknown_, dnPtr_, dnInd_, values);
+    }
+
+    // @return Df = Cn^T Q Cf for the force densities q
+    public SparseMatrix assembleDf(double[] q) {
+        double[] values = new double[dfPtr_[unknown_]];
+        assembleDf(q, values);
+        return new SparseMatrix(unknown_, nodes_ - unknown_, dfPtr_, dfInd_, values);
+    }
+
+    // adds dq to the force density of branch b in assembled Dn and Df values
+    public void addDensity(int b, double dq, double[] dnValues, double[] dfValues) {
+        if (slotFrom_[b] >= 0)   dnValues[slotFrom_[b]]   += dq;
+        if (slotTo_[b] >= 0)     dnValues[slotTo_[b]]     += dq;
+        if (slotFromTo_[b] >= 0) dnValues[slotFromTo_[b]] -= dq;
+        if (slotToFrom_[b] >= 0) dnValues[slotToFrom_[b]] -= dq;
+        if (slotDf_[b] >= 0)     dfValues[slotDf_[b]]     -= dq;
+    }
+
+    // adds -q to the off-diagonal entries Dn(from, to) and Dn(to, from) of branch b, if any
+    public void couple(int b, double q, double[] dnValues) {
+        if (slotFromTo_[b] >= 0) dnValues[slotFromTo_[b]] -= q;
+        if (slotToFrom_[b] >= 0) dnValues[slotToFrom_[b]] -= q;
+    }
+
+    // zeroes the off-diagonal entries of branch b, and of any branch parallel to it
+    public void decouple(int b, double[] dnValues) {
+        if (slotFromTo_[b] >= 0) dnValues[slotFromTo_[b]] = 0;
+        if (slotToFrom_[b] >= 0) dnValues[slotToFrom_[b]] = 0;
+    }
+
+    /**
+     *  writes the row c_b of Cn restricted to the unknown nodes, the vector 
+     *  with Dn = sum of q_b * c_b c_b^T, as indices and values.
+     *  @return the number of nonzeros, 0, 1 or 2
+     */
+    public int unknownRow(int b, int[] wi, double[] wx) {
+        int nz = 0;
+        if (from_[b] == to_[b]) return 0;
+        if (from_[b] < unknown_) {
+            wi[nz] = from_[b];
+            wx[nz++] = 1;
+        }
+        if (to_[b] < unknown_) {
+            wi[nz] = to_[b];
+            wx[nz++] = -1;
+        }
+        return nz;
+    }
+
+    /**
+     *  computes the length L_i = |C_i [x y z]| and tension force F_i = q_i L_i
+     *  of every branch in a single pass, for coordinates ordered as the
+     *  columns of C.
+     *  @return the structural performance measure, the sum of F_i * L_i
+     */
+    public double lengthsAndForces(double[] x, double[] y, double[] z, double[] q, double[] L, double[] F) {
+        double sigmaFL = 0;
+        for (int b = 0; b < branches_; b++) {
+            int i = from_[b], j = to_[b];
+            double u = x[i] - x[j];
+            double v = y[i] - y[j];
+            double w = z[i] - z[j];
+            double l = Math.sqrt(u * u + v * v + w * w);
+            double f = q[b] * l;
+            L[b] = l;
+            F[b] = f;
+            sigmaFL += f * l;
+        }
+        return sigmaFL;
+    }
+
+    /**
+     *  computes the gradient of the sum of F_i * L_i with respect to the
+     *  force densities, g_i = L_i^2 - 2 (Cn_i lambda) . (C_i [x y z]), given
+     *  the solution lambda of Dn lambda = P, packed n x 3, and coordinates 
+     *  ordered as the columns of C.
+     */
+    public void sigmaFLGradient(double[] x, double[] y, double[] z, double[] lambda, double[] g) {
+        for (int b = 0; b < branches_; b++) {
+            int i = from_[b], j = to_[b];
+            double u = x[i] - x[j];
+            double v = y[i] - y[j];
+            double w = z[i] - z[j];
+            double lu = 0, lv = 0, lw = 0;
+            if (i != j) {
+                if (i < unknown_) {
+                    lu += lambda[3*i];
+                    lv += lambda[3*i + 1];
+                    lw += lambda[3*i + 2];
+                }
+                if (j < unknown_) {
+                    lu -= lambda[3*j];
+                    lv -= lambda[3*j + 1];
+                    lw -= lambda[3*j + 2];
+                }
+            }
+            g[b] = u * u + v * v + w * w - 2 * (lu * u + lv * v + lw * w);
+        }
+    }
+
+    // u = C * x, for x ordered as the columns of C
+    public void times(double[] x, double[] u) {
+        for (int b = 0; b < branches_; b++) {
+            u[b] = (from_[b] == to_[b]) ? 0.0 : x[from_[b]] - x[to_[b]];
+        }
+    }
+
+    // @return u = C * x as a column matrix
+    public Jama.Matrix times(Jama.Matrix x) {
+        double[] u = new double[branches_];
+        times(x.getColumnPackedCopy(), u);
+        return new Jama.Matrix(u, branches_);
+    }
+
+    // @return the dense columns [c0, c1) of C, for small graphs and printing
+    public Jama.Matrix toDense(int c0, int c1) {
+        Jama.Matrix m = new Jama.Matrix(branches_, c1 - c0);
+        for (int b = 0; b < branches_; b++) {
+            if (from_[b] == to_[b]) continue;
+            if (from_[b] >= c0 && from_[b] < c1) m.set(b, from_[b] - c0, 1);
+            if (to_[b] >= c0 && to_[b] < c1)     m.set(b, to_[b] - c0, -1);
+        }
+        return m;
+    }
+
+    // G E T T E R S
+
+    public int N()       {  return nodes_;            }
+    public int B()       {  return branches_;         }
+    public int unknown() {  return unknown_;          }
+    public int fixed()   {  return nodes_ - unknown_; }
+
+    // copies of the columns of the +1 and -1 entries of each branch
+    public int[] from()  {  return Arrays.copyOf(from_, branches_);  }
+    public int[] to()    {  return Arrays.copyOf(to_, branches_);    }
+
+    // the column at the other end of branch b from column c
+    public int other(int b, int c)  {  return (from_[b] == c) ? to_[b] : from_[b];  }
+
+    // number of branches at column c
+    public int degree(int c) {
+        int d = adjPtr_[c + 1] - adjPtr_[c];
+        for (int b = indexed_; b < branches_; b++) {
+            if (from_[b] == c || to_[b] == c) d++;
+        }
+        return d;
+    }
+
+    // the k-th branch at column c, appended branches last
+    public int branchAt(int c, int k) {
+        int d = adjPtr_[c + 1] - adjPtr_[c];
+        if (k < d) return adjInd_[adjPtr_[c] + k];
+        for (int b = indexed_; b < branches_; b++) {
+            if ((from_[b] == c || to_[b] == c) && d++ == k) return b;
+        }
+        throw new IndexOutOfBoundsException("column " + c + " has no branch " + k);
+    }
+
+    // @return true if some branch joins the distinct columns i and j
+    public boolean adjacent(int i, int j) {
+        if (i == j) return false;
+        for (int p = adjPtr_[i]; p < adjPtr_[i + 1]; p++) {
+            if (other(adjInd_[p], i) == j) return true;
+        }
+        for (int b = indexed_; b < branches_; b++) {
+            if ((from_[b] == i && to_[b] == j) || (from_[b] == j && to_[b] == i)) return true;
+        }
+        return false;
+    }
+
+    // number of stored entries of Dn and Df
+    public int nnzDn()   {  return dnPtr_[unknown_];  }
+    public int nnzDf()   {  return dfPtr_[unknown_];  }
+
+}
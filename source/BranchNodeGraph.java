@@ -1,49 +1,47 @@
 /******************************************************************************
  *  Compilation:  javac BranchNodeGraph.java
  *  Execution:    java BranchNodeGraph
- *  Dependencies: Jama.Matrix  JamaUtils  processing.core.PApplet
+ *  Dependencies: Jama.Matrix  BranchIncidence.java  MatrixUtils.java
+ *                BranchNodeTopology.java  FormFindingMetrics.java
  *
  *  Data structure for building the <b>C</b> Branch-Node Matrix and its
  *  sub-matrices <b>Cn</b>, and <b>Cf</b> for new and fixed points respectively.
  *  Represents topology of a given structural system as a set of <em>indices</em>
  *  (nodes) and a set of <em>directed links</em> (branches) between the indices.
  *  For instance, the branch that links nodes with indices 1 and 7 is represe-
- *  nted internally with a custom data type <em>Branch</em> that keeps the
- *  branch 17. 
+ *  nted internally by the entries 1 and 7 of two parallel from/to arrays,
+ *  so networks of millions of branches can be added in bulk.
+ *  
+ *  The matrices are kept in the implicit from/to form of BranchIncidence,
+ *  which needs O(B) memory; the dense <b>C</b>, <b>Cn</b> and <b>Cf</b> are 
+ *  only materialized when one of their getters is called. The permutation
+ *  between the original node order and the column order [unknown fixed]
+ *  is computed once by build() and kept as two int arrays.
+ *  
+ *  The graph is the mutable builder of a topology: build() takes an
+ *  immutable BranchNodeTopology snapshot of the branches added so far, 
+ *  which freeze() returns and solvers on any number of threads can share.
+ *  The getters of arrays return copies.
  *  
  *  @author Alexandros Haridis | Digital Structures, MIT
  ******************************************************************************/
 
-import java.util.ArrayList;
 import java.util.Arrays;
 
-import edu.umbc.cs.maple.utils.JamaUtils;
-import processing.core.PApplet;
-
 public class BranchNodeGraph {
 	
-    private ArrayList<Branch> adj_;    // internal branch container
+    private int[] from_, to_;          // internal branch container, ends of each branch
 
     private int nodes_;                // number of nodes
     private int branches_;             // number of branches
     private int[] fixed_;              // indices for fixed nodes
     private int[] unknown_;            // indices for unknown nodes
     
-    private Jama.Matrix C_;            // Branch-Node matrix C
-    private Jama.Matrix Cn_;           // Sub - matrix of C with unknown nodes
-    private Jama.Matrix Cf_;           // Sub - matrix of C with fixed nodes
+    private BranchNodeTopology top_;   // topology of the last build(), null once branches are added
     
-    private JamaUtils ju;
-    
-    // helper branch class
-    private class Branch {
-        private int from, to;
-        Branch() { /* empty constructor */ }
-        Branch(int _from, int _to) {
-            from = _from;
-            to    = _to;
-        }
-    }
+    private Jama.Matrix C_;            // Branch-Node matrix C, dense on demand
+    private Jama.Matrix Cn_;           // Sub - matrix of C with unknown nodes, dense on demand
+    private Jama.Matrix Cf_;           // Sub - matrix of C with fixed nodes, dense on demand
     
     // validate that v is a valid index
     private void validate(int v) {
@@ -58,8 +56,9 @@ public class BranchNodeGraph {
         nodes_ = N;
         branches_ = 0;
         
-        adj_ = new ArrayList<Branch>();
-        fixed_ = (int[]) fixed;
+        from_ = new int[16];
+        to_   = new int[16];
+        fixed_ = fixed.clone();
         
         // load unknown points based on fixed points
         unknown_ = new int[N - fixed_.length];
@@ -77,48 +76,76 @@ public class BranchNodeGraph {
         validate(v);
         validate(w);
         
-        Branch b = new Branch();
-        
-        b.from = v;
-        b.to   = w;
-        
-        adj_.add(b);
+        if (branches_ == from_.length) grow(branches_ + 1);
+        from_[branches_] = v;
+        to_[branches_]   = w;
         branches_++;
+        invalidate();
+    }
+    
+    // adds the count directed branches from[k]-to[k], e.g. straight from a file
+    public void addBranches(int[] from, int[] to, int count) {
+        if (count < 0 || count > from.length || count > to.length) throw new RuntimeException("Expected at most " + Math.min(from.length, to.length) + " branches, found " + count);
+        for (int k = 0; k < count; k++) {
+            validate(from[k]);
+            validate(to[k]);
+        }
+        if (branches_ + count > from_.length) grow(branches_ + count);
+        System.arraycopy(from, 0, from_, branches_, count);
+        System.arraycopy(to, 0, to_, branches_, count);
+        branches_ += count;
+        invalidate();
     }
     
+    // drops the topology and dense matrices of the last build(), once branches are added
+    private void invalidate() {
+        top_ = null;
+        C_  = null;
+        Cn_ = null;
+        Cf_ = null;
+    }
+    
+    // resize the branch container to hold at least B branches
+    private void grow(int B) {
+        int capacity = Math.max(B, 2 * from_.length);
+        from_ = Arrays.copyOf(from_, capacity);
+        to_   = Arrays.copyOf(to_, capacity);
+    }
+    
+    // builds the topology of the branches added so far, see freeze()
     public void build() {
         if (branches_ < 0) throw new RuntimeException("Number of edges must be nonnegative");
-        C_ = new Jama.Matrix(branches_, nodes_);
+        long t = FormFindingMetrics.start(), a = FormFindingMetrics.allocated();
         
         //  Assign the topological relationships between nodes and branches.
         //  Each row of the matrix consists of +1, -1 and 0 so as:
         //     +1 if branch ends in node
         //     -1 if branch begins in node
         //     0 otherwise
+        //  Only the two nonzero columns of each row are stored.
         
-        int counter = 0;
-        for (Branch b : adj_) {
-            int to = b.to;
-            int from = b.from;
-            
-            C_.set(counter, from, 1);
-            C_.set(counter, to, -1);
-            
-            counter++;
-        }
-        
-        // construct sub-matrices Cn and Cf containing
-        // new unknown nodes and fixed nodes respectively
+        //  The columns are ordered with the new unknown nodes first and the 
+        //  fixed nodes after them, so that C = [Cn Cf]
         
-        Cn_ = ju.getcolumns(C_, unknown_);
-        Cf_ = ju.getcolumns(C_, fixed_);
+        top_ = new BranchNodeTopology(nodes_, from_, to_, branches_, fixed_, unknown_);
         
+        C_  = null;
+        Cn_ = null;
+        Cf_ = null;
         
-        //  Construct the Branch-Node Matrix C by concatenating the matrices
-        //  with New nodes and Fixed nodes so as: C = [Cn Cf]
-         
-        C_ = ju.columnAppend(Cn_, Cf_); 
-
+        FormFindingMetrics.allocatedSince(a);
+        FormFindingMetrics.stop(FormFindingMetrics.Stage.BUILD, t);
+    }
+    
+    /**
+     *  @return the immutable topology of the branches added so far, built 
+     *  first if branches were added since the last build(). It can be shared 
+     *  by concurrent solvers, and later additions to this graph do not 
+     *  change it.
+     */
+    public BranchNodeTopology freeze() {
+        if (top_ == null) build();
+        return top_;
     }
     
     
@@ -128,14 +155,33 @@ public class BranchNodeGraph {
     public int N()    {  return nodes_;     }
     public int B()    {  return branches_;  }
     
-    // get Branch Node Matrix and its sub-matrices
-    public Jama.Matrix C()  {  return C_;   }
-    public Jama.Matrix Cn() {  return Cn_;  }
-    public Jama.Matrix Cf() {  return Cf_;  }
+    // get the sparse Branch Node Matrix, valid after build()
+    public BranchIncidence incidence() {  return (top_ == null) ? null : top_.incidence();  }
     
-    // get the indices of fixed and unknown nodes
-    public int[] getFixed()   {  return fixed_;    }
-    public int[] getUnknown() {  return unknown_;  }
+    // get the structural hash of the branches and fixed nodes, valid after build()
+    public long structureHash() {  return freeze().structureHash();  }
+    
+    // get Branch Node Matrix and its sub-matrices as dense matrices, O(B*N) memory
+    public Jama.Matrix C() {
+        if (C_ == null && top_ != null) C_ = top_.C();
+        return C_;
+    }
+    public Jama.Matrix Cn() {
+        if (Cn_ == null && top_ != null) Cn_ = top_.Cn();
+        return Cn_;
+    }
+    public Jama.Matrix Cf() {
+        if (Cf_ == null && top_ != null) Cf_ = top_.Cf();
+        return Cf_;
+    }
+    
+    // get copies of the indices of fixed and unknown nodes
+    public int[] getFixed()   {  return fixed_.clone();    }
+    public int[] getUnknown() {  return unknown_.clone();  }
+    
+    // get copies of the node of each column of C, and the column of each node, valid after build()
+    public int[] getNodeOfColumn()  {  return (top_ == null) ? null : top_.getNodeOfColumn();  }
+    public int[] getColumnOfNode()  {  return (top_ == null) ? null : top_.getColumnOfNode();  }
     
     // get the indices of fixed and unknown nodes
     public int fixed()   {  return fixed_.length;    }
@@ -143,19 +189,19 @@ public class BranchNodeGraph {
     
     // P R I N T 
     
-    public void showCn(PApplet p5) {
-        p5.println("\nNew nodes sub-Matrix");
-        Misc.printJAMAMatrix(p5, Cn_);
+    public void showCn() {
+        System.out.println("\nNew nodes sub-Matrix");
+        MatrixUtils.print(System.out, Cn());
     }
     
-    public void showCf(PApplet p5) {
-    	p5.println("\nFixed nodes sub-Matrix");
-    	Misc.printJAMAMatrix(p5, Cf_);
+    public void showCf() {
+    	System.out.println("\nFixed nodes sub-Matrix");
+    	MatrixUtils.print(System.out, Cf());
     }
     
-    public void showC(PApplet p5) {
-        p5.println("\nBranch-Node Matrix");
-        Misc.printJAMAMatrix(p5, C_);
+    public void showC() {
+        System.out.println("\nBranch-Node Matrix");
+        MatrixUtils.print(System.out, C());
     }
     
 }
@@ -0,0 +1,206 @@
+/******************************************************************************
+ *  Compilation:  javac BranchNodeTopology.java
+ *  Execution:    java BranchNodeTopology [grid size] [threads]
+ *  Dependencies: Jama.Matrix  BranchIncidence.java  BranchNodeGraph.java
+ *                ForceDensityMethod.java
+ *
+ *  Immutable snapshot of a built BranchNodeGraph: the ends of every branch,
+ *  the fixed and unknown nodes, the permutation between the original node
+ *  order and the column order [unknown fixed] of <b>C</b>, and the sparse
+ *  <b>C</b> itself as a BranchIncidence. Everything is kept in final
+ *  primitive arrays, and the entries a topology reads, 0..B-1 of the
+ *  branch arrays, are never written after construction, so one topology
+ *  can be shared without locks by any number of ForceDensityMethod
+ *  instances on any number of threads. The branch arrays may have spare
+ *  slots past B: the first withBranch() to win the compare-and-set on
+ *  extended_ writes its branch there, for the new topology alone, and any
+ *  other call copies the arrays.
+ *
+ *  The public getters return copies. The solvers of this package read the
+ *  arrays themselves through package-private accessors, on the hot path,
+ *  and must not modify them.
+ *
+ *  @author Alexandros Haridis | Digital Structures, MIT
+ ******************************************************************************/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public final class BranchNodeTopology {
+
+    private final int nodes_;              // number of nodes
+    private final int branches_;           // number of branches
+    private final int[] from_, to_;        // ends of each branch, original node order, capacity >= B
+    private final int[] fixed_;            // indices for fixed nodes, sorted
+    private final int[] unknown_;          // indices for unknown nodes, sorted
+    private final int[] node_;             // node of each column of C, [unknown fixed]
+    private final int[] column_;           // column of C of each node, inverse of node_
+    private final BranchIncidence inc_;    // sparse Branch-Node matrix C = [Cn Cf]
+    private final long chain_;             // hash of N, the fixed nodes and the branch ends
+    private final long hash_;              // structural hash of the branches and fixed nodes
+    private final AtomicBoolean extended_ = new AtomicBoolean();  // capacity taken by withBranch
+
+    // snapshot of the first B branches from[k]-to[k] over N nodes, the arrays are copied
+    BranchNodeTopology(int N, int[] from, int[] to, int B, int[] fixed, int[] unknown) {
+        nodes_ = N;
+        branches_ = B;
+        from_ = Arrays.copyOf(from, B);
+        to_   = Arrays.copyOf(to, B);
+        fixed_ = fixed.clone();
+        unknown_ = unknown.clone();
+        inc_ = new BranchIncidence(N, from_, to_, B, unknown_, fixed_);
+
+        //  The permutation between the original node order and the column
+        //  order is kept both ways, so results can be scattered back without
+        //  searching the fixed nodes
+
+        node_   = new int[N];
+        column_ = new int[N];
+        System.arraycopy(unknown_, 0, node_, 0, unknown_.length);
+        System.arraycopy(fixed_, 0, node_, unknown_.length, fixed_.length);
+        for (int c = 0; c < N; c++) column_[node_[c]] = c;
+
+        //  Graphs with the same branches and supports get the same hash,
+        //  which keys their factorizations in the FactorizationCache
+
+        long h = 0xcbf29ce484222325L;
+        h = (h ^ N) * 0x100000001b3L;
+        h = (h ^ fixed_.length) * 0x100000001b3L;
+        for (int i = 0; i < fixed_.length; i++) h = (h ^ fixed_[i]) * 0x100000001b3L;
+        for (int k = 0; k < B; k++) h = chain(h, from_[k], to_[k]);
+        chain_ = h;
+        hash_ = (h ^ B) * 0x100000001b3L;
+    }
+
+    // the parent p with the branch v-w appended, over the incidence inc that has it
+    private BranchNodeTopology(BranchNodeTopology p, int v, int w, BranchIncidence inc) {
+        nodes_ = p.nodes_;
+        branches_ = p.branches_ + 1;
+        fixed_ = p.fixed_;
+        unknown_ = p.unknown_;
+        node_ = p.node_;
+        column_ = p.column_;
+        inc_ = inc;
+
+        // the spare capacity of the parent, if no other append took it first
+        int b = p.branches_;
+        boolean share = b < p.from_.length && p.extended_.compareAndSet(false, true);
+        from_ = share ? p.from_ : Arrays.copyOf(p.from_, Math.max(16, 2 * branches_));
+        to_   = share ? p.to_   : Arrays.copyOf(p.to_, from_.length);
+        from_[b] = v;
+        to_[b] = w;
+        chain_ = chain(p.chain_, v, w);
+        hash_ = (chain_ ^ branches_) * 0x100000001b3L;
+    }
+
+    // 64-bit FNV-1a step over the ends of one more branch
+    private static long chain(long h, int v, int w) {
+        h = (h ^ v) * 0x100000001b3L;
+        return (h ^ w) * 0x100000001b3L;
+    }
+
+    /**
+     *  @return a new topology with the branch v-w added as branch B; this one
+     *  is left unchanged for its other users. A branch that adds no entry to
+     *  the patterns of Dn and Df is appended as BranchIncidence.append() does,
+     *  any other rebuilds the topology in O(B).
+     */
+    public BranchNodeTopology withBranch(int v, int w) {
+        if (v < 0 || v >= nodes_ || w < 0 || w >= nodes_) throw new IndexOutOfBoundsException("branch " + v + "-" + w + " has a node not between 0 and " + nodes_);
+        BranchIncidence inc = inc_.append(column_[v], column_[w]);
+        if (inc != null) return new BranchNodeTopology(this, v, w, inc);
+        int[] from = Arrays.copyOf(from_, branches_ + 1), to = Arrays.copyOf(to_, branches_ + 1);
+        from[branches_] = v;
+        to[branches_] = w;
+        return new BranchNodeTopology(nodes_, from, to, branches_ + 1, fixed_, unknown_);
+    }
+
+    // G E T T E R S
+
+    // number of nodes and edges
+    public int N()    {  return nodes_;     }
+    public int B()    {  return branches_;  }
+
+    // number of fixed and unknown nodes
+    public int fixed()   {  return fixed_.length;    }
+    public int unknown() {  return unknown_.length;  }
+
+    // get the sparse Branch Node Matrix
+    public BranchIncidence incidence() {  return inc_;  }
+
+    // get the structural hash of the branches and fixed nodes
+    public long structureHash() {  return hash_;  }
+
+    // get copies of the branch ends, the fixed and unknown nodes and the permutation
+    public int[] getFrom()          {  return Arrays.copyOf(from_, branches_);  }
+    public int[] getTo()            {  return Arrays.copyOf(to_, branches_);    }
+    public int[] getFixed()         {  return fixed_.clone();    }
+    public int[] getUnknown()       {  return unknown_.clone();  }
+    public int[] getNodeOfColumn()  {  return node_.clone();     }
+    public int[] getColumnOfNode()  {  return column_.clone();   }
+
+    // the arrays themselves, read only, for the solvers; the branch ends may
+    // have spare capacity beyond B
+    int[] fromNodes()     {  return from_;     }
+    int[] toNodes()       {  return to_;       }
+    int[] fixedNodes()    {  return fixed_;    }
+    int[] unknownNodes()  {  return unknown_;  }
+    int[] nodeOfColumn()  {  return node_;     }
+    int[] columnOfNode()  {  return column_;   }
+
+    // get Branch Node Matrix and its sub-matrices as new dense matrices, O(B*N) memory
+    public Jama.Matrix C()  {  return inc_.toDense(0, nodes_);                }
+    public Jama.Matrix Cn() {  return inc_.toDense(0, unknown_.length);       }
+    public Jama.Matrix Cf() {  return inc_.toDense(unknown_.length, nodes_);  }
+
+    /**
+     *  Test client and sample execution: one topology shared by several
+     *  threads, each solving its own load with its own ForceDensityMethod.
+     */
+    public static void main(String[] args) throws Exception {
+        int m = (args.length > 0) ? Integer.parseInt(args[0]) : 60;
+        int threads = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+        int V = m * m;
+        BranchNodeGraph bng = new BranchNodeGraph(V, new int[] { 0, m - 1, m * (m - 1), V - 1 });
+        for (int y = 0; y < m; y++)
+            for (int x = 0; x < m - 1; x++) bng.addBranch(y * m + x, y * m + x + 1);
+        for (int x = 0; x < m; x++)
+            for (int y = 0; y < m - 1; y++) bng.addBranch(y * m + x, (y + 1) * m + x);
+        final BranchNodeTopology top = bng.freeze();
+        final double[] xp = new double[V], yp = new double[V], zp = new double[V];
+        for (int i = 0; i < V; i++) {
+            xp[i] = (i % m) * 100;
+            yp[i] = (i / m) * 100;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Double>> sigma = new ArrayList<Future<Double>>();
+        for (int t = 0; t < threads; t++) {
+            final float load = -1 - t;
+            sigma.add(pool.submit(new Callable<Double>() {
+                public Double call() {
+                    ForceDensityMethod fdm = new ForceDensityMethod(top);
+                    fdm.setBoundaryConditions(xp, yp, zp);
+                    fdm.setLoad(new toxi.geom.Vec3D(0, 0, load));
+                    fdm.evalFD();
+                    return fdm.getSigmaFL();
+                }
+            }));
+        }
+        for (int t = 0; t < threads; t++) {
+            ForceDensityMethod fdm = new ForceDensityMethod(top);
+            fdm.setBoundaryConditions(xp, yp, zp);
+            fdm.setLoad(new toxi.geom.Vec3D(0, 0, -1 - t));
+            fdm.evalFD();
+            System.out.println("load " + (-1 - t) + "  shared " + sigma.get(t).get() + "  alone " + fdm.getSigmaFL());
+        }
+        pool.shutdown();
+    }
+
+}
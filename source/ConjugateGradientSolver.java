@@ -0,0 +1,242 @@
+/******************************************************************************
+ *  Compilation:  javac ConjugateGradientSolver.java
+ *  Execution:    java ConjugateGradientSolver
+ *  Dependencies: LinearSolver.java  SparseMatrix.java
+ *
+ *  Preconditioned conjugate gradient (PCG) method for symmetric positive
+ *  definite systems. Each iteration costs one sparse matrix-vector product
+ *  with Dn and one application of the preconditioner, and memory stays
+ *  O(nnz), which makes it the method of choice for very large nets where
+ *  even a sparse factorization fills in too much. Two preconditioners are
+ *  available: JACOBI (the diagonal of A) and IC0, an incomplete Cholesky
+ *  factorization with the sparsity pattern of A.
+ *
+ *  The initial guess is taken from x, so re-solving after a small change
+ *  of loads or force densities converges in few iterations.
+ *
+ *  @author Alexandros Haridis | Digital Structures, MIT
+ ******************************************************************************/
+
+public class ConjugateGradientSolver implements LinearSolver {
+
+    public enum Preconditioner { JACOBI, IC0 }
+
+    private final Preconditioner precond_;
+    private double tolerance_;         // relative residual ||b - Ax|| / ||b||
+    private int maxIterations_;        // zero means 10 * n
+    private int iterations_;           // iterations of the last solve
+
+    private SparseMatrix A_;           // matrix of the last factor() call
+    private double[] diag_;            // inverse diagonal, JACOBI
+    private int[] Lptr_, Lind_;        // lower triangle of A by rows, IC0
+    private double[] Lval_;            // incomplete factor, IC0
+    private double[] r_, z_, p_, q_;   // iteration vectors
+    private double[] b_, x_;           // one column of packed right-hand sides
+
+    // PCG with the given preconditioner
+    public ConjugateGradientSolver(Preconditioner precond) {
+        precond_ = precond;
+        tolerance_ = 1e-10;
+        maxIterations_ = 0;
+    }
+
+    // PCG with a Jacobi preconditioner
+    public ConjugateGradientSolver() {
+        this(Preconditioner.JACOBI);
+    }
+
+    // set the relative residual at which iteration stops
+    public void setTolerance(double tol) {  tolerance_ = tol;  }
+
+    // set the iteration cap, zero for 10 * n
+    public void setMaxIterations(int max) {  maxIterations_ = max;  }
+
+    // G E T T E R S
+
+    public Preconditioner getPreconditioner() {  return precond_;       }
+    public double getTolerance()              {  return tolerance_;     }
+    public int getMaxIterations()             {  return maxIterations_; }
+
+    // @return the number of iterations of the last solve
+    public int iterations() {  return iterations_;  }
+
+    // P R E C O N D I T I O N E R
+
+    public void factor(SparseMatrix A) {
+        if (A.rows() != A.cols()) throw new RuntimeException("Matrix must be square");
+        int n = A.rows();
+        if (A_ == null || A_.rows() != n) {
+            r_ = new double[n];
+            z_ = new double[n];
+            p_ = new double[n];
+            q_ = new double[n];
+            b_ = new double[n];
+            x_ = new double[n];
+            diag_ = new double[n];
+        }
+        A_ = A;
+        if (precond_ == Preconditioner.IC0) {
+            factorIC0(A);
+        } else {
+            for (int i = 0; i < n; i++) {
+                double d = A.get(i, i);
+                if (d <= 0) throw new RuntimeException("Matrix is not positive definite");
+                diag_[i] = 1.0 / d;
+            }
+        }
+    }
+
+    // incomplete Cholesky factorization restricted to the lower triangle of A
+    private void factorIC0(SparseMatrix A) {
+        int n = A.rows();
+        int[] Ap = A.rowPtr(), Ai = A.colInd();
+        double[] Ax = A.values();
+
+        if (Lptr_ == null || Lptr_.length != n + 1 || Lind_.length != (A.nnz() + n) / 2) {
+            Lptr_ = new int[n + 1];
+            for (int i = 0; i < n; i++) {
+                int cnt = 0;
+                for (int p = Ap[i]; p < Ap[i + 1] && Ai[p] <= i; p++) cnt++;
+                Lptr_[i + 1] = Lptr_[i] + cnt;
+            }
+            Lind_ = new int[Lptr_[n]];
+            Lval_ = new double[Lptr_[n]];
+        }
+        int[] Lp = Lptr_, Li = Lind_;
+        double[] Lx = Lval_;
+
+        for (int i = 0; i < n; i++) {
+            int q = Lp[i];
+            for (int p = Ap[i]; p < Ap[i + 1] && Ai[p] <= i; p++) {
+                Li[q] = Ai[p];
+                Lx[q++] = Ax[p];
+            }
+            if (q == Lp[i] || Li[q - 1] != i) throw new RuntimeException("Matrix has a structurally zero diagonal");
+
+            // L(i,k) = (A(i,k) - L(i,:) . L(k,:)) / L(k,k), over the pattern of row i
+            for (int t = Lp[i]; t < Lp[i + 1] - 1; t++) {
+                int k = Li[t];
+                double dot = 0;
+                int a = Lp[i], b = Lp[k];
+                while (a < t && b < Lp[k + 1] - 1) {
+                    if (Li[a] < Li[b]) a++;
+                    else if (Li[a] > Li[b]) b++;
+                    else dot += Lx[a++] * Lx[b++];
+                }
+                Lx[t] = (Lx[t] - dot) / Lx[Lp[k + 1] - 1];
+            }
+            double d = Lx[Lp[i + 1] - 1];
+            for (int t = Lp[i]; t < Lp[i + 1] - 1; t++) d -= Lx[t] * Lx[t];
+
+            // breakdown of the incomplete factor: fall back to the diagonal of A
+            Lx[Lp[i + 1] - 1] = Math.sqrt(d > 0 ? d : A.get(i, i));
+        }
+    }
+
+    // the Jacobi diagonal is patched in place, IC0 needs a new factor()
+    public boolean update(SparseMatrix A, double sigma, int[] wi, double[] wx, int nz) {
+        if (A != A_ || precond_ == Preconditioner.IC0) return false;
+        for (int t = 0; t < nz; t++) {
+            double d = A.get(wi[t], wi[t]);
+            if (d <= 0) return false;
+            diag_[wi[t]] = 1.0 / d;
+        }
+        return true;
+    }
+
+    // z = M^-1 r
+    private void precondition(double[] r, double[] z) {
+        int n = r.length;
+        if (precond_ == Preconditioner.IC0) {
+            int[] Lp = Lptr_, Li = Lind_;
+            double[] Lx = Lval_;
+            for (int i = 0; i < n; i++) {
+                double s = r[i];
+                for (int p = Lp[i]; p < Lp[i + 1] - 1; p++) s -= Lx[p] * z[Li[p]];
+                z[i] = s / Lx[Lp[i + 1] - 1];
+            }
+            for (int i = n - 1; i >= 0; i--) {
+                z[i] /= Lx[Lp[i + 1] - 1];
+                double zi = z[i];
+                for (int p = Lp[i]; p < Lp[i + 1] - 1; p++) z[Li[p]] -= Lx[p] * zi;
+            }
+        } else {
+            for (int i = 0; i < n; i++) z[i] = diag_[i] * r[i];
+        }
+    }
+
+    // S O L V E
+
+    public void solve(double[] b, double[] x) {
+        if (A_ == null) throw new RuntimeException("Matrix has not been factored");
+        int n = A_.rows();
+        double[] r = r_, z = z_, p = p_, q = q_;
+        int max = (maxIterations_ > 0) ? maxIterations_ : 10 * n;
+
+        double bnorm = 0;
+        for (int i = 0; i < n; i++) bnorm += b[i] * b[i];
+        bnorm = Math.sqrt(bnorm);
+        iterations_ = 0;
+        if (bnorm == 0) {
+            for (int i = 0; i < n; i++) x[i] = 0;
+            return;
+        }
+
+        A_.times(x, r);
+        double rr = 0;
+        for (int i = 0; i < n; i++) {
+            r[i] = b[i] - r[i];
+            rr += r[i] * r[i];
+        }
+        precondition(r, z);
+        double rz = 0;
+        for (int i = 0; i < n; i++) {
+            p[i] = z[i];
+            rz += r[i] * z[i];
+        }
+
+        double stop = tolerance_ * bnorm;
+        while (Math.sqrt(rr) > stop && iterations_ < max) {
+            A_.times(p, q);
+            double pq = 0;
+            for (int i = 0; i < n; i++) pq += p[i] * q[i];
+            double alpha = rz / pq;
+            rr = 0;
+            for (int i = 0; i < n; i++) {
+                x[i] += alpha * p[i];
+                r[i] -= alpha * q[i];
+                rr += r[i] * r[i];
+            }
+            precondition(r, z);
+            double rzNew = 0;
+            for (int i = 0; i < n; i++) rzNew += r[i] * z[i];
+            double beta = rzNew / rz;
+            rz = rzNew;
+            for (int i = 0; i < n; i++) p[i] = z[i] + beta * p[i];
+            iterations_++;
+        }
+    }
+
+    // each column is iterated separately, iterations() reports the largest count
+    public void solve(double[] B, double[] X, int k) {
+        if (k == 1) {
+            solve(B, X);
+            return;
+        }
+        if (A_ == null) throw new RuntimeException("Matrix has not been factored");
+        int n = A_.rows();
+        double[] b = b_, x = x_;
+        int most = 0;
+        for (int c = 0; c < k; c++) {
+            for (int i = 0; i < n; i++) {
+                b[i] = B[i * k + c];
+                x[i] = X[i * k + c];
+            }
+            solve(b, x);
+            for (int i = 0; i < n; i++) X[i * k + c] = x[i];
+            most = Math.max(most, iterations_);
+        }
+        iterations_ = most;
+    }
+
+}
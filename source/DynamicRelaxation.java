@@ -0,0 +1,436 @@
+/******************************************************************************
+ *  Compilation:  javac DynamicRelaxation.java
+ *  Execution:    java DynamicRelaxation [grid size] [threads]
+ *  Dependencies: BranchNodeGraph.java  BranchNodeTopology.java  toxi.geom.Vec3D
+ *
+ *  Dynamic form finding with a particle-spring system (PSS), solved by
+ *  dynamic relaxation with kinetic damping, over the same BranchNodeGraph
+ *  topology as the Force Density Method. Every node is a particle with a
+ *  fictitious mass, every branch a spring pulling its two ends together,
+ *  and the particles move under the residual of spring and load forces
+ *  until they come to rest. Whenever the total kinetic energy of the
+ *  system passes a peak, all velocities are reset to zero and the
+ *  particles restart from the positions at the peak.
+ *
+ *  A branch either carries the tension of a force density, T = q L, whose
+ *  state of rest is the form found by the FDM, or is an elastic spring
+ *  T = k (L - L0) with rest length L0, optionally a cable that goes slack
+ *  in compression. Masses follow the stiffness of the incident springs,
+ *  so a unit time step is stable.
+ *
+ *  The state is kept in structure-of-arrays double[] buffers indexed by
+ *  node, and each step streams through them in two passes: the tension
+ *  of every branch over ranges of branches, then the force, velocity and
+ *  new position of every node over ranges of nodes, gathered through a
+ *  node to branch adjacency. Every range is owned by one worker and
+ *  positions are double-buffered, so the passes run in parallel without
+ *  locks.
+ *
+ *  For more information on dynamic relaxation, see:
+ *  M. Barnes, "Form Finding and Analysis of Tension Structures by Dynamic
+ *  Relaxation," International Journal of Space Structures 14(2), 1999.
+ *
+ *  @author Alexandros Haridis | Digital Structures, MIT
+ ******************************************************************************/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import toxi.geom.Vec3D;
+
+public class DynamicRelaxation {
+
+    private final int N, B;                   // number of nodes and branches
+    private final int[] from_, to_;           // end nodes of each branch, original node order
+    private final boolean[] fixed_;           // node is a support and does not move
+    private final int[] adjPtr_;              // branches of node i in [adjPtr_[i], adjPtr_[i+1])
+    private final int[] adjBranch_;           // incident branch
+    private final int[] adjOther_;            // node at the other end of the incident branch
+
+    private double[] x_, y_, z_;              // positions
+    private double[] xn_, yn_, zn_;           // positions of the next step
+    private final double[] vx_, vy_, vz_;     // velocities
+    private final double[] px_, py_, pz_;     // loads
+    private final double[] t_;                // tension over length, T_b / L_b
+    private final double[] s_;                // axial stiffness of each branch, for the masses
+    private final double[] L_;                // branch lengths
+
+    // material of the branches
+    private double[] q_;                      // force densities, or null for springs
+    private double[] k_, L0_;                 // spring stiffness and rest length
+    private boolean cable_;                   // springs carry no compression
+
+    private double tolerance_;                // largest residual force accepted, relative to the loads
+    private int maxSteps_;                    // step cap of a relaxation
+    private int steps_;                       // steps of the last relaxation
+    private int resets_;                      // kinetic energy peaks of the last relaxation
+    private double residual_;                 // largest residual force on a free node
+
+    // parallel passes over branch and node ranges
+    private final int threads_;
+    private final ForkJoinPool pool_;
+    private final List<Callable<Void>> branchPass_, nodePass_;
+    private final double[] ke_, res_;         // kinetic energy and residual of each node range
+
+    // dynamic relaxation over the topology top with the given number of worker threads
+    public DynamicRelaxation(BranchNodeTopology top, int threads) {
+        if (threads < 1) throw new RuntimeException("Number of threads must be positive");
+        N = top.N();
+        B = top.B();
+
+        // branch ends in the original node order
+        from_ = top.getFrom();
+        to_ = top.getTo();
+        fixed_ = new boolean[N];
+        for (int f : top.fixedNodes()) fixed_[f] = true;
+
+        // node to branch adjacency, self-loops exert no force and are left out
+        adjPtr_ = new int[N + 1];
+        for (int b = 0; b < B; b++) {
+            if (from_[b] == to_[b]) continue;
+            adjPtr_[from_[b] + 1]++;
+            adjPtr_[to_[b] + 1]++;
+        }
+        for (int i = 0; i < N; i++) adjPtr_[i + 1] += adjPtr_[i];
+        adjBranch_ = new int[adjPtr_[N]];
+        adjOther_ = new int[adjPtr_[N]];
+        int[] next = Arrays.copyOf(adjPtr_, N);
+        for (int b = 0; b < B; b++) {
+            int i = from_[b], j = to_[b];
+            if (i == j) continue;
+            adjBranch_[next[i]] = b;
+            adjOther_[next[i]++] = j;
+            adjBranch_[next[j]] = b;
+            adjOther_[next[j]++] = i;
+        }
+
+        x_ = new double[N];  y_ = new double[N];  z_ = new double[N];
+        xn_ = new double[N]; yn_ = new double[N]; zn_ = new double[N];
+        vx_ = new double[N]; vy_ = new double[N]; vz_ = new double[N];
+        px_ = new double[N]; py_ = new double[N]; pz_ = new double[N];
+        Arrays.fill(pz_, -1);  // defaults -1 in the z axis, as ForceDensityMethod
+        t_ = new double[B];
+        s_ = new double[B];
+        L_ = new double[B];
+        q_ = new double[B];
+        Arrays.fill(q_, 1.0);
+        tolerance_ = 1e-6;
+        maxSteps_ = 100000;
+
+        // ranges of branches of equal size, ranges of nodes of equal work
+        threads_ = threads;
+        pool_ = (threads > 1) ? new ForkJoinPool(threads) : null;
+        ke_ = new double[threads];
+        res_ = new double[threads];
+        branchPass_ = new ArrayList<Callable<Void>>();
+        nodePass_ = new ArrayList<Callable<Void>>();
+        int n0 = 0;
+        for (int r = 0; r < threads; r++) {
+            final int b0 = (int) ((long) B * r / threads), b1 = (int) ((long) B * (r + 1) / threads);
+            long work = (long) (adjPtr_[N] + N) * (r + 1) / threads;
+            int n1 = n0;
+            while (n1 < N && adjPtr_[n1 + 1] + n1 + 1 <= work) n1++;
+            if (r == threads - 1) n1 = N;
+            final int lo = n0, hi = n1, range = r;
+            branchPass_.add(new Callable<Void>() {
+                public Void call() {
+                    tensions(b0, b1);
+                    return null;
+                }
+            });
+            nodePass_.add(new Callable<Void>() {
+                public Void call() {
+                    move(lo, hi, range);
+                    return null;
+                }
+            });
+            n0 = n1;
+        }
+    }
+
+    // dynamic relaxation over the graph bng, built first if needed
+    public DynamicRelaxation(BranchNodeGraph bng, int threads) {
+        this(bng.freeze(), threads);
+    }
+
+    // dynamic relaxation using one worker per available processor
+    public DynamicRelaxation(BranchNodeGraph bng) {
+        this(bng.freeze(), Runtime.getRuntime().availableProcessors());
+    }
+
+    // S E T T E R S
+
+    // set the starting position of every node, the fixed ones are the supports
+    public void setPositions(double[] x, double[] y, double[] z) {
+        if (x.length != N || y.length != N || z.length != N) throw new RuntimeException("Expected a position for each of the " + N + " nodes");
+        System.arraycopy(x, 0, x_, 0, N);
+        System.arraycopy(y, 0, y_, 0, N);
+        System.arraycopy(z, 0, z_, 0, N);
+        Arrays.fill(vx_, 0);
+        Arrays.fill(vy_, 0);
+        Arrays.fill(vz_, 0);
+    }
+
+    // set the same load on every node
+    public void setLoad(Vec3D p) {
+        Arrays.fill(px_, p.x());
+        Arrays.fill(py_, p.y());
+        Arrays.fill(pz_, p.z());
+    }
+
+    // set a load per node, indexed by node
+    public void setLoads(double[] px, double[] py, double[] pz) {
+        if (px.length != N || py.length != N || pz.length != N) throw new RuntimeException("Expected a load for each of the " + N + " nodes");
+        System.arraycopy(px, 0, px_, 0, N);
+        System.arraycopy(py, 0, py_, 0, N);
+        System.arraycopy(pz, 0, pz_, 0, N);
+    }
+
+    // branches carry the tension T = q L, the state of rest is the FDM form
+    public void setForceDensities(double[] q) {
+        if (q.length != B) throw new RuntimeException("Expected " + B + " force densities, found " + q.length);
+        q_ = q.clone();
+        k_ = null;
+        L0_ = null;
+    }
+
+    // branches are springs T = k (L - L0); cables carry no compression
+    public void setSprings(double[] k, double[] L0, boolean cable) {
+        if (k.length != B || L0.length != B) throw new RuntimeException("Expected a stiffness and rest length for each of the " + B + " branches");
+        k_ = k.clone();
+        L0_ = L0.clone();
+        cable_ = cable;
+        q_ = null;
+    }
+
+    public void setTolerance(double tol)  {  tolerance_ = tol;  }
+    public void setMaxSteps(int max)      {  maxSteps_ = max;   }
+
+    // R E L A X A T I O N
+
+    /**
+     *  moves the particles from their current positions until the largest
+     *  residual force on a free node, relative to the largest load, is
+     *  within the tolerance, or for at most maxSteps steps.
+     *  @return true if the system came to rest
+     */
+    public boolean relax() {
+        double pmax = 0;
+        for (int i = 0; i < N; i++) {
+            if (!fixed_[i]) pmax = Math.max(pmax, Math.abs(px_[i]) + Math.abs(py_[i]) + Math.abs(pz_[i]));
+        }
+        double tol = tolerance_ * Math.max(pmax, 1e-300);
+
+        double kePrev = 0;
+        steps_ = 0;
+        resets_ = 0;
+        while (true) {
+            pass(branchPass_);
+            pass(nodePass_);
+            double ke = 0, res = 0;
+            for (int r = 0; r < threads_; r++) {
+                ke += ke_[r];
+                res = Math.max(res, res_[r]);
+            }
+            residual_ = res;
+            if (res <= tol || steps_ >= maxSteps_) break;
+            steps_++;
+
+            // kinetic damping: past a peak of kinetic energy the particles
+            // stay where they were and restart at rest, otherwise they move
+            if (ke < kePrev) {
+                Arrays.fill(vx_, 0);
+                Arrays.fill(vy_, 0);
+                Arrays.fill(vz_, 0);
+                kePrev = 0;
+                resets_++;
+            } else {
+                double[] t = x_;  x_ = xn_;  xn_ = t;
+                t = y_;  y_ = yn_;  yn_ = t;
+                t = z_;  z_ = zn_;  zn_ = t;
+                kePrev = ke;
+            }
+        }
+        return residual_ <= tol;
+    }
+
+    // runs the tasks of one pass, on the pool if there is more than one
+    private void pass(List<Callable<Void>> tasks) {
+        try {
+            if (pool_ == null) {
+                tasks.get(0).call();
+                return;
+            }
+            for (Future<Void> f : pool_.invokeAll(tasks)) f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Relaxation interrupted", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Relaxation failed: " + e.getCause(), e.getCause());
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // tension over length and axial stiffness of the branches b0 to b1 - 1
+    private void tensions(int b0, int b1) {
+        double[] x = x_, y = y_, z = z_;
+        for (int b = b0; b < b1; b++) {
+            int i = from_[b], j = to_[b];
+            double u = x[i] - x[j];
+            double v = y[i] - y[j];
+            double w = z[i] - z[j];
+            double l = Math.sqrt(u * u + v * v + w * w);
+            L_[b] = l;
+            if (q_ != null) {
+                t_[b] = q_[b];
+                s_[b] = q_[b];
+            } else {
+                double T = k_[b] * (l - L0_[b]);
+                if (cable_ && T < 0) T = 0;
+                t_[b] = (l > 0) ? T / l : 0;
+                s_[b] = k_[b] + Math.max(t_[b], 0);
+            }
+        }
+    }
+
+    // residual force, new velocity and new position of the nodes lo to hi - 1
+    private void move(int lo, int hi, int range) {
+        double[] x = x_, y = y_, z = z_;
+        double[] xn = xn_, yn = yn_, zn = zn_;
+        double ke = 0, res = 0;
+        for (int i = lo; i < hi; i++) {
+            if (fixed_[i]) {
+                xn[i] = x[i];
+                yn[i] = y[i];
+                zn[i] = z[i];
+                continue;
+            }
+            double fx = px_[i], fy = py_[i], fz = pz_[i], stiffness = 0;
+            double xi = x[i], yi = y[i], zi = z[i];
+            for (int p = adjPtr_[i]; p < adjPtr_[i + 1]; p++) {
+                int b = adjBranch_[p], o = adjOther_[p];
+                double t = t_[b];
+                fx += t * (x[o] - xi);
+                fy += t * (y[o] - yi);
+                fz += t * (z[o] - zi);
+                stiffness += s_[b];
+            }
+            res = Math.max(res, Math.abs(fx) + Math.abs(fy) + Math.abs(fz));
+
+            // a mass of the incident stiffness keeps a unit time step stable
+            double m = Math.max(stiffness, 1e-12);
+            double vx = vx_[i] + fx / m, vy = vy_[i] + fy / m, vz = vz_[i] + fz / m;
+            vx_[i] = vx;
+            vy_[i] = vy;
+            vz_[i] = vz;
+            xn[i] = xi + vx;
+            yn[i] = yi + vy;
+            zn[i] = zi + vz;
+            ke += 0.5 * m * (vx * vx + vy * vy + vz * vz);
+        }
+        ke_[range] = ke;
+        res_[range] = res;
+    }
+
+    // stops the worker threads, the engine can't relax afterwards
+    public void shutdown() {  if (pool_ != null) pool_.shutdown();  }
+
+    // G E T T E R S
+
+    // copies the node positions into x, y, z, in the original node order
+    public void getPositions(double[] x, double[] y, double[] z) {
+        System.arraycopy(x_, 0, x, 0, N);
+        System.arraycopy(y_, 0, y, 0, N);
+        System.arraycopy(z_, 0, z, 0, N);
+    }
+
+    // copies the branch lengths into L
+    public void getBranchLengths(double[] L) {  System.arraycopy(L_, 0, L, 0, B);  }
+
+    // copies the branch tension forces into F
+    public void getBranchForces(double[] F) {
+        for (int b = 0; b < B; b++) F[b] = t_[b] * L_[b];
+    }
+
+    // @return the sum of F * L at the last step
+    public double getSigmaFL() {
+        double sigmaFL = 0;
+        for (int b = 0; b < B; b++) sigmaFL += t_[b] * L_[b] * L_[b];
+        return sigmaFL;
+    }
+
+    public int N()                 {  return N;           }
+    public int B()                 {  return B;           }
+    public int threads()           {  return threads_;    }
+    public double getTolerance()   {  return tolerance_;  }
+    public int getMaxSteps()       {  return maxSteps_;   }
+
+    // @return the number of steps of the last relaxation
+    public int steps() {  return steps_;  }
+
+    // @return the number of kinetic energy peaks met in the last relaxation
+    public int resets() {  return resets_;  }
+
+    // @return the largest residual force on a free node at the last step
+    public double residual() {  return residual_;  }
+
+    /**
+     *  Test client and sample execution: relaxes a square grid pinned at
+     *  its four corners with unit force densities, and compares the form
+     *  at rest with the one found by the FDM.
+     */
+    public static void main(String[] args) {
+        int m = (args.length > 0) ? Integer.parseInt(args[0]) : 30;
+        int threads = (args.length > 1) ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        int V = m * m;
+        BranchNodeGraph bng = new BranchNodeGraph(V, new int[] { 0, m - 1, m * (m - 1), V - 1 });
+        for (int j = 0; j < m; j++)
+            for (int i = 0; i < m - 1; i++) bng.addBranch(j * m + i, j * m + i + 1);
+        for (int i = 0; i < m; i++)
+            for (int j = 0; j < m - 1; j++) bng.addBranch(j * m + i, (j + 1) * m + i);
+        bng.build();
+
+        double[] xp = new double[V], yp = new double[V], zp = new double[V];
+        for (int j = 0; j < m; j++) {
+            for (int i = 0; i < m; i++) {
+                xp[j * m + i] = i * 100;
+                yp[j * m + i] = j * 100;
+            }
+        }
+        Vec3D p = new Vec3D(0, 0, -10);
+
+        DynamicRelaxation dr = new DynamicRelaxation(bng, threads);
+        dr.setPositions(xp, yp, zp);
+        dr.setLoad(p);
+        long t0 = System.nanoTime();
+        boolean rest = dr.relax();
+        long t1 = System.nanoTime();
+        dr.shutdown();
+
+        ForceDensityMethod fdm = new ForceDensityMethod(bng);
+        fdm.setBoundaryConditions(xp, yp, zp);
+        fdm.setLoad(p);
+        fdm.evalFD();
+
+        double[] x = new double[V], y = new double[V], z = new double[V];
+        dr.getPositions(x, y, z);
+        double[] sx = new double[V], sy = new double[V], sz = new double[V];
+        fdm.getPositions(sx, sy, sz);
+        double worst = 0;
+        for (int i = 0; i < V; i++) {
+            worst = Math.max(worst, Math.abs(x[i] - sx[i]) + Math.abs(y[i] - sy[i]) + Math.abs(z[i] - sz[i]));
+        }
+
+        System.out.println((rest ? "at rest" : "stopped") + " after " + dr.steps() + " steps, " + dr.resets() + " resets, "
+                + threads + " threads, " + String.format("%.1f ms", (t1 - t0) / 1e6));
+        System.out.println("largest distance from the FDM form " + worst + ", Sigma FL " + dr.getSigmaFL() + " / " + fdm.getSigmaFL());
+    }
+
+}
@@ -0,0 +1,235 @@
+/******************************************************************************
+ *  Compilation:  javac FactorizationCache.java
+ *  Execution:    java FactorizationCache
+ *  Dependencies: SparseCholeskySolver.java  SparseMatrix.java
+ *                BranchNodeGraph.java  ForceDensityMethod.java
+ *
+ *  Process-wide cache of sparse Cholesky factorizations of Dn, shared by
+ *  every ForceDensityMethod of the process. It keeps two kinds of entries:
+ *  symbolic analyses (ordering, elimination tree, pattern of L), keyed by
+ *  the structural hash of the branches and fixed nodes of a graph, and
+ *  numeric factors, keyed by the same hash and the force densities. A new
+ *  graph with a known topology skips the symbolic analysis, and with known
+ *  force densities the numeric factorization as well. A hit is confirmed
+ *  against the pattern and the values of Dn themselves, so a collision of
+ *  hashes costs a factorization, never a wrong factor.
+ *
+ *  Entries are evicted least recently used first, once their estimated
+ *  size exceeds the bound. Cached arrays are only read: a solver given a
+ *  factor from the cache copies it before an update changes it in place,
+ *  and the cache keeps a copy of a factor handed to it, so the solver
+ *  goes on with its own arrays.
+ *
+ *  @author Alexandros Haridis | Digital Structures, MIT
+ ******************************************************************************/
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public final class FactorizationCache {
+
+    private static final FactorizationCache INSTANCE = new FactorizationCache();
+
+    // key of an entry, numeric entries also hash the force densities
+    private static final class Key {
+        final long structure, q;
+        final boolean numeric;
+
+        Key(long structure, long q, boolean numeric) {
+            this.structure = structure;
+            this.q = q;
+            this.numeric = numeric;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return k.structure == structure && k.q == q && k.numeric == numeric;
+        }
+
+        public int hashCode() {
+            long h = structure * 31 + q;
+            return (int) (h ^ (h >>> 32)) + (numeric ? 1 : 0);
+        }
+    }
+
+    // a symbolic analysis, and for numeric entries the factor and the values of Dn it factors
+    private static final class Entry {
+        final SparseCholeskySolver.Symbolic S;
+        final double[] Ax;
+        final int[] Li;
+        final double[] Lx;
+        final long bytes;
+
+        Entry(SparseCholeskySolver.Symbolic S, double[] Ax, int[] Li, double[] Lx) {
+            this.S = S;
+            this.Ax = Ax;
+            this.Li = Li;
+            this.Lx = Lx;
+            this.bytes = (Ax == null) ? symbolicBytes(S) : 12L * Li.length + 8L * Ax.length;
+        }
+    }
+
+    private final LinkedHashMap<Key, Entry> entries_ = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private long maxBytes_ = 64L << 20;  // bound on the estimated size of all entries
+    private long bytes_;                 // estimated size of all entries
+    private long symbolicHits_, symbolicMisses_, numericHits_, numericMisses_, evictions_;
+
+    private FactorizationCache() { }
+
+    // @return the cache of this process
+    public static FactorizationCache get() {  return INSTANCE;  }
+
+    /**
+     *  factors A = Dn of the graph with structural hash structure and the
+     *  force densities q with the given solver, taking the symbolic analysis
+     *  and the factor from the cache when they are there, and leaving both
+     *  in the cache otherwise
+     */
+    public void factor(SparseCholeskySolver solver, long structure, double[] q, SparseMatrix A) {
+        if (A.rows() != A.cols()) throw new RuntimeException("Matrix must be square");
+        Key sk = new Key(structure, 0, false);
+        Key nk = new Key(structure, hash(q), true);
+        Entry symbolic, numeric;
+        synchronized (this) {
+            if (maxBytes_ == 0) {
+                solver.factor(A);
+                return;
+            }
+            numeric = entries_.get(nk);
+            symbolic = entries_.get(sk);
+        }
+
+        // the factor of the same pattern and values, taken as is
+        if (numeric != null && numeric.S.matches(A) && sameValues(numeric.Ax, A)) {
+            solver.use(numeric.S, numeric.Li, numeric.Lx);
+            count(true, true);
+            return;
+        }
+        count(true, false);
+
+        // otherwise a factorization, with the analysis of the same pattern if known
+        boolean known = symbolic != null && symbolic.S.matches(A);
+        if (known) solver.use(symbolic.S);
+        count(false, known);
+        solver.factor(A);
+
+        synchronized (this) {
+            if (!known) put(sk, new Entry(solver.symbolic(), null, null, null));
+            put(nk, new Entry(solver.symbolic(), Arrays.copyOf(A.values(), A.nnz()), solver.factorRows(), solver.factorValues()));
+        }
+    }
+
+    // adds an entry and evicts the least recently used ones beyond the bound
+    private void put(Key key, Entry e) {
+        if (e.bytes > maxBytes_) return;
+        Entry old = entries_.put(key, e);
+        if (old != null) bytes_ -= old.bytes;
+        bytes_ += e.bytes;
+        trim();
+    }
+
+    private void trim() {
+        Iterator<Entry> it = entries_.values().iterator();
+        while (bytes_ > maxBytes_ && it.hasNext()) {
+            bytes_ -= it.next().bytes;
+            it.remove();
+            evictions_++;
+        }
+    }
+
+    private synchronized void count(boolean numeric, boolean hit) {
+        if (numeric) {
+            if (hit) numericHits_++;
+            else     numericMisses_++;
+        } else {
+            if (hit) symbolicHits_++;
+            else     symbolicMisses_++;
+        }
+    }
+
+    // are the values of A, whose pattern matches the entry, those of the entry
+    private static boolean sameValues(double[] Ax, SparseMatrix A) {
+        double[] val = A.values();
+        for (int k = 0; k < Ax.length; k++)
+            if (Double.doubleToLongBits(val[k]) != Double.doubleToLongBits(Ax[k])) return false;
+        return true;
+    }
+
+    // hash of the bits of the force densities
+    private static long hash(double[] q) {
+        long h = 0xcbf29ce484222325L;
+        for (int b = 0; b < q.length; b++) h = (h ^ Double.doubleToLongBits(q[b])) * 0x100000001b3L;
+        return h;
+    }
+
+    // estimated size of a symbolic analysis, including the pattern it keeps
+    private static long symbolicBytes(SparseCholeskySolver.Symbolic S) {
+        long ints = S.perm.length + S.pinv.length + S.parent.length + S.Lp.length
+                  + S.Cp.length + S.Ci.length + S.map.length + S.Apat.length + S.Aind.length;
+        return 4 * ints;
+    }
+
+    // set the bound on the estimated size of the cache, zero to turn it off
+    public synchronized void setMaxBytes(long bytes) {
+        if (bytes < 0) throw new RuntimeException("Cache size must be nonnegative");
+        maxBytes_ = bytes;
+        trim();
+    }
+
+    // removes all entries
+    public synchronized void clear() {
+        entries_.clear();
+        bytes_ = 0;
+    }
+
+    // G E T T E R S
+
+    public synchronized long getMaxBytes()    {  return maxBytes_;        }
+    public synchronized long bytes()          {  return bytes_;           }
+    public synchronized int size()            {  return entries_.size();  }
+    public synchronized long symbolicHits()   {  return symbolicHits_;    }
+    public synchronized long symbolicMisses() {  return symbolicMisses_;  }
+    public synchronized long numericHits()    {  return numericHits_;     }
+    public synchronized long numericMisses()  {  return numericMisses_;   }
+    public synchronized long evictions()      {  return evictions_;       }
+
+    public synchronized String toString() {
+        return String.format("%d entries, %d of %d bytes, symbolic %d/%d, numeric %d/%d hits, %d evictions",
+                entries_.size(), bytes_, maxBytes_, symbolicHits_, symbolicHits_ + symbolicMisses_,
+                numericHits_, numericHits_ + numericMisses_, evictions_);
+    }
+
+    /**
+     *  Test client and sample execution: requests on two grid sizes, each
+     *  built as a new graph, as a service would, with repeated densities.
+     */
+    public static void main(String[] args) {
+        FactorizationCache cache = FactorizationCache.get();
+        int[] sizes = { 200, 120, 200, 120, 200 };
+        for (int r = 0; r < sizes.length; r++) {
+            int m = sizes[r], V = m * m;
+            long t0 = System.nanoTime();
+            BranchNodeGraph bng = new BranchNodeGraph(V, new int[] { 0, m - 1, m * (m - 1), V - 1 });
+            for (int y = 0; y < m; y++)
+                for (int x = 0; x < m - 1; x++) bng.addBranch(y * m + x, y * m + x + 1);
+            for (int x = 0; x < m; x++)
+                for (int y = 0; y < m - 1; y++) bng.addBranch(y * m + x, (y + 1) * m + x);
+            bng.build();
+            double[] xp = new double[V], yp = new double[V], zp = new double[V];
+            for (int i = 0; i < V; i++) {
+                xp[i] = (i % m) * 100;
+                yp[i] = (i / m) * 100;
+            }
+            ForceDensityMethod fdm = new ForceDensityMethod(bng);
+            fdm.setBoundaryConditions(xp, yp, zp);
+            if (r >= 3) fdm.setForceDensity(0, 2.0);   // new densities, known topology
+            fdm.evalFD();
+            System.out.println(String.format("%d x %d  %8.2f ms  Sigma FL %.6f", m, m, (System.nanoTime() - t0) / 1e6, fdm.getSigmaFL()));
+        }
+        System.out.println(cache);
+    }
+
+}
@@ -2,15 +2,23 @@
  *  Compilation:  javac ForceDensityAPI.java
  *  Execution:    java ForceDensityAPI
  *  Dependencies: BranchNodeGraph.java  ForceDensityMethod.java  Misc.java
- *                Misc.java  Jama.Matrix  Jama.Utils  processing.core.PApplet
- *                processing.core.PFont  PeasyCam  toxi.geom.Vec3D  controlP5 
+ *                BackgroundFormFinder.java  FormFindingResult.java
+ *                FormFindingMetrics.java
+ *                Misc.java  Jama.Matrix  processing.core.PApplet
+ *                processing.core.PFont  processing.core.PShape  PeasyCam  
+ *                toxi.geom.Vec3D  controlP5 
  *
  *  This is a standalone application for exploring the <em>Force Density Method
  *  (FDM)</em> with a regular grid structure written in Java using the Processing 
  *  API for graphic elements, geometry, rendering and GUI. This application
  *  solves a grid with 36 nodes, 25 faces and 60 edges.
  *  Other combinations of values can be explored by changing the
- *  appropriate variables.
+ *  appropriate variables. The system is solved on a background thread and
+ *  the latest result is drawn, so the draw loop never waits for a solve.
+ *  In LIVE mode the system is re-solved as the load sliders move, at most
+ *  once per frame, and the solve latency is shown on screen. The METRICS 
+ *  toggle turns on FormFindingMetrics and shows the time of each stage of 
+ *  the solver live.
  *  
  *  For more information on the FDM method implemented here, see:
  *  Klaus Linkwitz, "Force Density Method," Ch.6 in Adriaenssens, S., Block
@@ -29,14 +37,12 @@
 
 import processing.core.PApplet;
 import processing.core.PFont;
+import processing.core.PShape;
 import processing.opengl.*;
 import toxi.processing.*;
 import toxi.geom.*;
-import toxi.geom.mesh.*;
-import edu.umbc.cs.maple.utils.*;
 
-import java.util.Arrays;
-import java.util.ArrayList;
+import java.nio.FloatBuffer;
 
 import controlP5.*;
 import peasy.*;
@@ -48,7 +54,6 @@ public class ForceDensityAPI extends PApplet {
 	ControlP5 cp5;
 	ToxiclibsSupport gfx;
 	PeasyCam cam;
-	JamaUtils ju;
 
 	// Window
 	int W = 1200, H = 600;
@@ -67,14 +72,27 @@ public class ForceDensityAPI extends PApplet {
 	int V = numNodesX * numNodesY;
 	int lngth     = 10 * 10;
 
-	ArrayList<Vec3D> sysstate, sysstateunknown, sysstatefixed;
 	int[] fixedN;
 
 	BranchNodeGraph bng;
 	ForceDensityMethod fdm;
+	
+	// the solver runs in the background, the draw loop reads its latest result
+	BackgroundFormFinder solver;
+	FormFindingResult shown;
+	Vec3D load;
+	
+	// in live mode a changed load is submitted at most once per frame
+	boolean live = false;
+	boolean loadChanged = false;
+	
+	// solver timings and counters on the heads-up display
+	boolean showMetrics = false;
 
-	//
-	Mesh3D mesh;
+	// retained geometry, rebuilt in place when a new result arrives
+	FloatBuffer positions;        // x, y, z of every node in the original node order
+	PShape meshShape, wireShape, nodesShape;
+	int[] meshNodes, wireNodes;   // node of each vertex of the mesh and the wireframe
 	
 	boolean drawAsMesh = true;
 	boolean drawSigmaFL = false;
@@ -93,10 +111,6 @@ public class ForceDensityAPI extends PApplet {
 	    cam.setMinimumDistance(40);
 	    cam.setMaximumDistance(1000);
 	    
-	    sysstate = new ArrayList<Vec3D>();
-	    sysstateunknown = new ArrayList<Vec3D>();
-	    sysstatefixed   = new ArrayList<Vec3D>();
-	    
 	    // set boundary conditions
 	    // the four corners of the plane are pinned (supported)
 	    fixedN = new int[4];
@@ -143,8 +157,9 @@ public class ForceDensityAPI extends PApplet {
 
 	    fdm.setBoundaryConditions(_x, _y, _z);
 	    
-	    // Matrix related operations handle
-	    ju = new JamaUtils();
+	    // fdm is owned by the background solver from here on
+	    load = new Vec3D(0, 0, -1);
+	    solver = new BackgroundFormFinder(fdm);
 	    
 	    // Controls
 	    cp5.setAutoDraw(false);
@@ -170,6 +185,26 @@ public class ForceDensityAPI extends PApplet {
 	       .setBroadcast(true)
 	       .getCaptionLabel().align(CENTER,CENTER);
 	       
+	    cp5.addToggle("tgl_live")
+	       .setLabel("LIVE")
+	       .setPosition(180, H - 190)
+	       .setSize(20, 20)
+	       .setValue(0)
+	       .setColorActive(color(0, 255, 0))
+	       .setColorForeground(color(0, 0, 255))
+	       .setColorBackground(color(240))
+	       .setColorCaptionLabel(0);
+	       
+	    cp5.addToggle("tgl_metrics")
+	       .setLabel("METRICS")
+	       .setPosition(230, H - 190)
+	       .setSize(20, 20)
+	       .setValue(0)
+	       .setColorActive(color(0, 255, 0))
+	       .setColorForeground(color(0, 0, 255))
+	       .setColorBackground(color(240))
+	       .setColorCaptionLabel(0);
+	       
 	    cp5.addButton("btn_drawAsMesh")
 	       .setLabel("Draw Mesh")
 	       .setBroadcast(false)
@@ -211,6 +246,17 @@ public class ForceDensityAPI extends PApplet {
 	    
 	    background(backgroundColor);
 	    
+	    // in live mode, solve the load the sliders left during the last frame
+	    if (live && loadChanged) {
+	        solver.submit(load);
+	        loadChanged = false;
+	        drawSigmaFL = true;
+	    }
+	    
+	    // pick up the latest result, if the solver has published a new one
+	    FormFindingResult latest = solver.latest();
+	    if (latest != null && latest != shown) show(latest);
+	    
 	    drawMeshGrid();
 	    //buildBox(WIDTH, LENGTH, 500);
 	    
@@ -233,7 +279,9 @@ public class ForceDensityAPI extends PApplet {
 	    cam.beginHUD();
 	    cp5.draw();
 	    Misc.displayMark(this, signatureFont, 30, 30);
-	    Misc.displaySigmaFl(this, drawSigmaFL, fdm.getSigmaFL(), H);
+	    Misc.displaySigmaFl(this, drawSigmaFL, (shown == null) ? 0 : shown.getSigmaFL(), H);
+	    if (shown != null) Misc.displayLatency(this, live, solver.solveNanos() / 1e6, solver.latencyNanos() / 1e6, H);
+	    if (showMetrics) Misc.displayMetrics(this, FormFindingMetrics.get(), W - 400, 60);
 	    cam.endHUD();
 	    hint(ENABLE_DEPTH_TEST);
 	}
@@ -241,128 +289,148 @@ public class ForceDensityAPI extends PApplet {
 	public void controlEvent(ControlEvent theEvent) {
 		  
 	  if (theEvent.isFrom(cp5.getController("btn_evalSys"))) {
-	      fdm.evalFD(this, bng);
-	      sysstate = fdm.getState();
-	      sysstateunknown = fdm.getStateUnknown();
-	      sysstatefixed = fdm.getStateFixed();
+	      solver.submit(load);
 	      drawSigmaFL = true;
 	  }
 	  
+	  if (theEvent.isFrom(cp5.getController("tgl_live"))) {
+	      live = theEvent.getController().getValue() != 0;
+	      loadChanged = live;
+	  }
+	  
+	  if (theEvent.isFrom(cp5.getController("tgl_metrics"))) {
+	      showMetrics = theEvent.getController().getValue() != 0;
+	      FormFindingMetrics.get().setEnabled(showMetrics);
+	  }
+	  
 	  if (theEvent.isFrom(cp5.getController("btn_drawAsMesh"))) {
 	      drawAsMesh = !drawAsMesh;
 	  }
 	  
 	  if (theEvent.isFrom(cp5.getController("sl_loadZ"))) {
-	      Vec3D currentLoad = fdm.getLoad();
-	      fdm.setLoad(new Vec3D(currentLoad.x(), currentLoad.y(), theEvent.getController().getValue()));
+	      load = new Vec3D(load.x(), load.y(), theEvent.getController().getValue());
+	      loadChanged = true;
 	  }
 	  
 	  if (theEvent.isFrom(cp5.getController("sl2D_loadXY"))) {
-	      Vec3D currentLoad = fdm.getLoad();
-	      fdm.setLoad(new Vec3D(theEvent.getController().getArrayValue(0), theEvent.getController().getArrayValue(1), currentLoad.z()));
+	      load = new Vec3D(theEvent.getController().getArrayValue(0), theEvent.getController().getArrayValue(1), load.z());
+	      loadChanged = true;
 	  }
 
 	}
 	
 	/**
-	 *  Draw the surface using the state returned from FDM
+	 *  Take over a result published by the solver as the state to draw,
+	 *  and move the cached geometry to it
+	 */
+	public void show(FormFindingResult r) {
+	    
+	    // the result is already in the original node order, so the 
+	    // coordinates are written straight into the position buffer
+	    
+	    if (positions == null) positions = FloatBuffer.allocate(3 * V);
+	    r.getPositions(positions);
+	    
+	    if (meshShape == null) buildShapes();
+	    updateShapes();
+	    shown = r;
+	}
+	
+	/**
+	 *  Build the retained shapes of the grid once: the shaded mesh, the 
+	 *  wireframe and a sphere per node. Each vertex remembers the node it
+	 *  stands for, so a new state only moves vertices in place.
+	 */
+	public void buildShapes() {
+	    
+	    // two triangles per face, repeating the original grid's topology
+	    
+	    meshNodes = new int[6 * (numNodesX - 1) * (numNodesY - 1)];
+	    int k = 0;
+	    for (int y = 0; y < numNodesX - 1; y++) {
+	        for (int x = 0; x < numNodesY - 1; x++) {
+	            int i = y * numNodesX + x;
+	            int[] face = { i, i + numNodesX, i + 1 + numNodesX, i, i + 1 + numNodesX, i + 1 };
+	            for (int n : face) meshNodes[k++] = n;
+	        }
+	    }
+	    meshShape = createShape();
+	    meshShape.beginShape(TRIANGLES);
+	    meshShape.noStroke();
+	    meshShape.fill(255, 160, 0);
+	    for (k = 0; k < meshNodes.length; k++) meshShape.vertex(0, 0, 0);
+	    meshShape.endShape();
+	    
+	    // a line per branch, horizontal then vertical
+	    
+	    wireNodes = new int[2 * (numNodesY * (numNodesX - 1) + numNodesX * (numNodesY - 1))];
+	    k = 0;
+	    for (int y = 0; y < numNodesY; y++) {
+	        for (int x = 0; x < numNodesX - 1; x++) {
+	            wireNodes[k++] = y * numNodesY + x;
+	            wireNodes[k++] = y * numNodesY + x + 1;
+	        }
+	    }
+	    for (int x = 0; x < numNodesX; x++) {
+	        for (int y = 0; y < numNodesY - 1; y++) {
+	            wireNodes[k++] = y * numNodesX + x;
+	            wireNodes[k++] = (y + 1) * numNodesX + x;
+	        }
+	    }
+	    wireShape = createShape();
+	    wireShape.beginShape(LINES);
+	    wireShape.stroke(0);
+	    wireShape.strokeWeight(1);
+	    for (k = 0; k < wireNodes.length; k++) wireShape.vertex(0, 0, 0);
+	    wireShape.endShape();
+	    
+	    // nodes
+	    
+	    sphereDetail(3);
+	    nodesShape = createShape(GROUP);
+	    for (int i = 0; i < V; i++) {
+	        PShape s = createShape(SPHERE, 4);
+	        s.setStroke(color(0));
+	        s.setFill(color(20, 250, 70));
+	        nodesShape.addChild(s);
+	    }
+	}
+	
+	/**
+	 *  Move the vertices of the retained shapes to the current positions
+	 */
+	public void updateShapes() {
+	    FloatBuffer p = positions;
+	    for (int k = 0; k < meshNodes.length; k++) {
+	        int o = 3 * meshNodes[k];
+	        meshShape.setVertex(k, p.get(o), p.get(o + 1), p.get(o + 2));
+	    }
+	    for (int k = 0; k < wireNodes.length; k++) {
+	        int o = 3 * wireNodes[k];
+	        wireShape.setVertex(k, p.get(o), p.get(o + 1), p.get(o + 2));
+	    }
+	    for (int i = 0; i < V; i++) {
+	        PShape s = nodesShape.getChild(i);
+	        s.resetMatrix();
+	        s.translate(p.get(3*i), p.get(3*i + 1), p.get(3*i + 2));
+	    }
+	}
+	
+	/**
+	 *  Draw the surface using the state returned from FDM, as retained 
+	 *  shapes that only change when a new state arrives
 	 */
 	public void drawMeshGrid() {
-
-	   if (sysstate.size() != 0) {
-	     
-	       stroke(0);
-	       fill(20, 250, 70);
-	       for (int i = 0; i < V; i++) {
-	          if (sysstate.size() > 0) {
-	              Sphere s = new Sphere(sysstate.get(i), 4);
-	              gfx.sphere(s, 3, true);
-	          }
-	       } 
-	       
-	       // Reconstruct the original topology
-	       
-	       ArrayList<Vec3D> reconstructed = new ArrayList<Vec3D>();
-	       int cntfxd = 0, cntunkn = 0;
-	   
-	       for (int i = 0; i < V; i++) {
-	           // binarySearch guarantees that the return value will be >= 0 if and only if the key is found.
-	           if (Arrays.binarySearch(fixedN, i) >= 0) {
-	               reconstructed.add(sysstatefixed.get(cntfxd++));
-	           } else {
-	               reconstructed.add(sysstateunknown.get(cntunkn++));
-	           }
-	       }
-	       
-	       // Now that the original topology is reconstructed
-	       // drawing the new grid is just a matter of repeating
-	       // the original grid's topology construction
-	       
-	       if (!drawAsMesh) { // Draw as wireframe polygon mesh
-	            
-	           strokeWeight(1);
-	           
-	           for (int y = 0; y < numNodesY; y++) {
-	              for (int x = 0; x < numNodesX - 1; x++) {
-	                  Vec3D p0 = reconstructed.get(y * numNodesY + x);
-	                  Vec3D p1 = reconstructed.get(y * numNodesY + x + 1);
-	                  
-	                  line(p0.x(), p0.y(), p0.z(), p1.x(), p1.y(), p1.z());
-	              }
-	           }
-	           
-	           for (int x = 0; x < numNodesX; x++) {
-	              for (int y = 0; y < numNodesY - 1; y++) {
-	                  Vec3D p0 = reconstructed.get(y * numNodesX + x);
-	                  Vec3D p1 = reconstructed.get((y + 1) * numNodesX + x);
-	                  
-	                  line(p0.x(), p0.y(), p0.z(), p1.x(), p1.y(), p1.z());
-	              }
-	           }
-	       
-	       } else { // draw as a shaded polygon mesh
-	           
-	           strokeWeight(1);
-	           
-	           for (int y = 0; y < numNodesY; y++) {
-	              for (int x = 0; x < numNodesX - 1; x++) {
-	                  Vec3D p0 = reconstructed.get(y * numNodesY + x);
-	                  Vec3D p1 = reconstructed.get(y * numNodesY + x + 1);
-	                  
-	                  line(p0.x(), p0.y(), p0.z(), p1.x(), p1.y(), p1.z());
-	              }
-	           }
-	           
-	           for (int x = 0; x < numNodesX; x++) {
-	              for (int y = 0; y < numNodesY - 1; y++) {
-	                  Vec3D p0 = reconstructed.get(y * numNodesX + x);
-	                  Vec3D p1 = reconstructed.get((y + 1) * numNodesX + x);
-	                  
-	                  line(p0.x(), p0.y(), p0.z(), p1.x(), p1.y(), p1.z());
-	              }
-	           }
-	           
-	           mesh = new TriangleMesh();
-	           for(int y = 0; y < numNodesX - 1; y++) {
-	              for(int x = 0; x < numNodesY - 1; x++) {
-	                int i = y * numNodesX + x;
-	                
-	                Vec3D p0 = reconstructed.get(i);
-	                Vec3D p1 = reconstructed.get(i + 1);
-	                Vec3D p2 = reconstructed.get(i + 1 + numNodesX);
-	                Vec3D p3 = reconstructed.get(i + numNodesX);
-	                
-	                mesh.addFace(p0,p3,p2);
-	                mesh.addFace(p0,p2,p1);
-	              }
-	           }
-	           
-	           fill(255,160,0);
-	           noStroke();
-	           gfx.mesh(mesh, false);
-	           
-	       }
-	   }
+	    if (meshShape == null) return;
+	    
+	    shape(nodesShape);
+	    shape(wireShape);
+	    if (drawAsMesh) shape(meshShape);  // draw as a shaded polygon mesh
+	}
+	
+	public void exit() {
+	    solver.shutdown();
+	    super.exit();
 	}
 	
 	public void keyPressed() {
@@ -1,8 +1,11 @@
 /***************************************************************************
  *  Compilation:  javac ForceDensityMethod.java
  *  Execution:    java ForceDensityMethod
- *  Dependencies: Jama.Matrix  JamaUtils  toxi.geom  BranchNodeGraph.java
- *                processing.core.PApplet
+ *  Dependencies: Jama.Matrix  toxi.geom  BranchNodeGraph.java  BranchNodeTopology.java
+ *                BranchIncidence.java  SparseMatrix.java  LinearSolver.java
+ *                SparseCholeskySolver.java  FormFindingResult.java
+ *                FormFindingWorkspace.java  FormFindingMetrics.java
+ *                FactorizationCache.java
  *
  *  An implementation of the Force Density Method (FDM) for a grid structure.
  *  Provides routines for calculating with branch-node matrix <b>C</b>, and
@@ -10,6 +13,44 @@
  *  ctively, computes vector coordinates x, y, z, the vector F for tension 
  *  forces, and structural performance as Σ*F_i*L_i, where F_i the force on 
  *  each element and L_i the length of the element.   
+ *  
+ *  The linear system Dn x = b is solved by a pluggable LinearSolver,
+ *  a sparse Cholesky factorization by default, which can be replaced per 
+ *  instance, e.g. by a preconditioned conjugate gradient solver. The
+ *  factorization is cached for the force densities it was computed for, 
+ *  so a change of load or of fixed node coordinates costs only a forward 
+ *  and back substitution. Force densities are set per branch; when only a 
+ *  few of them change, the factorization is modified with rank-1 updates 
+ *  q_i * c_i * c_i^T instead of being recomputed. The first Cholesky 
+ *  factorization of an instance goes through the process-wide 
+ *  FactorizationCache, so a new graph with a topology and force densities
+ *  seen before is not factored again.
+ *  
+ *  The computation is done in double precision and does not depend on 
+ *  Processing, so it can run headless, e.g. in batch jobs. The topology
+ *  is an immutable BranchNodeTopology, so instances on different threads
+ *  can share a single one. The load is 
+ *  either the same vector on every free node or a per-node field kept in 
+ *  flat arrays or in a (possibly memory-mapped) buffer. Several load 
+ *  cases can be evaluated together, as one block right-hand side solved 
+ *  against a single factorization. The vectors and matrices of an 
+ *  evaluation are kept in a FormFindingWorkspace allocated once per 
+ *  topology, so repeated evaluations do not allocate on the heap. The 
+ *  gradient of the sum of F_i * L_i with respect to all force densities 
+ *  is available at the cost of one more solve, by the adjoint method.
+ *  Each stage of evalFD reports its time to FormFindingMetrics when
+ *  metrics are enabled.
+ *  
+ *  The topology can be edited between evaluations without a rebuild: an
+ *  unknown node can be pinned at its boundary coordinates and released
+ *  again, and branches can be removed or added. Pinning decouples the row
+ *  and column of the node in Dn, which reaches the factorization as two
+ *  rank-1 terms per branch at the node; removing a branch is a rank-1
+ *  downdate of its force density to zero; an added branch that does not
+ *  change the patterns of Dn and Df is appended to the topology and the
+ *  workspace, keeping Dn and its factorization with any solver, and is a
+ *  rank-1 update. Any other added branch rebuilds the topology in O(B),
+ *  and one between two unknown nodes not yet joined a new factorization.
  *   
  *  For more information on the FDM method implemented here, see:
  *  Klaus Linkwitz, "Force Density Method," Ch.6 in Adriaenssens, S., Block
@@ -19,31 +60,62 @@
  *  @author Alexandros Haridis | Digital Structures, MIT
  ***************************************************************************/
 
-import processing.core.PApplet;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 
-import edu.umbc.cs.maple.utils.JamaUtils;
 import toxi.geom.*;
 
 public class ForceDensityMethod {
 	
-    private BranchNodeGraph bng_;     // internal branch node graph
-    private Vec3D p_;                 // load force
-    private Jama.Matrix x_, y_, z_;   // evaluated coordinate vectors & boundary conditions
+    private BranchNodeTopology top_;  // topology, shared read only, replaced when a branch is added
+    private Vec3D p_;                 // load force, the same on every node
+    private double[] px_, py_, pz_;   // per-node load field, or null
+    private DoubleBuffer pxyz_;       // per-node load field as interleaved x, y, z, or null
+    private double[] x_, y_, z_;      // evaluated coordinates, [unknown fixed] order
     private ArrayList<Vec3D> state_;  // state of the system after applying FDM
-    private Jama.Matrix sigmaFL_;     // structural performance measure
-    private Jama.Matrix F_;           // branch tension forces
+    private double sigmaFL_;          // structural performance measure
+    private double[] F_;              // branch tension forces
+    private double[] L_;              // branch lengths
     private double[] xp_, yp_, zp_;   // 
+    private LinearSolver solver_;     // solver for Dn x = b
     
-    private JamaUtils ju;
+    private FormFindingWorkspace ws_;          // memory and factorization of the current topology
+    private double[] q_;                       // force density of each branch
+    private boolean[] pinned_;                 // unknown columns held at their boundary coordinates
+    private int pins_;                         // number of pinned columns
     
-    // constructor
-    public ForceDensityMethod(BranchNodeGraph bng) {
-        bng_ = bng;
+    // a change of more densities than this is refactored rather than updated
+    private static final int MAX_RANK_UPDATES = 64;
+    // updates accumulate round-off, so the factorization is renewed after this many
+    private static final int MAX_UPDATES_BEFORE_REFACTOR = 4096;
+    
+    // solver over a topology, which other instances may share on other threads
+    public ForceDensityMethod(BranchNodeTopology top) {
+        top_ = top;
         p_ = new Vec3D(0, 0, -1); // defaults -1 in the z axis
         state_ = new ArrayList<Vec3D>();
-        sigmaFL_ = null;
+        sigmaFL_ = 0;
         F_ = null;
+        L_ = null;
+        solver_ = new SparseCholeskySolver();
+        q_ = new double[top.B()];
+        Arrays.fill(q_, 1.0);  // defaults to a unit force density on every branch
+        pinned_ = new boolean[top.unknown()];
+        pins_ = 0;
+    }
+    
+    // solver over the topology of bng, built first if needed
+    public ForceDensityMethod(BranchNodeGraph bng) {
+        this(bng.freeze());
+    }
+    
+    // set the strategy used to solve Dn x = b
+    public void setSolver(LinearSolver solver) {
+        if (solver == null) throw new RuntimeException("Solver must not be null");
+        solver_ = solver;
+        if (ws_ != null) ws_.factored = false;
     }
     
     // 
@@ -53,93 +125,550 @@ public class ForceDensityMethod {
         zp_ = (double[]) zp;
     }
     
-    //
-    public void evalFD(PApplet p5, final BranchNodeGraph bng) { 
+    // evaluates the system with the current boundary conditions, force densities and load
+    public void evalFD() { 
         
-        x_ = new Jama.Matrix(xp_, bng_.N());
-        y_ = new Jama.Matrix(yp_, bng_.N());
-        z_ = new Jama.Matrix(zp_, bng_.N());
-         
-        int[] n = (int[]) bng_.getUnknown();
-        int[] f = (int[]) bng_.getFixed();
+        if (q_.length != top_.B()) throw new RuntimeException("Expected " + top_.B() + " force densities, found " + q_.length);
+        long t = FormFindingMetrics.start(), a = FormFindingMetrics.allocated();
         
-        Jama.Matrix xn = ju.getrows(x_, n);
-        Jama.Matrix xf = ju.getrows(x_, f);
-        Jama.Matrix yn = ju.getrows(y_, n);
-        Jama.Matrix yf = ju.getrows(y_, f);
-        Jama.Matrix zn = ju.getrows(z_, n);
-        Jama.Matrix zf = ju.getrows(z_, f); 
-       
-        x_ = ju.rowAppend(xn, xf);
-        y_ = ju.rowAppend(yn, yf);
-        z_ = ju.rowAppend(zn, zf); 
+        // all intermediate results live in the workspace of the topology, 
+        // so an evaluation allocates nothing once Dn has been factored
         
-        // Determine force densities
+        FormFindingWorkspace ws = workspace();
+        BranchIncidence inc = ws.inc;
+        int[] n = top_.unknownNodes();
+        int[] node = top_.nodeOfColumn();
+        int N = node.length, nn = n.length;
         
-        Jama.Matrix q = ju.ones(bng_.B(), 1);
-        Jama.Matrix Q = Misc.makeDiagonal(q);
+        // order the coordinates as [unknown fixed]
         
-        Jama.Matrix Dn = (bng.Cn()).transpose().times(Q).times(bng.Cn());
-        Jama.Matrix Df = (bng.Cn()).transpose().times(Q).times(bng.Cf());
+        double[] x = ws.x, y = ws.y, z = ws.z, Xf = ws.Xf;
+        for (int c = 0; c < N; c++) {
+            x[c] = xp_[node[c]];
+            y[c] = yp_[node[c]];
+            z[c] = zp_[node[c]];
+        }
+        for (int c = nn, o = 0; c < N; c++, o += 3) {
+            Xf[o]     = x[c];
+            Xf[o + 1] = y[c];
+            Xf[o + 2] = z[c];
+        }
         
-        // Solve Ax = b
+        // Assemble and factor Dn only if the force densities changed since 
+        // the last evaluation, otherwise the cached factorization is reused
         
-        Jama.Matrix DfXf = (Df.times(xf)).uminus();
-        Jama.Matrix DfYf = (Df.times(yf)).uminus();
-        Jama.Matrix DfZf = (Df.times(zf)).uminus();
+        factorDn(ws, q_);
         
-        Jama.Matrix tmpX = ju.ones(DfXf.getRowDimension(), DfXf.getColumnDimension());
-        Jama.Matrix tmpY = ju.ones(DfYf.getRowDimension(), DfYf.getColumnDimension());
-        Jama.Matrix tmpZ = ju.ones(DfZf.getRowDimension(), DfZf.getColumnDimension());
-        tmpX.timesEquals(p_.x());
-        tmpY.timesEquals(p_.y());
-        tmpZ.timesEquals(p_.z());
+        // Solve Dn [xn yn zn] = P - Df [xf yf zf] for the three coordinates 
+        // at once, as a packed n x 3 right-hand side
         
-        Jama.Matrix Bx = DfXf.plus(tmpX);
-        Jama.Matrix By = DfYf.plus(tmpY);
-        Jama.Matrix Bz = DfZf.plus(tmpZ);
+        double[] Bp = ws.Bp, Xn = ws.Xn;
+        long ts = FormFindingMetrics.start();
+        ws.Df.times(Xf, Bp, 3);
+        addLoads(n, Bp);
+        if (pins_ > 0) pin(ws, Bp, 3, false);
+        solve(Bp, Xn, 3);
+        if (pins_ > 0) pin(ws, Xn, 3, true);
+        FormFindingMetrics.stop(FormFindingMetrics.Stage.SOLVE, ts);
         
-        xn = Dn.solve(Bx);
-        yn = Dn.solve(By);
-        zn = Dn.solve(Bz);
+        for (int i = 0; i < nn; i++) {
+            x[i] = Xn[3*i];
+            y[i] = Xn[3*i + 1];
+            z[i] = Xn[3*i + 2];
+        }
         
-        // concatenate 
+        // compute the length and tension force acting on each branch,
+        // and the performance as the sum of F_i * L_i, in one pass
         
-        x_ = ju.rowAppend(xn, xf);
-        y_ = ju.rowAppend(yn, yf);
-        z_ = ju.rowAppend(zn, zf);
+        long tp = FormFindingMetrics.start();
+        sigmaFL_ = inc.lengthsAndForces(x, y, z, q_, ws.L, ws.F);
+        FormFindingMetrics.stop(FormFindingMetrics.Stage.POST, tp);
+        x_ = x;
+        y_ = y;
+        z_ = z;
+        L_ = ws.L;
+        F_ = ws.F;
         
-        //
+        FormFindingMetrics.allocatedSince(a);
+        FormFindingMetrics.stop(FormFindingMetrics.Stage.EVALUATE, t);
+    }
+    
+    // solves Dn X = B through the current solver, counting the solve and its iterations
+    private void solve(double[] B, double[] X, int k) {
+        solver_.solve(B, X, k);
+        FormFindingMetrics.add(FormFindingMetrics.Counter.SOLVES, 1);
+        if (solver_ instanceof ConjugateGradientSolver) {
+            FormFindingMetrics.add(FormFindingMetrics.Counter.SOLVER_ITERATIONS, ((ConjugateGradientSolver) solver_).iterations());
+        } else if (solver_ instanceof GridMultigridSolver) {
+            FormFindingMetrics.add(FormFindingMetrics.Counter.SOLVER_ITERATIONS, ((GridMultigridSolver) solver_).iterations());
+        }
+    }
+    
+    // @return the workspace of the topology, sized on first use
+    private FormFindingWorkspace workspace() {
+        if (ws_ == null) ws_ = new FormFindingWorkspace(top_.incidence());
+        return ws_;
+    }
+    
+    /**
+     *  computes the gradient g of the sum of F_i * L_i with respect to the
+     *  force density of every branch, for the form of the last evalFD(),
+     *  whose force densities must not have been changed since.
+     *  With Dn Xn = P - Df Xf, the sensitivity of the free coordinates is
+     *  folded into one adjoint solve Dn lambda = P against the factorization
+     *  already at hand, so the cost is one more substitution and an O(B) pass:
+     *      g_i = L_i^2 - 2 (Cn_i lambda) . (C_i X)
+     */
+    public void getSigmaFLGradient(double[] g) {
+        if (g.length != top_.B()) throw new RuntimeException("Expected room for " + top_.B() + " gradient entries, found " + g.length);
+        if (x_ == null) throw new RuntimeException("System has not been evaluated");
+        if (pins_ > 0) throw new RuntimeException("The gradient is not available while nodes are pinned");
+        FormFindingWorkspace ws = workspace();
+        factorDn(ws, q_);
+        double[] Pn = ws.Pn;
+        Arrays.fill(Pn, 0.0);
+        addLoads(top_.unknownNodes(), Pn);
+        long ts = FormFindingMetrics.start();
+        solve(Pn, ws.lambda, 3);
+        FormFindingMetrics.stop(FormFindingMetrics.Stage.SOLVE, ts);
+        ws.inc.sigmaFLGradient(x_, y_, z_, ws.lambda, g);
+    }
+    
+    // B = P - B for the free nodes n, with P the current load, B packed n x 3
+    private void addLoads(int[] n, double[] B) {
+        int nn = n.length;
+        if (px_ != null) {
+            for (int i = 0; i < nn; i++) {
+                int node = n[i];
+                B[3*i]     = px_[node] - B[3*i];
+                B[3*i + 1] = py_[node] - B[3*i + 1];
+                B[3*i + 2] = pz_[node] - B[3*i + 2];
+            }
+        } else if (pxyz_ != null) {
+            DoubleBuffer p = pxyz_;
+            for (int i = 0; i < nn; i++) {
+                int o = 3 * n[i];
+                B[3*i]     = p.get(o)     - B[3*i];
+                B[3*i + 1] = p.get(o + 1) - B[3*i + 1];
+                B[3*i + 2] = p.get(o + 2) - B[3*i + 2];
+            }
+        } else {
+            double x = p_.x(), y = p_.y(), z = p_.z();
+            for (int i = 0; i < nn; i++) {
+                B[3*i]     = x - B[3*i];
+                B[3*i + 1] = y - B[3*i + 1];
+                B[3*i + 2] = z - B[3*i + 2];
+            }
+        }
+    }
+    
+    /**
+     *  evaluates k load cases at once against a single factorization of Dn,
+     *  with the current boundary conditions and force densities. The cases
+     *  are solved as one n x 3k block right-hand side; the state returned by
+     *  getState() is left unchanged.
+     *  @return one result per load, coordinates in the original node order
+     */
+    public FormFindingResult[] evalLoadCases(Vec3D[] loads) {
+        return evalLoadCases(loads.length, loads, null, null, null);
+    }
+    
+    /**
+     *  evaluates k load cases at once as evalLoadCases(Vec3D[]), where case
+     *  c has the per-node load field (px[c], py[c], pz[c]), indexed by node
+     *  @return one result per case, coordinates in the original node order
+     */
+    public FormFindingResult[] evalLoadCases(double[][] px, double[][] py, double[][] pz) {
+        if (px.length != py.length || px.length != pz.length) throw new RuntimeException("Load fields must have the same number of cases");
+        for (int c = 0; c < px.length; c++) checkLoadField(px[c], py[c], pz[c]);
+        return evalLoadCases(px.length, null, px, py, pz);
+    }
+    
+    // block solve of k cases given either as uniform loads or as per-node load fields
+    private FormFindingResult[] evalLoadCases(int k, Vec3D[] loads, double[][] px, double[][] py, double[][] pz) {
+        if (q_.length != top_.B()) throw new RuntimeException("Expected " + top_.B() + " force densities, found " + q_.length);
+        FormFindingWorkspace ws = workspace();
+        BranchIncidence inc = ws.inc;
+        factorDn(ws, q_);
         
-        Jama.Matrix u = (bng_.C()).times(x_);
-        Jama.Matrix v = (bng_.C()).times(y_);
-        Jama.Matrix w = (bng_.C()).times(z_);
+        int N = top_.N(), B = top_.B(), w = 3 * k;
+        int[] n = top_.unknownNodes();
+        int[] node = top_.nodeOfColumn();
+        int nn = n.length, nf = N - nn;
         
-        Jama.Matrix U = Misc.makeDiagonal(u);
-        Jama.Matrix V = Misc.makeDiagonal(v);
-        Jama.Matrix W = Misc.makeDiagonal(w); 
+        // Df [xf yf zf] is shared by all cases
+        double[] Xf = new double[3 * nf];
+        for (int i = 0; i < nf; i++) {
+            Xf[3*i]     = xp_[node[nn + i]];
+            Xf[3*i + 1] = yp_[node[nn + i]];
+            Xf[3*i + 2] = zp_[node[nn + i]];
+        }
+        double[] DfXf = new double[3 * nn];
+        ws.Df.times(Xf, DfXf, 3);
         
-        Jama.Matrix L = Misc.powJAMAMatrix(p5, U.times(U).plus(V.times(V)).plus(W.times(W)), 1f/2f);
+        // block right-hand side [P_1 - Df Xf, ..., P_k - Df Xf], n x 3k
+        double[] Bp = new double[nn * w];
+        for (int i = 0; i < nn; i++) {
+            for (int c = 0; c < k; c++) {
+                int o = i * w + 3 * c;
+                if (loads != null) {
+                    Bp[o]     = loads[c].x() - DfXf[3*i];
+                    Bp[o + 1] = loads[c].y() - DfXf[3*i + 1];
+                    Bp[o + 2] = loads[c].z() - DfXf[3*i + 2];
+                } else {
+                    Bp[o]     = px[c][n[i]] - DfXf[3*i];
+                    Bp[o + 1] = py[c][n[i]] - DfXf[3*i + 1];
+                    Bp[o + 2] = pz[c][n[i]] - DfXf[3*i + 2];
+                }
+            }
+        }
+        if (pins_ > 0) pin(ws, Bp, w, false);
+        double[] Xn = new double[nn * w];
+        long ts = FormFindingMetrics.start();
+        solve(Bp, Xn, w);
+        if (pins_ > 0) pin(ws, Xn, w, true);
+        FormFindingMetrics.stop(FormFindingMetrics.Stage.SOLVE, ts);
         
-        // compute tension forces acting on each branch
-
-        F_ = L.times(q);
+        // lengths, forces and Sigma FL per case, coordinates ordered as the columns of C
+        FormFindingResult[] results = new FormFindingResult[k];
+        double[] cx = new double[N], cy = new double[N], cz = new double[N];
+        for (int i = 0; i < nf; i++) {
+            cx[nn + i] = Xf[3*i];
+            cy[nn + i] = Xf[3*i + 1];
+            cz[nn + i] = Xf[3*i + 2];
+        }
+        for (int c = 0; c < k; c++) {
+            for (int i = 0; i < nn; i++) {
+                int o = i * w + 3 * c;
+                cx[i] = Xn[o];
+                cy[i] = Xn[o + 1];
+                cz[i] = Xn[o + 2];
+            }
+            double[] F = new double[B], L = new double[B];
+            double sigmaFL = inc.lengthsAndForces(cx, cy, cz, q_, L, F);
+            
+            double[] x = new double[N], y = new double[N], z = new double[N];
+            scatter(node, cx, cy, cz, x, y, z);
+            results[c] = new FormFindingResult(c, x, y, z, F, L, sigmaFL);
+        }
+        return results;
+    }
+    
+    // assembles Dn and Df for q and factors Dn, unless already done for the same q
+    private void factorDn(FormFindingWorkspace ws, double[] q) {
+        if (ws.factored) {
+            int changes = 0;
+            for (int b = 0; b < q.length && changes <= MAX_RANK_UPDATES; b++) {
+                if (q[b] != ws.q[b]) changes++;
+            }
+            if (changes == 0) {
+                FormFindingMetrics.add(FormFindingMetrics.Counter.CACHE_HITS, 1);
+                return;
+            }
+            FormFindingMetrics.add(FormFindingMetrics.Counter.CACHE_MISSES, 1);
+            long tu = FormFindingMetrics.start();
+            if (changes <= MAX_RANK_UPDATES && ws.updates + changes <= MAX_UPDATES_BEFORE_REFACTOR && updateDn(ws, q)) {
+                ws.updates += changes;
+                FormFindingMetrics.stop(FormFindingMetrics.Stage.UPDATE, tu);
+                FormFindingMetrics.add(FormFindingMetrics.Counter.RANK_UPDATES, changes);
+                return;
+            }
+        } else {
+            FormFindingMetrics.add(FormFindingMetrics.Counter.CACHE_MISSES, 1);
+        }
+        ws.factored = false;
+        long ta = FormFindingMetrics.start();
+        ws.inc.assembleDn(q, ws.Dn.values());
+        ws.inc.assembleDf(q, ws.Df.values());
+        System.arraycopy(q, 0, ws.q, 0, q.length);
+        for (int c = 0; c < pinned_.length && pins_ > 0; c++) {
+            if (pinned_[c]) decouple(ws, c);
+        }
+        FormFindingMetrics.stop(FormFindingMetrics.Stage.ASSEMBLE, ta);
+        long tf = FormFindingMetrics.start();
+        
+        // The cache serves the first factorization of a workspace, that of a 
+        // new instance on a graph seen before; refactorizations after updates
+        // or of densities set by an optimizer bypass it, so they neither
+        // allocate nor churn it. A pinned Dn differs from the one its hash 
+        // and densities key in the cache.
+        if (solver_ instanceof SparseCholeskySolver && pins_ == 0 && ws.fresh) {
+            FactorizationCache.get().factor((SparseCholeskySolver) solver_, top_.structureHash(), q, ws.Dn);
+        } else {
+            solver_.factor(ws.Dn);
+        }
+        FormFindingMetrics.stop(FormFindingMetrics.Stage.FACTOR, tf);
+        FormFindingMetrics.add(FormFindingMetrics.Counter.FACTORIZATIONS, 1);
+        ws.factored = true;
+        ws.fresh = false;
+        ws.updates = 0;
+    }
+    
+    // applies the changed force densities as rank-1 terms (q_i - q'_i) c_i c_i^T
+    // to Dn, Df and the factorization, false if the solver needs a new factor()
+    private boolean updateDn(FormFindingWorkspace ws, double[] q) {
+        int[] wi = ws.wi;
+        double[] wx = ws.wx;
+        double[] dn = ws.Dn.values(), df = ws.Df.values();
+        for (int b = 0; b < q.length; b++) {
+            double dq = q[b] - ws.q[b];
+            if (dq == 0) continue;
+            ws.inc.addDensity(b, dq, dn, df);
+            ws.q[b] = q[b];
+            int nz = ws.inc.unknownRow(b, wi, wx);
+            if (nz == 2 && pins_ > 0 && (pinned_[wi[0]] || pinned_[wi[1]])) {
+                
+                // a branch at a pinned node only adds to the two diagonals
+                ws.inc.decouple(b, dn);
+                int o = wi[1];
+                wx[0] = 1;
+                if (!solver_.update(ws.Dn, dq, wi, wx, 1)) return false;
+                wi[0] = o;
+                if (!solver_.update(ws.Dn, dq, wi, wx, 1)) return false;
+                continue;
+            }
+            if (!solver_.update(ws.Dn, dq, wi, wx, nz)) return false;
+        }
+        return true;
+    }
+    
+    // zeroes the entries of Dn between column c and the unknown columns around it
+    private void decouple(FormFindingWorkspace ws, int c) {
+        BranchIncidence inc = ws.inc;
+        double[] dn = ws.Dn.values();
+        for (int k = 0; k < inc.degree(c); k++) inc.decouple(inc.branchAt(c, k), dn);
+    }
+    
+    /**
+     *  overwrites the pinned rows of B, n x w with k cases of 3 columns each: 
+     *  for a right-hand side, row c of a pinned column becomes Dn(c, c) times 
+     *  its coordinates, and the coupling q_b x_c it no longer has in Dn moves
+     *  to the right-hand side of each unknown neighbour; for a solution, row c
+     *  becomes the coordinates themselves
+     */
+    private void pin(FormFindingWorkspace ws, double[] B, int w, boolean solution) {
+        BranchIncidence inc = ws.inc;
+        int[] node = top_.nodeOfColumn();
+        int k = w / 3;
+        for (int c = 0; c < pinned_.length; c++) {
+            if (!pinned_[c]) continue;
+            double x = xp_[node[c]], y = yp_[node[c]], z = zp_[node[c]];
+            double d = solution ? 1 : ws.Dn.get(c, c);
+            for (int j = 0; j < k; j++) {
+                int o = c * w + 3 * j;
+                B[o]     = d * x;
+                B[o + 1] = d * y;
+                B[o + 2] = d * z;
+            }
+            if (solution) continue;
+            for (int t = 0; t < inc.degree(c); t++) {
+                int b = inc.branchAt(c, t), i = inc.other(b, c);
+                if (i >= pinned_.length || pinned_[i]) continue;
+                double qb = ws.q[b];
+                for (int j = 0; j < k; j++) {
+                    int o = i * w + 3 * j;
+                    B[o]     += qb * x;
+                    B[o + 1] += qb * y;
+                    B[o + 2] += qb * z;
+                }
+            }
+        }
+    }
+    
+    // E D I T S
+    
+    /**
+     *  holds the unknown node at its boundary coordinates, as if it were
+     *  fixed, until unpinNode(). A factored Dn is brought up to date with 
+     *  two rank-1 terms per branch between the node and an unknown neighbour.
+     */
+    public void pinNode(int node) {  setPinned(node, true);  }
+    
+    // releases a node held by pinNode(), with the rank-1 terms of pinNode() reversed
+    public void unpinNode(int node) {  setPinned(node, false);  }
+    
+    // @return true if the node is held by pinNode()
+    public boolean isPinned(int node) {
+        int c = top_.columnOfNode()[node];
+        return c < pinned_.length && pinned_[c];
+    }
+    
+    private void setPinned(int node, boolean pinned) {
+        if (node < 0 || node >= top_.N()) throw new IndexOutOfBoundsException("node " + node + " is not between 0 and " + top_.N());
+        int c = top_.columnOfNode()[node];
+        if (c >= pinned_.length) throw new RuntimeException("Node " + node + " is fixed");
+        if (pinned_[c] == pinned) return;
+        pinned_[c] = pinned;
+        pins_ += pinned ? 1 : -1;
+        
+        // The change q_b (e_c e_o^T + e_o e_c^T) of the coupling of c with 
+        // each unknown neighbour o is the difference of two rank-1 terms, 
+        // q_b/2 (e_c + e_o)(e_c + e_o)^T - q_b/2 (e_c - e_o)(e_c - e_o)^T, 
+        // applied in the order that keeps Dn positive definite in between
+        
+        FormFindingWorkspace ws = ws_;
+        if (ws == null || !ws.factored) return;
+        BranchIncidence inc = ws.inc;
+        int deg = inc.degree(c);
+        if (ws.updates + 2 * deg > MAX_UPDATES_BEFORE_REFACTOR) {
+            ws.factored = false;
+            return;
+        }
+        long tu = FormFindingMetrics.start();
+        int[] wi = ws.wi;
+        double[] wx = ws.wx;
+        double[] dn = ws.Dn.values();
+        double sign = pinned ? 1 : -1;
+        int updates = 0;
+        for (int t = 0; t < deg; t++) {
+            int b = inc.branchAt(c, t), o = inc.other(b, c);
+            if (o == c || o >= pinned_.length || pinned_[o]) continue;
+            double qb = ws.q[b];
+            if (pinned) inc.decouple(b, dn);
+            else        inc.couple(b, qb, dn);
+            wi[0] = c;
+            wi[1] = o;
+            wx[0] = 1;
+            wx[1] = sign;
+            if (!solver_.update(ws.Dn, qb / 2, wi, wx, 2)) {
+                ws.factored = false;
+                return;
+            }
+            wx[1] = -sign;
+            if (!solver_.update(ws.Dn, -qb / 2, wi, wx, 2)) {
+                ws.factored = false;
+                return;
+            }
+            updates += 2;
+        }
+        ws.updates += updates;
+        FormFindingMetrics.stop(FormFindingMetrics.Stage.UPDATE, tu);
+        FormFindingMetrics.add(FormFindingMetrics.Counter.RANK_UPDATES, updates);
+    }
+    
+    /**
+     *  removes branch b by setting its force density to zero, which the next
+     *  evaluation applies as a rank-1 downdate. The branch keeps its index,
+     *  so forces and lengths stay aligned, and carries no force until 
+     *  setForceDensity() gives it one again. 
+     */
+    public void removeBranch(int b) {  setForceDensity(b, 0);  }
+    
+    /**
+     *  adds the branch v-w with force density q to a new topology, which this
+     *  instance uses from now on; other users of the old one are unaffected.
+     *  A branch that adds no entry to the patterns of Dn and Df is appended,
+     *  the workspace and the factorization are kept, and the branch enters 
+     *  it as a rank-1 update at the next evaluation. Otherwise the topology
+     *  is rebuilt, and the factorization is kept only by a Cholesky solver
+     *  when the pattern of Dn is unchanged. The last evaluation is discarded.
+     *  @return the index of the new branch
+     */
+    public int addBranch(int v, int w, double q) {
+        BranchNodeTopology top = top_.withBranch(v, w);
+        int B = top_.B();
+        q_ = Arrays.copyOf(q_, B + 1);
+        q_[B] = q;
+        FormFindingWorkspace old = ws_;
+        top_ = top;
+        ws_ = null;
+        x_ = y_ = z_ = null;
+        F_ = L_ = null;
+        if (old == null) return B;
+        
+        // an appended branch shares Dn and Df, in which its density is still zero
+        
+        if (old.inc.samePattern(top.incidence())) {
+            ws_ = new FormFindingWorkspace(old, top.incidence());
+            return B;
+        }
         
-        // compute performance
-         
-        sigmaFL_ = F_.transpose().times(L);
+        // otherwise the new workspace starts from the densities of the old factorization,
+        // with the new branch at zero, so Dn is the matrix that was factored
         
+        FormFindingWorkspace ws = workspace();
+        System.arraycopy(old.q, 0, ws.q, 0, B);
+        ws.inc.assembleDn(ws.q, ws.Dn.values());
+        ws.inc.assembleDf(ws.q, ws.Df.values());
+        for (int c = 0; c < pinned_.length && pins_ > 0; c++) {
+            if (pinned_[c]) decouple(ws, c);
+        }
+        int[] column = top.columnOfNode();
+        int i = column[v], j = column[w], n = pinned_.length;
+        boolean fill = i != j && i < n && j < n && !old.inc.adjacent(i, j);
+        ws.factored = old.factored && !fill && solver_ instanceof SparseCholeskySolver;
+        ws.updates = old.updates;
+        return B;
+    }
+    
+    // @return the topology currently evaluated
+    public BranchNodeTopology getTopology() {  return top_;  }
+    
+    // set the force density of every branch
+    public void setForceDensities(double[] q) {
+        if (q.length != top_.B()) throw new RuntimeException("Expected " + top_.B() + " force densities, found " + q.length);
+        System.arraycopy(q, 0, q_, 0, q.length);
+    }
+    
+    // set the force density of branch b, the b-th branch added to the graph
+    public void setForceDensity(int b, double q) {
+        if (b < 0 || b >= q_.length) throw new IndexOutOfBoundsException("branch " + b + " is not between 0 and " + q_.length);
+        q_[b] = q;
     }
     
     // set the loading on each node
-    public void setLoad(Vec3D p) {  p_ = p;  }
+    public void setLoad(Vec3D p) {
+        p_ = p;
+        px_ = null;
+        py_ = null;
+        pz_ = null;
+        pxyz_ = null;
+    }
+    
+    // set a load per node, indexed by node; loads on fixed nodes are ignored. 
+    // The arrays are read on every evaluation and are not copied.
+    public void setLoads(double[] px, double[] py, double[] pz) {
+        checkLoadField(px, py, pz);
+        px_ = px;
+        py_ = py;
+        pz_ = pz;
+        pxyz_ = null;
+    }
+    
+    // set a load per node from a buffer of 3N values x0 y0 z0 x1 y1 z1 ..., 
+    // which can be memory-mapped; it is read with absolute gets only
+    public void setLoads(DoubleBuffer pxyz) {
+        if (pxyz.limit() < 3 * top_.N()) throw new RuntimeException("Expected " + 3 * top_.N() + " load values, found " + pxyz.limit());
+        pxyz_ = pxyz;
+        px_ = null;
+        py_ = null;
+        pz_ = null;
+    }
+    
+    private void checkLoadField(double[] px, double[] py, double[] pz) {
+        int N = top_.N();
+        if (px.length != N || py.length != N || pz.length != N) throw new RuntimeException("Expected a load for each of the " + N + " nodes");
+    }
+    
+    /**
+     *  copies the outcome of the last evaluation into a result that is not 
+     *  shared with this method, coordinates in the original node order
+     *  @return the result, tagged with {@code id}
+     */
+    public FormFindingResult getResult(int id) {
+        if (x_ == null) throw new RuntimeException("System has not been evaluated");
+        int N = top_.N(), B = top_.B();
+        double[] x = new double[N], y = new double[N], z = new double[N];
+        scatter(top_.nodeOfColumn(), x_, y_, z_, x, y, z);
+        return new FormFindingResult(id, x, y, z, Arrays.copyOf(F_, B), Arrays.copyOf(L_, B), sigmaFL_);
+    }
     
     // @return a container of Vec3D with coordinates the coordinate vectors computed with FDM
     public ArrayList<Vec3D> getState() {
     	
         state_ = new ArrayList<Vec3D>(); 
-        for (int i = 0; i < bng_.N(); i++) {
-            state_.add(new Vec3D((float)x_.get(i, 0), (float)y_.get(i, 0), (float)z_.get(i, 0)));
+        for (int i = 0; i < top_.N(); i++) {
+            state_.add(new Vec3D((float)x_[i], (float)y_[i], (float)z_[i]));
         }
         return state_;
         
@@ -149,8 +678,8 @@ public class ForceDensityMethod {
     public ArrayList<Vec3D> getStateUnknown() {
     	
         ArrayList<Vec3D> stateUnknown = new ArrayList<Vec3D>();
-        for (int i = 0; i < bng_.unknown(); i++) {
-            stateUnknown.add(new Vec3D((float)x_.get(i, 0), (float)y_.get(i, 0), (float)z_.get(i, 0)));
+        for (int i = 0; i < top_.unknown(); i++) {
+            stateUnknown.add(new Vec3D((float)x_[i], (float)y_[i], (float)z_[i]));
         }
         return stateUnknown;
         
@@ -160,35 +689,147 @@ public class ForceDensityMethod {
     public ArrayList<Vec3D> getStateFixed() {
     	
         ArrayList<Vec3D> stateFixed = new ArrayList<Vec3D>();
-        for (int i = 0; i < bng_.fixed(); i++) {
-            int tmpInd = i + bng_.unknown(); // get all elements with indices: unknown -> unknown + fixed
-            stateFixed.add(new Vec3D((float)x_.get(tmpInd, 0), (float)y_.get(tmpInd, 0), (float)z_.get(tmpInd, 0)));
+        for (int i = 0; i < top_.fixed(); i++) {
+            int tmpInd = i + top_.unknown(); // get all elements with indices: unknown -> unknown + fixed
+            stateFixed.add(new Vec3D((float)x_[tmpInd], (float)y_[tmpInd], (float)z_[tmpInd]));
         }
         return stateFixed;
         
     }
     
+    // copies the coordinates computed with FDM into x, y, z, ordered as getState()
+    public void getState(double[] x, double[] y, double[] z) {
+        for (int i = 0; i < top_.N(); i++) {
+            x[i] = x_[i];
+            y[i] = y_[i];
+            z[i] = z_[i];
+        }
+    }
+    
+    /**
+     *  copies the coordinates computed with FDM into x, y, z in the original
+     *  node order, so node i is at (x[i], y[i], z[i]); the arrays must hold 
+     *  at least N values each
+     */
+    public void getPositions(double[] x, double[] y, double[] z) {
+        if (x_ == null) throw new RuntimeException("System has not been evaluated");
+        scatter(top_.nodeOfColumn(), x_, y_, z_, x, y, z);
+    }
+    
+    /**
+     *  writes the coordinates computed with FDM into xyz as 3N floats 
+     *  x0 y0 z0 x1 y1 z1 ... in the original node order, starting at its 
+     *  current position, e.g. straight into a vertex buffer for rendering.
+     *  Only absolute puts are used, so the position is left unchanged.
+     */
+    public void getPositions(FloatBuffer xyz) {
+        if (x_ == null) throw new RuntimeException("System has not been evaluated");
+        int[] node = top_.nodeOfColumn();
+        if (xyz.remaining() < 3 * node.length) throw new RuntimeException("Expected room for " + 3 * node.length + " coordinates, found " + xyz.remaining());
+        int base = xyz.position();
+        for (int c = 0; c < node.length; c++) {
+            int o = base + 3 * node[c];
+            xyz.put(o,     (float) x_[c]);
+            xyz.put(o + 1, (float) y_[c]);
+            xyz.put(o + 2, (float) z_[c]);
+        }
+    }
+    
+    // copies coordinates in column order cx, cy, cz to x, y, z in node order
+    private static void scatter(int[] node, double[] cx, double[] cy, double[] cz, double[] x, double[] y, double[] z) {
+        for (int c = 0; c < node.length; c++) {
+            x[node[c]] = cx[c];
+            y[node[c]] = cy[c];
+            z[node[c]] = cz[c];
+        }
+    }
+    
+    // copies the branch tension forces into F
+    public void getBranchForces(double[] F) {  System.arraycopy(F_, 0, F, 0, F_.length);  }
+    
+    // copies the branch lengths into L
+    public void getBranchLengths(double[] L) {  System.arraycopy(L_, 0, L, 0, L_.length);  }
+    
     // @return a column matrix of branch tension forces
-    public Jama.Matrix getBranchForces() {  return F_;  }
+    public Jama.Matrix getBranchForces() {  return (F_ == null) ? null : new Jama.Matrix(F_, F_.length);  }
+    
+    // @return a column matrix of branch lengths
+    public Jama.Matrix getBranchLengths() {  return (L_ == null) ? null : new Jama.Matrix(L_, L_.length);  }
+    
+    // @return the strategy used to solve Dn x = b
+    public LinearSolver getSolver() {  return solver_;  }
+    
+    // @return a copy of the force density of each branch
+    public double[] getForceDensities() {  return q_.clone();  }
     
-    // @return the current load vector
+    // @return the current uniform load vector, which is not applied while per-node loads are set
     public Vec3D getLoad() {  return p_;  }
     
+    // @return true if a per-node load field is applied instead of the uniform load
+    public boolean hasNodeLoads() {  return px_ != null || pxyz_ != null;  }
+    
     // @return the sum of F * L
-    public float getSigmaFL() {
-      
-        double sum = 0;
-        if (sigmaFL_ != null) {
-	        for (int i = 0; i < sigmaFL_.getRowDimension(); i++) {
-	            for (int j = 0; j < sigmaFL_.getColumnDimension(); j++) {
-	                if ( i == j) {
-	                    sum += sigmaFL_.get(i, j);
-	                }
-	            }
-	        }
-        }
-        return (float)sum;
+    public double getSigmaFL() {  return sigmaFL_;  }
+    
+    /**
+     *  Test client and sample execution: a 100 x 100 grid edited between
+     *  evaluations, each edit timed and checked against a graph built anew
+     *  with the same branches and supports.
+     *  @throws RuntimeException if an edited form differs from the rebuilt one
+     */
+    public static void main(String[] args) {
+        int m = (args.length > 0) ? Integer.parseInt(args[0]) : 100;
+        int V = m * m, c = m * (m / 2) + m / 2;
+        double[] xp = new double[V], yp = new double[V], zp = new double[V];
+        for (int i = 0; i < V; i++) {
+            xp[i] = (i % m) * 100;
+            yp[i] = (i / m) * 100;
+            zp[i] = (i == c) ? 500 : 0;
+        }
+        BranchNodeGraph bng = new BranchNodeGraph(V, new int[] { 0, m - 1, m * (m - 1), V - 1 });
+        for (int y = 0; y < m; y++)
+            for (int x = 0; x < m - 1; x++) bng.addBranch(y * m + x, y * m + x + 1);
+        for (int x = 0; x < m; x++)
+            for (int y = 0; y < m - 1; y++) bng.addBranch(y * m + x, (y + 1) * m + x);
+        ForceDensityMethod fdm = new ForceDensityMethod(bng);
+        fdm.setBoundaryConditions(xp, yp, zp);
+        fdm.evalFD();
         
+        // warm up the rank-1 updates, so compilation is not timed with the edits
+        for (int k = 0; k < 20; k++) {
+            fdm.setForceDensity(k, 2.0);
+            fdm.evalFD();
+            fdm.setForceDensity(k, 1.0);
+            fdm.evalFD();
+        }
+        
+        String[] edits = { "pin the center", "remove branch 0", "double a branch", "release the center" };
+        for (int e = 0; e < edits.length; e++) {
+            long t0 = System.nanoTime();
+            if (e == 0) fdm.pinNode(c);
+            if (e == 1) fdm.removeBranch(0);
+            if (e == 2) fdm.addBranch(c, c + 1, 1.0);
+            if (e == 3) fdm.unpinNode(c);
+            fdm.evalFD();
+            double ms = (System.nanoTime() - t0) / 1e6;
+            
+            // the same form from scratch
+            int[] fixed = (e < 3) ? new int[] { 0, m - 1, c, m * (m - 1), V - 1 } : new int[] { 0, m - 1, m * (m - 1), V - 1 };
+            BranchNodeGraph ref = new BranchNodeGraph(V, fixed);
+            BranchNodeTopology top = fdm.getTopology();
+            int[] from = top.getFrom(), to = top.getTo();
+            for (int b = 0; b < top.B(); b++) ref.addBranch(from[b], to[b]);
+            ForceDensityMethod rebuilt = new ForceDensityMethod(ref);
+            rebuilt.setBoundaryConditions(xp, yp, zp);
+            rebuilt.setForceDensities(fdm.getForceDensities());
+            long t1 = System.nanoTime();
+            rebuilt.evalFD();
+            double rebuiltMs = (System.nanoTime() - t1) / 1e6;
+            double diff = Math.abs(fdm.getSigmaFL() - rebuilt.getSigmaFL());
+            System.out.println(String.format("%-20s %8.2f ms, rebuilt %8.2f ms  Sigma FL %.6f  difference %.2e", 
+                    edits[e], ms, rebuiltMs, fdm.getSigmaFL(), diff));
+            if (diff > 1e-6 * Math.abs(rebuilt.getSigmaFL())) throw new RuntimeException("Edited form differs from the rebuilt one");
+        }
     }
     
 }
@@ -0,0 +1,301 @@
+/******************************************************************************
+ *  Compilation:  javac ForceDensityOptimizer.java
+ *  Execution:    java ForceDensityOptimizer [grid size]
+ *  Dependencies: ForceDensityMethod.java  BranchNodeGraph.java  toxi.geom.Vec3D
+ *
+ *  Minimizes the structural performance measure, the sum of F_i * L_i,
+ *  over the force densities of all branches within lower and upper bounds.
+ *  Every step evaluates the form with the linear FDM and the full gradient
+ *  with one adjoint solve (ForceDensityMethod.getSigmaFLGradient), and
+ *  the densities are moved by a projected limited-memory BFGS method:
+ *  densities held at a bound are kept out of the quasi-Newton direction,
+ *  the two-loop recursion runs over the remaining ones, and a backtracking
+ *  line search along the projected path enforces sufficient decrease.
+ *
+ *  For more information on limited-memory BFGS with bounds, see:
+ *  R. Byrd, P. Lu, J. Nocedal & C. Zhu, "A Limited Memory Algorithm for
+ *  Bound Constrained Optimization," SIAM J. Sci. Comput. 16(5), 1995.
+ *
+ *  @author Alexandros Haridis | Digital Structures, MIT
+ ******************************************************************************/
+
+import java.util.Arrays;
+
+import toxi.geom.Vec3D;
+
+public class ForceDensityOptimizer {
+
+    private final ForceDensityMethod fdm_;    // linear FDM the objective is evaluated with
+    private final double[] lo_, hi_;          // bounds of each force density
+    private int memory_;                      // number of correction pairs kept
+    private int maxIterations_;               // iteration cap
+    private double tolerance_;                // largest relative sensitivity accepted
+    private int iterations_;                  // iterations of the last minimize
+    private int evaluations_;                 // form evaluations of the last minimize
+
+    // optimizer of the densities of fdm, whose boundary conditions and load are used
+    public ForceDensityOptimizer(ForceDensityMethod fdm) {
+        int B = fdm.getForceDensities().length;
+        fdm_ = fdm;
+        lo_ = new double[B];
+        hi_ = new double[B];
+        Arrays.fill(lo_, 1e-3);
+        Arrays.fill(hi_, 1e3);
+        memory_ = 10;
+        maxIterations_ = 200;
+        tolerance_ = 1e-6;
+    }
+
+    // S E T T E R S
+
+    // set the same bounds on every force density, 0 < lo <= hi
+    public void setBounds(double lo, double hi) {
+        if (!(lo > 0) || !(lo <= hi)) throw new RuntimeException("Bounds must satisfy 0 < lo <= hi");
+        Arrays.fill(lo_, lo);
+        Arrays.fill(hi_, hi);
+    }
+
+    // set the bounds of each force density, 0 < lo[i] <= hi[i]
+    public void setBounds(double[] lo, double[] hi) {
+        if (lo.length != lo_.length || hi.length != hi_.length) throw new RuntimeException("Expected " + lo_.length + " bounds");
+        for (int b = 0; b < lo.length; b++) {
+            if (!(lo[b] > 0) || !(lo[b] <= hi[b])) throw new RuntimeException("Bounds of branch " + b + " must satisfy 0 < lo <= hi");
+        }
+        System.arraycopy(lo, 0, lo_, 0, lo.length);
+        System.arraycopy(hi, 0, hi_, 0, hi.length);
+    }
+
+    public void setMemory(int m)              {  memory_ = m;           }
+    public void setMaxIterations(int max)     {  maxIterations_ = max;  }
+    public void setTolerance(double tol)      {  tolerance_ = tol;      }
+
+    // O P T I M I Z A T I O N
+
+    /**
+     *  minimizes the sum of F * L starting from the current force densities,
+     *  clipped to the bounds. The ForceDensityMethod is left evaluated for
+     *  the best densities found.
+     *  @return true if the projected gradient vanished within the tolerance
+     */
+    public boolean minimize() {
+        int B = lo_.length, m = memory_;
+        double[] x = fdm_.getForceDensities();
+        double[] g = new double[B], pg = new double[B];
+        double[] xn = new double[B], gn = new double[B], d = new double[B];
+        double[][] S = new double[m][B], Y = new double[m][B];
+        double[] rho = new double[m], alpha = new double[m];
+        int stored = 0, newest = -1;
+
+        project(x);
+        iterations_ = 0;
+        evaluations_ = 0;
+        double f = evaluate(x, g);
+        boolean converged = false;
+
+        while (true) {
+            // projected gradient, zero where the density is held by a bound;
+            // converged once no relative change of a density can change the
+            // objective by more than the tolerance, relative as well
+            double pgmax = 0;
+            for (int b = 0; b < B; b++) {
+                pg[b] = held(x, g, b) ? 0 : g[b];
+                pgmax = Math.max(pgmax, Math.abs(pg[b]) * x[b]);
+            }
+            if (pgmax <= tolerance_ * Math.abs(f)) {
+                converged = true;
+                break;
+            }
+            if (iterations_ >= maxIterations_) break;
+
+            // two-loop recursion over the free densities
+            System.arraycopy(pg, 0, d, 0, B);
+            for (int t = 0, k = newest; t < stored; t++, k = (k - 1 + m) % m) {
+                alpha[k] = rho[k] * dotFree(S[k], d, pg);
+                axpyFree(-alpha[k], Y[k], d, pg);
+            }
+            double gamma;
+            if (stored > 0) gamma = dot(S[newest], Y[newest]) / dot(Y[newest], Y[newest]);
+            else gamma = 0.01 * normInf(x) / normInf(pg);
+            for (int b = 0; b < B; b++) d[b] *= gamma;
+            for (int t = 0, k = (newest - stored + 1 + m) % m; t < stored; t++, k = (k + 1) % m) {
+                double beta = rho[k] * dotFree(Y[k], d, pg);
+                axpyFree(alpha[k] - beta, S[k], d, pg);
+            }
+            for (int b = 0; b < B; b++) d[b] = (pg[b] == 0) ? 0 : -d[b];
+
+            // fall back to steepest descent if the direction does not descend
+            if (dot(d, pg) >= 0) {
+                for (int b = 0; b < B; b++) d[b] = -gamma * pg[b];
+                stored = 0;
+            }
+
+            // backtracking along the projected path
+            double step = 1, fn = f;
+            boolean accepted = false;
+            for (int tries = 0; tries < 40; tries++) {
+                for (int b = 0; b < B; b++) xn[b] = x[b] + step * d[b];
+                project(xn);
+                double decrease = 0;
+                for (int b = 0; b < B; b++) decrease += g[b] * (xn[b] - x[b]);
+                fn = evaluate(xn, gn);
+                if (fn <= f + 1e-4 * decrease) {
+                    accepted = true;
+                    break;
+                }
+                step *= 0.5;
+            }
+            if (!accepted) {
+                evaluate(x, g);  // leave the method at the best densities
+                break;
+            }
+
+            // keep the correction pair if it has positive curvature
+            double sy = 0, yy = 0;
+            for (int b = 0; b < B; b++) {
+                double sb = xn[b] - x[b], yb = gn[b] - g[b];
+                sy += sb * yb;
+                yy += yb * yb;
+            }
+            if (sy > 1e-12 * yy) {
+                int k = (newest + 1) % m;
+                for (int b = 0; b < B; b++) {
+                    S[k][b] = xn[b] - x[b];
+                    Y[k][b] = gn[b] - g[b];
+                }
+                rho[k] = 1 / sy;
+                newest = k;
+                stored = Math.min(stored + 1, m);
+            }
+
+            double[] t = x;  x = xn;  xn = t;
+            t = g;  g = gn;  gn = t;
+            f = fn;
+            iterations_++;
+        }
+        return converged;
+    }
+
+    // evaluates the sum of F * L and its gradient at the densities q
+    private double evaluate(double[] q, double[] g) {
+        fdm_.setForceDensities(q);
+        fdm_.evalFD();
+        fdm_.getSigmaFLGradient(g);
+        evaluations_++;
+        return fdm_.getSigmaFL();
+    }
+
+    // clips the densities q to the bounds
+    private void project(double[] q) {
+        for (int b = 0; b < q.length; b++) q[b] = Math.max(lo_[b], Math.min(hi_[b], q[b]));
+    }
+
+    // true if density b sits on a bound that the gradient pushes against
+    private boolean held(double[] q, double[] g, int b) {
+        return (q[b] <= lo_[b] && g[b] > 0) || (q[b] >= hi_[b] && g[b] < 0);
+    }
+
+    // dot product of u and v over the free entries, those where pg is nonzero
+    private static double dotFree(double[] u, double[] v, double[] pg) {
+        double s = 0;
+        for (int i = 0; i < u.length; i++) if (pg[i] != 0) s += u[i] * v[i];
+        return s;
+    }
+
+    // v += a * u over the free entries, those where pg is nonzero
+    private static void axpyFree(double a, double[] u, double[] v, double[] pg) {
+        for (int i = 0; i < u.length; i++) if (pg[i] != 0) v[i] += a * u[i];
+    }
+
+    private static double dot(double[] u, double[] v) {
+        double s = 0;
+        for (int i = 0; i < u.length; i++) s += u[i] * v[i];
+        return s;
+    }
+
+    private static double normInf(double[] u) {
+        double s = 0;
+        for (int i = 0; i < u.length; i++) s = Math.max(s, Math.abs(u[i]));
+        return s;
+    }
+
+    // G E T T E R S
+
+    public ForceDensityMethod getForceDensityMethod()  {  return fdm_;            }
+    public int getMemory()                             {  return memory_;         }
+    public int getMaxIterations()                      {  return maxIterations_;  }
+    public double getTolerance()                       {  return tolerance_;      }
+
+    // @return the number of iterations of the last minimize
+    public int iterations() {  return iterations_;  }
+
+    // @return the number of form and gradient evaluations of the last minimize
+    public int evaluations() {  return evaluations_;  }
+
+    /**
+     *  Test client and sample execution: checks the adjoint gradient against
+     *  central differences on a square grid pinned at its four corners, then
+     *  minimizes the sum of F * L with densities between 0.1 and 10.
+     *  @throws RuntimeException if the gradient is off by more than 1e-4,
+     *          the minimization does not converge or does not lower the sum
+     */
+    public static void main(String[] args) {
+        int m = (args.length > 0) ? Integer.parseInt(args[0]) : 20;
+
+        int V = m * m;
+        BranchNodeGraph bng = new BranchNodeGraph(V, new int[] { 0, m - 1, m * (m - 1), V - 1 });
+        for (int j = 0; j < m; j++)
+            for (int i = 0; i < m - 1; i++) bng.addBranch(j * m + i, j * m + i + 1);
+        for (int i = 0; i < m; i++)
+            for (int j = 0; j < m - 1; j++) bng.addBranch(j * m + i, (j + 1) * m + i);
+        bng.build();
+
+        double[] xp = new double[V], yp = new double[V], zp = new double[V];
+        for (int j = 0; j < m; j++) {
+            for (int i = 0; i < m; i++) {
+                xp[j * m + i] = i * 100;
+                yp[j * m + i] = j * 100;
+            }
+        }
+        zp[V - 1] = 300;
+
+        ForceDensityMethod fdm = new ForceDensityMethod(bng);
+        fdm.setBoundaryConditions(xp, yp, zp);
+        fdm.setLoad(new Vec3D(1, 2, -10));
+        fdm.evalFD();
+        double[] g = new double[bng.B()];
+        fdm.getSigmaFLGradient(g);
+
+        // relative error of the gradient on a few branches
+        double worst = 0;
+        for (int b = 0; b < bng.B(); b += Math.max(1, bng.B() / 7)) {
+            double h = 1e-4;
+            fdm.setForceDensity(b, 1 + h);
+            fdm.evalFD();
+            double fp = fdm.getSigmaFL();
+            fdm.setForceDensity(b, 1 - h);
+            fdm.evalFD();
+            double fm = fdm.getSigmaFL();
+            fdm.setForceDensity(b, 1);
+            double fd = (fp - fm) / (2 * h);
+            worst = Math.max(worst, Math.abs(fd - g[b]) / Math.max(1, Math.abs(fd)));
+        }
+        fdm.evalFD();
+        double start = fdm.getSigmaFL();
+        System.out.println("largest relative gradient error " + worst);
+        if (worst > 1e-4) throw new RuntimeException("Gradient differs from central differences by " + worst);
+
+        ForceDensityOptimizer opt = new ForceDensityOptimizer(fdm);
+        opt.setBounds(0.1, 10);
+        opt.setTolerance(1e-5);
+        opt.setMaxIterations(1000);
+        long t0 = System.nanoTime();
+        boolean converged = opt.minimize();
+        long t1 = System.nanoTime();
+        System.out.println((converged ? "converged" : "stopped") + " after " + opt.iterations() + " iterations, "
+                + opt.evaluations() + " evaluations, " + String.format("%.1f ms", (t1 - t0) / 1e6));
+        System.out.println("Sigma FL " + start + " -> " + fdm.getSigmaFL());
+        if (!converged) throw new RuntimeException("Minimization did not converge in " + opt.iterations() + " iterations");
+        if (!(fdm.getSigmaFL() < start)) throw new RuntimeException("Sigma FL did not decrease from " + start);
+    }
+
+}
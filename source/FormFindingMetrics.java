@@ -0,0 +1,244 @@
+/******************************************************************************
+ *  Compilation:  javac FormFindingMetrics.java
+ *  Execution:    java FormFindingMetrics
+ *  Dependencies: FormFindingMetricsMBean.java  BranchNodeGraph.java
+ *                ForceDensityMethod.java
+ *
+ *  Process-wide timers and counters of the form-finding hot path: the time
+ *  spent in BranchNodeGraph.build() and in each stage of evalFD (assembly
+ *  of Dn and Df, factorization, rank-1 updates, solve, lengths and forces),
+ *  the number of solves, of factorizations and of reuses of a cached one,
+ *  solver iterations and the bytes allocated by evaluating threads.
+ *
+ *  Metrics are off by default. A disabled probe costs one volatile read,
+ *  no clock is read and nothing is recorded. Once enabled, they are
+ *  registered as a JMX MBean and every completed stage is passed on to the
+ *  listeners, on the thread that ran it. The sums are kept in LongAdders,
+ *  so threads of a BatchFormFinder do not contend on a shared counter.
+ *
+ *      long t = FormFindingMetrics.start();
+ *      ...
+ *      FormFindingMetrics.stop(FormFindingMetrics.Stage.SOLVE, t);
+ *
+ *  @author Alexandros Haridis | Digital Structures, MIT
+ ******************************************************************************/
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+public final class FormFindingMetrics implements FormFindingMetricsMBean {
+
+    public enum Stage { BUILD, ASSEMBLE, FACTOR, UPDATE, SOLVE, POST, EVALUATE }
+
+    public enum Counter { SOLVES, FACTORIZATIONS, CACHE_HITS, CACHE_MISSES, RANK_UPDATES, SOLVER_ITERATIONS, BYTES_ALLOCATED }
+
+    // receives every completed stage and counted event, on the thread of the event
+    public interface Listener {
+        void stage(Stage stage, long nanos);
+        void count(Counter counter, long n);
+    }
+
+    public static final String OBJECT_NAME = "edu.mit.digitalstructures.forcedensity:type=Metrics";
+
+    private static final Stage[] STAGES = Stage.values();
+    private static final Counter[] COUNTERS = Counter.values();
+    private static final FormFindingMetrics INSTANCE = new FormFindingMetrics();
+
+    // allocated bytes per thread, where the JVM can tell
+    private static final com.sun.management.ThreadMXBean THREADS;
+    static {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        THREADS = (threads instanceof com.sun.management.ThreadMXBean) ? (com.sun.management.ThreadMXBean) threads : null;
+    }
+
+    private static volatile boolean enabled_;
+
+    private final LongAdder[] nanos_ = adders(STAGES.length);     // total time of each stage
+    private final LongAdder[] calls_ = adders(STAGES.length);     // completions of each stage
+    private final AtomicLongArray last_ = new AtomicLongArray(STAGES.length);  // time of the latest completion
+    private final LongAdder[] counts_ = adders(COUNTERS.length);
+    private final CopyOnWriteArrayList<Listener> listeners_ = new CopyOnWriteArrayList<Listener>();
+    private boolean registered_;
+
+    private FormFindingMetrics() { }
+
+    private static LongAdder[] adders(int n) {
+        LongAdder[] a = new LongAdder[n];
+        for (int i = 0; i < n; i++) a[i] = new LongAdder();
+        return a;
+    }
+
+    // @return the metrics of this process
+    public static FormFindingMetrics get() {  return INSTANCE;  }
+
+    // P R O B E S
+
+    // @return the start time of a stage, 0 while metrics are disabled
+    public static long start() {
+        return enabled_ ? System.nanoTime() : 0;
+    }
+
+    // records a stage started at t, ignored if it was started while disabled
+    public static void stop(Stage stage, long t) {
+        if (t == 0) return;
+        long nanos = System.nanoTime() - t;
+        int s = stage.ordinal();
+        INSTANCE.nanos_[s].add(nanos);
+        INSTANCE.calls_[s].increment();
+        INSTANCE.last_.set(s, nanos);
+        if (!INSTANCE.listeners_.isEmpty()) {
+            for (Listener l : INSTANCE.listeners_) l.stage(stage, nanos);
+        }
+    }
+
+    // adds n to a counter
+    public static void add(Counter counter, long n) {
+        if (!enabled_) return;
+        INSTANCE.counts_[counter.ordinal()].add(n);
+        if (!INSTANCE.listeners_.isEmpty()) {
+            for (Listener l : INSTANCE.listeners_) l.count(counter, n);
+        }
+    }
+
+    // @return the bytes allocated so far by the current thread, -1 while disabled or unknown
+    public static long allocated() {
+        if (!enabled_ || THREADS == null) return -1;
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // counts the bytes the current thread allocated since allocated() returned a
+    public static void allocatedSince(long a) {
+        if (a < 0) return;
+        add(Counter.BYTES_ALLOCATED, allocated() - a);
+    }
+
+    // C O N T R O L
+
+    public boolean isEnabled() {  return enabled_;  }
+
+    // turns the probes on or off, registering the MBean when first turned on
+    public synchronized void setEnabled(boolean enabled) {
+        if (enabled && !registered_) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+            } catch (InstanceAlreadyExistsException e) {
+                // registered by another class loader of the same process
+            } catch (JMException e) {
+                throw new RuntimeException("Cannot register " + OBJECT_NAME, e);
+            }
+            registered_ = true;
+        }
+        enabled_ = enabled;
+    }
+
+    public void addListener(Listener l) {
+        if (l == null) throw new RuntimeException("Listener must not be null");
+        listeners_.add(l);
+    }
+
+    public void removeListener(Listener l) {  listeners_.remove(l);  }
+
+    // clears all timers and counters
+    public void reset() {
+        for (int s = 0; s < STAGES.length; s++) {
+            nanos_[s].reset();
+            calls_[s].reset();
+            last_.set(s, 0);
+        }
+        for (LongAdder c : counts_) c.reset();
+    }
+
+    // G E T T E R S
+
+    public long nanos(Stage stage)     {  return nanos_[stage.ordinal()].sum();  }
+    public long calls(Stage stage)     {  return calls_[stage.ordinal()].sum();  }
+    public long lastNanos(Stage stage) {  return last_.get(stage.ordinal());     }
+    public long count(Counter counter) {  return counts_[counter.ordinal()].sum();  }
+
+    // @return the mean time of a stage in milliseconds, 0 if it never ran
+    public double meanMillis(Stage stage) {
+        long calls = calls(stage);
+        return (calls == 0) ? 0 : nanos(stage) / 1e6 / calls;
+    }
+
+    public double getBuildMillis()    {  return nanos(Stage.BUILD) / 1e6;     }
+    public double getAssembleMillis() {  return nanos(Stage.ASSEMBLE) / 1e6;  }
+    public double getFactorMillis()   {  return nanos(Stage.FACTOR) / 1e6;    }
+    public double getUpdateMillis()   {  return nanos(Stage.UPDATE) / 1e6;    }
+    public double getSolveMillis()    {  return nanos(Stage.SOLVE) / 1e6;     }
+    public double getPostMillis()     {  return nanos(Stage.POST) / 1e6;      }
+    public double getEvaluateMillis() {  return nanos(Stage.EVALUATE) / 1e6;  }
+
+    public long getEvaluations()      {  return calls(Stage.EVALUATE);                 }
+    public long getSolves()           {  return count(Counter.SOLVES);                 }
+    public long getFactorizations()   {  return count(Counter.FACTORIZATIONS);         }
+    public long getCacheHits()        {  return count(Counter.CACHE_HITS);             }
+    public long getCacheMisses()      {  return count(Counter.CACHE_MISSES);           }
+    public long getRankUpdates()      {  return count(Counter.RANK_UPDATES);           }
+    public long getSolverIterations() {  return count(Counter.SOLVER_ITERATIONS);      }
+    public long getBytesAllocated()   {  return count(Counter.BYTES_ALLOCATED);        }
+
+    // one line per stage and counter
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        for (Stage stage : STAGES) {
+            s.append(String.format("%-9s %8d x %10.3f ms  last %10.3f ms%n",
+                    stage, calls(stage), meanMillis(stage), lastNanos(stage) / 1e6));
+        }
+        for (Counter counter : COUNTERS) {
+            s.append(String.format("%-17s %12d%n", counter, count(counter)));
+        }
+        return s.toString();
+    }
+
+    /**
+     *  Test client and sample execution: a 100 x 100 grid evaluated for a
+     *  few loads and force densities, then the metrics as JMX reports them.
+     */
+    public static void main(String[] args) throws JMException {
+        FormFindingMetrics metrics = FormFindingMetrics.get();
+        metrics.setEnabled(true);
+        final long[] events = new long[1];
+        metrics.addListener(new Listener() {
+            public void stage(Stage stage, long nanos)  {  events[0]++;  }
+            public void count(Counter counter, long n)  {  events[0]++;  }
+        });
+
+        int m = 100, V = m * m;
+        BranchNodeGraph bng = new BranchNodeGraph(V, new int[] { 0, m - 1, m * (m - 1), V - 1 });
+        for (int y = 0; y < m; y++)
+            for (int x = 0; x < m - 1; x++) bng.addBranch(y * m + x, y * m + x + 1);
+        for (int x = 0; x < m; x++)
+            for (int y = 0; y < m - 1; y++) bng.addBranch(y * m + x, (y + 1) * m + x);
+        bng.build();
+        double[] xp = new double[V], yp = new double[V], zp = new double[V];
+        for (int i = 0; i < V; i++) {
+            xp[i] = (i % m) * 100;
+            yp[i] = (i / m) * 100;
+        }
+
+        ForceDensityMethod fdm = new ForceDensityMethod(bng);
+        fdm.setBoundaryConditions(xp, yp, zp);
+        for (int k = 0; k < 10; k++) {
+            fdm.setLoad(new toxi.geom.Vec3D(0, 0, -1 - k));
+            fdm.evalFD();
+        }
+        for (int k = 0; k < 10; k++) {
+            fdm.setForceDensity(k, 2.0);
+            fdm.evalFD();
+        }
+        System.out.print(metrics);
+        System.out.println("listener events    " + events[0]);
+
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        System.out.println("JMX Evaluations    " + ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Evaluations"));
+        System.out.println("JMX SolveMillis    " + ManagementFactory.getPlatformMBeanServer().getAttribute(name, "SolveMillis"));
+    }
+
+}
@@ -0,0 +1,38 @@
+/******************************************************************************
+ *  Compilation:  javac FormFindingMetricsMBean.java
+ *  Execution:    none
+ *  Dependencies: none
+ *
+ *  Management interface of FormFindingMetrics, as seen through JMX, e.g.
+ *  in jconsole under edu.mit.digitalstructures.forcedensity:type=Metrics.
+ *  Times are totals in milliseconds since the last reset.
+ *
+ *  @author Alexandros Haridis | Digital Structures, MIT
+ ******************************************************************************/
+
+public interface FormFindingMetricsMBean {
+
+    boolean isEnabled();
+    void setEnabled(boolean enabled);
+    void reset();
+
+    // total time of each stage
+    double getBuildMillis();
+    double getAssembleMillis();
+    double getFactorMillis();
+    double getUpdateMillis();
+    double getSolveMillis();
+    double getPostMillis();
+    double getEvaluateMillis();
+
+    // counters
+    long getEvaluations();
+    long getSolves();
+    long getFactorizations();
+    long getCacheHits();
+    long getCacheMisses();
+    long getRankUpdates();
+    long getSolverIterations();
+    long getBytesAllocated();
+
+}
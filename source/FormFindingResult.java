@@ -0,0 +1,69 @@
+/******************************************************************************
+ *  Compilation:  javac FormFindingResult.java
+ *  Execution:    java FormFindingResult
+ *  Dependencies: none
+ *
+ *  Result of evaluating one LoadCase: the node coordinates in the original
+ *  node order, the length and tension force of each branch, and the
+ *  structural performance measure, the sum of F_i * L_i. A result is not
+ *  modified after it has been handed out and its getters return copies,
+ *  so it can be read from any thread.
+ *
+ *  @author Alexandros Haridis | Digital Structures, MIT
+ ******************************************************************************/
+
+import java.nio.FloatBuffer;
+
+public class FormFindingResult {
+
+    private final int id_;                    // identifier of the load case
+    private final double[] x_, y_, z_;        // node coordinates, original node order
+    private final double[] F_;                // branch tension forces
+    private final double[] L_;                // branch lengths
+    private final double sigmaFL_;            // sum of F * L
+
+    public FormFindingResult(int id, double[] x, double[] y, double[] z, double[] F, double[] L, double sigmaFL) {
+        id_ = id;
+        x_ = x;
+        y_ = y;
+        z_ = z;
+        F_ = F;
+        L_ = L;
+        sigmaFL_ = sigmaFL;
+    }
+
+    // G E T T E R S
+
+    public int id()              {  return id_;       }
+    public int N()               {  return x_.length; }
+    public int B()               {  return F_.length; }
+
+    // copies of the coordinates, forces and lengths
+    public double[] getX()       {  return x_.clone();  }
+    public double[] getY()       {  return y_.clone();  }
+    public double[] getZ()       {  return z_.clone();  }
+    public double[] getBranchForces()  {  return F_.clone();  }
+    public double[] getBranchLengths() {  return L_.clone();  }
+
+    // the arrays themselves, read only, for the writers of this package
+    double[] x()  {  return x_;  }
+    double[] y()  {  return y_;  }
+    double[] z()  {  return z_;  }
+    double[] F()  {  return F_;  }
+    double[] L()  {  return L_;  }
+
+    public double getSigmaFL()   {  return sigmaFL_;  }
+
+    // writes the coordinates into xyz as 3N floats x0 y0 z0 x1 y1 z1 ..., 
+    // from its current position, which is left unchanged
+    public void getPositions(FloatBuffer xyz) {
+        int N = x_.length, base = xyz.position();
+        if (xyz.remaining() < 3 * N) throw new RuntimeException("Expected room for " + 3 * N + " coordinates, found " + xyz.remaining());
+        for (int i = 0; i < N; i++) {
+            xyz.put(base + 3*i,     (float) x_[i]);
+            xyz.put(base + 3*i + 1, (float) y_[i]);
+            xyz.put(base + 3*i + 2, (float) z_[i]);
+        }
+    }
+
+}
@@ -0,0 +1,166 @@
+/******************************************************************************
+ *  Compilation:  javac FormFindingWorkspace.java
+ *  Execution:    java FormFindingWorkspace [grid size] [evaluations]
+ *  Dependencies: BranchIncidence.java  SparseMatrix.java
+ *                ForceDensityMethod.java  BranchNodeGraph.java
+ *                FormFindingMetrics.java
+ *
+ *  All the memory one ForceDensityMethod needs to evaluate a topology,
+ *  allocated once when the topology is first evaluated: the coordinates
+ *  in [unknown fixed] order, the packed right-hand side and solution, the
+ *  values of Dn and Df with the force densities they were assembled for,
+ *  the branch lengths and forces, and the adjoint vectors of the gradient.
+ *  Once the solver has factored Dn, repeated evaluations with new loads,
+ *  supports or a few new force densities run without allocating on the
+ *  heap.
+ *
+ *  The test client measures the bytes allocated by the evaluating thread
+ *  in steady state, over rank-1 updates and periodic refactorizations,
+ *  and fails if there are any.
+ *
+ *  @author Alexandros Haridis | Digital Structures, MIT
+ ******************************************************************************/
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+public class FormFindingWorkspace {
+
+    final BranchIncidence inc;         // topology the workspace was sized for
+    final double[] x, y, z;            // coordinates, [unknown fixed] order
+    final double[] Xf;                 // fixed coordinates, packed nf x 3
+    final double[] Bp;                 // right-hand side P - Df Xf, packed n x 3
+    final double[] Xn;                 // solution, packed n x 3, warm start of the next solve
+    final double[] Pn;                 // load on the unknown nodes, packed n x 3
+    final double[] lambda;             // adjoint solution of Dn lambda = P, packed n x 3
+    final double[] L, F;               // branch lengths and tension forces
+    final SparseMatrix Dn, Df;         // matrices of the current factorization
+    final double[] q;                  // force densities Dn and Df were assembled for
+    final int[] wi = new int[2];       // row of Cn of one branch, for rank-1 updates
+    final double[] wx = new double[2];
+    boolean factored;                  // the solver holds a factorization of Dn
+    boolean fresh = true;              // Dn has never been factored, the FactorizationCache may serve it
+    int updates;                       // rank-1 updates applied since the last factorization
+
+    // workspace for evaluating the topology inc
+    public FormFindingWorkspace(BranchIncidence inc) {
+        int N = inc.N(), B = inc.B(), nn = inc.unknown(), nf = inc.fixed();
+        this.inc = inc;
+        x = new double[N];
+        y = new double[N];
+        z = new double[N];
+        Xf = new double[3 * nf];
+        Bp = new double[3 * nn];
+        Xn = new double[3 * nn];
+        Pn = new double[3 * nn];
+        lambda = new double[3 * nn];
+        L = new double[B];
+        F = new double[B];
+        q = new double[B];
+        Dn = inc.assembleDn(q);
+        Df = inc.assembleDf(q);
+        factored = false;
+        updates = 0;
+    }
+
+    /**
+     *  workspace for inc, a branch appended to the incidence of ws with the
+     *  same patterns of Dn and Df: everything but the per-branch arrays is
+     *  taken over from ws, which must not be used any more, together with
+     *  its factorization. The new branch has a zero force density in Dn.
+     */
+    FormFindingWorkspace(FormFindingWorkspace ws, BranchIncidence inc) {
+        if (!ws.inc.samePattern(inc) || inc.B() != ws.inc.B() + 1) throw new RuntimeException("Incidence does not extend the one of the workspace");
+        int B = inc.B();
+        this.inc = inc;
+        x = ws.x;
+        y = ws.y;
+        z = ws.z;
+        Xf = ws.Xf;
+        Bp = ws.Bp;
+        Xn = ws.Xn;
+        Pn = ws.Pn;
+        lambda = ws.lambda;
+        L = Arrays.copyOf(ws.L, B);
+        F = Arrays.copyOf(ws.F, B);
+        q = Arrays.copyOf(ws.q, B);
+        Dn = ws.Dn;
+        Df = ws.Df;
+        factored = ws.factored;
+        fresh = ws.fresh;
+        updates = ws.updates;
+    }
+
+    // @return the topology the workspace was sized for
+    public BranchIncidence incidence() {  return inc;  }
+
+    /**
+     *  Test client: evaluates a square grid pinned at its corners under
+     *  changing loads and force densities, and reports the bytes allocated
+     *  after warm-up.
+     *  @throws RuntimeException if evaluations allocate in steady state, or
+     *          if they ran no rank-1 update or no refactorization
+     */
+    public static void main(String[] args) {
+        int m = (args.length > 0) ? Integer.parseInt(args[0]) : 40;
+        int evals = (args.length > 1) ? Integer.parseInt(args[1]) : 10000;
+
+        int V = m * m;
+        BranchNodeGraph bng = new BranchNodeGraph(V, new int[] { 0, m - 1, m * (m - 1), V - 1 });
+        for (int j = 0; j < m; j++)
+            for (int i = 0; i < m - 1; i++) bng.addBranch(j * m + i, j * m + i + 1);
+        for (int i = 0; i < m; i++)
+            for (int j = 0; j < m - 1; j++) bng.addBranch(j * m + i, (j + 1) * m + i);
+        bng.build();
+
+        double[] xp = new double[V], yp = new double[V], zp = new double[V];
+        for (int j = 0; j < m; j++) {
+            for (int i = 0; i < m; i++) {
+                xp[j * m + i] = i * 100;
+                yp[j * m + i] = j * 100;
+            }
+        }
+        double[] pz = new double[V];
+        double[] zero = new double[V];
+
+        ForceDensityMethod fdm = new ForceDensityMethod(bng);
+        fdm.setBoundaryConditions(xp, yp, zp);
+        fdm.setLoads(zero, zero, pz);
+        FormFindingMetrics metrics = FormFindingMetrics.get();
+        metrics.setEnabled(true);
+
+        // warm up, long enough for the periodic refactorization to be
+        // compiled as well, so no deoptimization is counted below
+        for (int k = 0; k < 10000; k++) step(fdm, pz, zp, k, m);
+
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+        long overhead = -mx.getThreadAllocatedBytes(tid);
+        overhead += mx.getThreadAllocatedBytes(tid);  // cost of the measurement itself
+        long updates = metrics.getRankUpdates(), factorizations = metrics.getFactorizations();
+        long before = mx.getThreadAllocatedBytes(tid);
+        long t0 = System.nanoTime();
+        for (int k = 0; k < evals; k++) step(fdm, pz, zp, k, m);
+        long t1 = System.nanoTime();
+        long allocated = mx.getThreadAllocatedBytes(tid) - before - overhead;
+        updates = metrics.getRankUpdates() - updates;
+        factorizations = metrics.getFactorizations() - factorizations;
+
+        System.out.println(evals + " evaluations on a " + m + "x" + m + " grid: "
+                + String.format("%.1f us each", (t1 - t0) / 1e3 / evals) + ", " + allocated + " bytes allocated, "
+                + updates + " rank-1 updates, " + factorizations + " factorizations");
+        if (updates == 0 || factorizations == 0) throw new RuntimeException("Evaluations did not update or refactor Dn");
+        if (allocated > 0) throw new RuntimeException("Steady state evaluation allocated " + allocated + " bytes");
+    }
+
+    // one evaluation with a new load, a moved support and one new force density,
+    // which differs from the one the branch had in the previous pass over all
+    private static void step(ForceDensityMethod fdm, double[] pz, double[] zp, int k, int m) {
+        int B = 2 * m * (m - 1);
+        pz[k % pz.length] = -1 - (k % 7);
+        zp[m - 1] = k % 5;
+        fdm.setForceDensity(k % B, ((k / B) % 2 == 0) ? 2 + (k % 3) : 1);
+        fdm.evalFD();
+    }
+
+}
@@ -0,0 +1,554 @@
+/******************************************************************************
+ *  Compilation:  javac GridMultigridSolver.java
+ *  Execution:    java GridMultigridSolver [grid size]
+ *  Dependencies: LinearSolver.java  SparseMatrix.java  SparseCholeskySolver.java
+ *                BranchNodeGraph.java  ForceDensityMethod.java  toxi.geom.Vec3D
+ *
+ *  Geometric multigrid solver for nets that are regular nx x ny lattices,
+ *  with nodes numbered row by row and branches between the horizontal and
+ *  vertical neighbours only, as the grids of ForceDensityAPI. On such a
+ *  net Dn has the 5-point pattern of the lattice, and for uniform force
+ *  densities it is the 5-point Laplacian. Every coarser level takes every
+ *  other lattice line in each direction; the fixed nodes keep zero
+ *  corrections on every level they fall on. The interpolation P between
+ *  levels is bilinear on the lattice, and the coarse operators are the
+ *  Galerkin products P^T A P of the actual Dn, so they also follow
+ *  non-uniform densities. One V-cycle with a symmetric Gauss-Seidel sweep
+ *  before and after the coarse correction, and a sparse Cholesky solve on
+ *  the coarsest level, preconditions conjugate gradients. A solve then
+ *  needs a handful of O(N) iterations, and factor() costs O(N).
+ *
+ *  latticeWidth() recognises the lattice from a BranchNodeGraph, and
+ *  forGraph() chooses this solver for a lattice and the general sparse
+ *  Cholesky solver for any other net.
+ *
+ *  For more information on multigrid methods, see:
+ *  W. Briggs, V. E. Henson & S. McCormick, 2000. <em>A Multigrid Tutorial</em>,
+ *  2nd ed., SIAM.
+ *
+ *  @author Alexandros Haridis | Digital Structures, MIT
+ ******************************************************************************/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import toxi.geom.Vec3D;
+
+public class GridMultigridSolver implements LinearSolver {
+
+    private static final int COARSEST = 200;  // unknowns at which coarsening stops
+
+    private final int n_;                     // unknowns of the finest level
+    private final SparseMatrix[] P_;          // interpolation from level l + 1 to level l
+    private final SparseMatrix[] R_;          // restriction, the transpose of P_[l]
+    private final SparseMatrix[] A_;          // operator of each level, A_[0] is Dn
+    private final int[][] diag_;              // position of the diagonal in each row of A_[l]
+    private final SparseCholeskySolver coarse_;
+    private double[][] x_, b_, r_;            // work vectors of each level, n_l x k
+    private double[] pr_, pz_, pp_, pq_;      // conjugate gradient vectors, n x k
+    private double[] s_;                      // one row of sums, k columns
+    private double[] rz_, rzNew_, rr_, pAp_, stop_;  // dot products and stopping residual per column
+    private boolean[] done_;                  // columns that have converged
+    private int k_;                           // columns the work vectors are sized for
+
+    private double tolerance_;                // relative residual ||b - Ax|| / ||b||
+    private int maxIterations_;               // iteration cap
+    private int iterations_;                  // iterations of the last solve
+
+    // multigrid for the Dn of the lattice bng, built first if needed
+    public GridMultigridSolver(BranchNodeGraph bng) {
+        this(bng.freeze());
+    }
+
+    // multigrid for the Dn of the lattice topology top
+    public GridMultigridSolver(BranchNodeTopology top) {
+        int nx = latticeWidth(top);
+        if (nx == 0) throw new RuntimeException("Branch node graph is not a regular lattice");
+        int ny = top.N() / nx;
+        n_ = top.unknown();
+
+        // unknown index of every lattice point, -1 at the fixed nodes
+        int[] column = top.columnOfNode();
+        int[] index = new int[top.N()];
+        for (int p = 0; p < index.length; p++) index[p] = (column[p] < n_) ? column[p] : -1;
+
+        // coarsen until the problem is small or the lattice cannot shrink
+        ArrayList<SparseMatrix> P = new ArrayList<SparseMatrix>();
+        int gx = nx, gy = ny, n = n_;
+        while (n > COARSEST && (gx > 2 || gy > 2)) {
+            int cx = coarse(gx), cy = coarse(gy);
+            int[] cindex = new int[cx * cy];
+            int nc = 0;
+            for (int J = 0; J < cy; J++) {
+                for (int I = 0; I < cx; I++) {
+                    int fine = index[fine(J, gy, cy) * gx + fine(I, gx, cx)];
+                    cindex[J * cx + I] = (fine >= 0) ? nc++ : -1;
+                }
+            }
+            P.add(interpolation(gx, gy, index, n, cx, cy, cindex, nc));
+            gx = cx;
+            gy = cy;
+            index = cindex;
+            n = nc;
+        }
+
+        int L = P.size();
+        P_ = P.toArray(new SparseMatrix[L]);
+        R_ = new SparseMatrix[L];
+        for (int l = 0; l < L; l++) R_[l] = transpose(P_[l]);
+        A_ = new SparseMatrix[L + 1];
+        diag_ = new int[L + 1][];
+        coarse_ = new SparseCholeskySolver();
+        tolerance_ = 1e-10;
+        maxIterations_ = 200;
+    }
+
+    /**
+     *  recognises a regular lattice: nodes numbered row by row, i = y * nx + x,
+     *  and one branch between every pair of horizontal and vertical neighbours
+     *  and no other branch, in either direction and any order
+     *  @return the width nx of the lattice, or 0 if top is not one
+     */
+    public static int latticeWidth(BranchNodeTopology top) {
+        int N = top.N(), B = top.B();
+        int[] from = top.fromNodes(), to = top.toNodes();
+        if (N < 2) return 0;
+
+        // the width is the index distance of the first branch not within a row
+        int nx = N;
+        for (int b = 0; b < B; b++) {
+            int d = Math.abs(from[b] - to[b]);
+            if (d != 1) {
+                nx = d;
+                break;
+            }
+        }
+        if (nx == 0 || N % nx != 0) return 0;
+        int ny = N / nx;
+        if (B != (nx - 1) * ny + nx * (ny - 1)) return 0;
+
+        // every branch is a lattice edge, and none is given twice
+        boolean[] horizontal = new boolean[N], vertical = new boolean[N];
+        for (int b = 0; b < B; b++) {
+            int v = from[b], w = to[b];
+            int lo = Math.min(v, w), d = Math.abs(v - w);
+            if (d == 1 && lo % nx != nx - 1 && !horizontal[lo]) horizontal[lo] = true;
+            else if (d == nx && !vertical[lo]) vertical[lo] = true;
+            else return 0;
+        }
+        return nx;
+    }
+
+    // @return the width of the lattice bng, built first if needed, or 0 if it is not one
+    public static int latticeWidth(BranchNodeGraph bng) {
+        return latticeWidth(bng.freeze());
+    }
+
+    // @return multigrid if bng is a lattice, sparse Cholesky otherwise
+    public static LinearSolver forGraph(BranchNodeGraph bng) {
+        return forGraph(bng.freeze());
+    }
+
+    // @return multigrid if top is a lattice, sparse Cholesky otherwise
+    public static LinearSolver forGraph(BranchNodeTopology top) {
+        if (latticeWidth(top) > 0) return new GridMultigridSolver(top);
+        return new SparseCholeskySolver();
+    }
+
+    // set the relative residual at which iteration stops
+    public void setTolerance(double tol) {  tolerance_ = tol;  }
+
+    // set the iteration cap
+    public void setMaxIterations(int max) {  maxIterations_ = max;  }
+
+    // G E T T E R S
+
+    public double getTolerance()    {  return tolerance_;     }
+    public int getMaxIterations()   {  return maxIterations_; }
+
+    // @return the number of levels, the finest included
+    public int levels() {  return A_.length;  }
+
+    // @return the number of iterations of the last solve
+    public int iterations() {  return iterations_;  }
+
+    // L A T T I C E
+
+    // points of a coarsened line of g points, every other one and the last
+    private static int coarse(int g) {  return (g > 2) ? g / 2 + 1 : g;  }
+
+    // fine point of coarse point I on a line of g fine and c coarse points
+    private static int fine(int I, int g, int c) {  return (c == g) ? I : Math.min(2 * I, g - 1);  }
+
+    // bilinear interpolation from the coarse to the fine unknowns
+    private static SparseMatrix interpolation(int gx, int gy, int[] index, int n,
+                                              int cx, int cy, int[] cindex, int nc) {
+        int[] ptr = new int[n + 1], ind = new int[4 * n];
+        double[] val = new double[4 * n];
+        int[] Ix = new int[2], Iy = new int[2];
+        double[] wx = new double[2], wy = new double[2];
+        int row = 0, nz = 0;
+        for (int y = 0; y < gy; y++) {
+            int ky = weights(y, gy, cy, Iy, wy);
+            for (int x = 0; x < gx; x++) {
+                int i = index[y * gx + x];
+                if (i < 0) continue;
+                if (i != row) throw new RuntimeException("Unknown nodes must be in lattice order");
+                int kx = weights(x, gx, cx, Ix, wx);
+                int start = nz;
+                for (int s = 0; s < ky; s++) {
+                    for (int t = 0; t < kx; t++) {
+                        int j = cindex[Iy[s] * cx + Ix[t]];
+                        if (j < 0) continue;  // no correction at a fixed node
+                        ind[nz] = j;
+                        val[nz++] = wy[s] * wx[t];
+                    }
+                }
+                sortRow(ind, val, start, nz);
+                ptr[++row] = nz;
+            }
+        }
+        return new SparseMatrix(n, nc, ptr, Arrays.copyOf(ind, nz), Arrays.copyOf(val, nz));
+    }
+
+    // coarse points and weights interpolating fine point i of a line, @return their number
+    private static int weights(int i, int g, int c, int[] I, double[] w) {
+        if (c == g) {
+            I[0] = i;
+            w[0] = 1;
+            return 1;
+        }
+        int lo = i / 2, flo = fine(lo, g, c);
+        if (flo == i) {
+            I[0] = lo;
+            w[0] = 1;
+            return 1;
+        }
+        int fhi = fine(lo + 1, g, c);
+        double t = (double) (i - flo) / (fhi - flo);
+        if (t == 1) {
+            I[0] = lo + 1;
+            w[0] = 1;
+            return 1;
+        }
+        I[0] = lo;
+        w[0] = 1 - t;
+        I[1] = lo + 1;
+        w[1] = t;
+        return 2;
+    }
+
+    // sorts the entries of a row by column, rows hold at most four
+    private static void sortRow(int[] ind, double[] val, int lo, int hi) {
+        for (int p = lo + 1; p < hi; p++) {
+            int j = ind[p];
+            double v = val[p];
+            int q = p - 1;
+            while (q >= lo && ind[q] > j) {
+                ind[q + 1] = ind[q];
+                val[q + 1] = val[q];
+                q--;
+            }
+            ind[q + 1] = j;
+            val[q + 1] = v;
+        }
+    }
+
+    // S P A R S E   P R O D U C T S
+
+    private static SparseMatrix transpose(SparseMatrix A) {
+        int m = A.rows(), n = A.cols();
+        int[] Ap = A.rowPtr(), Ai = A.colInd();
+        double[] Ax = A.values();
+        int[] ptr = new int[n + 1];
+        for (int p = 0; p < Ap[m]; p++) ptr[Ai[p] + 1]++;
+        for (int j = 0; j < n; j++) ptr[j + 1] += ptr[j];
+        int[] next = Arrays.copyOf(ptr, n), ind = new int[Ap[m]];
+        double[] val = new double[Ap[m]];
+        for (int i = 0; i < m; i++) {
+            for (int p = Ap[i]; p < Ap[i + 1]; p++) {
+                int q = next[Ai[p]]++;
+                ind[q] = i;
+                val[q] = Ax[p];
+            }
+        }
+        return new SparseMatrix(n, m, ptr, ind, val);
+    }
+
+    // C = A B, rows of C sorted by column
+    private static SparseMatrix multiply(SparseMatrix A, SparseMatrix B) {
+        int m = A.rows(), n = B.cols();
+        int[] Ap = A.rowPtr(), Ai = A.colInd(), Bp = B.rowPtr(), Bi = B.colInd();
+        double[] Ax = A.values(), Bx = B.values();
+        int[] mark = new int[n];
+        Arrays.fill(mark, -1);
+        double[] acc = new double[n];
+        int[] ptr = new int[m + 1], ind = new int[Math.max(16, Ap[m])];
+        double[] val = new double[ind.length];
+        int nz = 0;
+        for (int i = 0; i < m; i++) {
+            int start = nz;
+            for (int p = Ap[i]; p < Ap[i + 1]; p++) {
+                double a = Ax[p];
+                int k = Ai[p];
+                for (int q = Bp[k]; q < Bp[k + 1]; q++) {
+                    int j = Bi[q];
+                    if (mark[j] != i) {
+                        mark[j] = i;
+                        acc[j] = 0;
+                        if (nz == ind.length) {
+                            ind = Arrays.copyOf(ind, 2 * nz);
+                            val = Arrays.copyOf(val, 2 * nz);
+                        }
+                        ind[nz++] = j;
+                    }
+                    acc[j] += a * Bx[q];
+                }
+            }
+            Arrays.sort(ind, start, nz);
+            for (int q = start; q < nz; q++) val[q] = acc[ind[q]];
+            ptr[i + 1] = nz;
+        }
+        return new SparseMatrix(m, n, ptr, Arrays.copyOf(ind, nz), Arrays.copyOf(val, nz));
+    }
+
+    private static int[] diagonal(SparseMatrix A) {
+        int n = A.rows();
+        int[] d = new int[n];
+        for (int i = 0; i < n; i++) {
+            d[i] = A.find(i, i);
+            if (d[i] < 0 || A.values()[d[i]] <= 0) throw new RuntimeException("Matrix is not positive definite");
+        }
+        return d;
+    }
+
+    // L E V E L S
+
+    // Galerkin operators P^T A P of every level, and the coarsest one factored
+    public void factor(SparseMatrix A) {
+        if (A.rows() != n_ || A.cols() != n_) throw new RuntimeException("Expected a " + n_ + " x " + n_ + " matrix");
+        A_[0] = A;
+        diag_[0] = diagonal(A);
+        for (int l = 0; l < P_.length; l++) {
+            A_[l + 1] = multiply(R_[l], multiply(A_[l], P_[l]));
+            diag_[l + 1] = diagonal(A_[l + 1]);
+        }
+        coarse_.factor(A_[P_.length]);
+    }
+
+    // the finest level reads A directly, the coarse levels are kept as a preconditioner
+    public boolean update(SparseMatrix A, double sigma, int[] wi, double[] wx, int nz) {
+        if (A != A_[0]) return false;
+        double[] v = A.values();
+        for (int t = 0; t < nz; t++) {
+            if (v[diag_[0][wi[t]]] <= 0) return false;
+        }
+        return true;
+    }
+
+    // sizes the work vectors for k packed columns
+    private void workspace(int k) {
+        if (k_ == k && x_ != null) return;
+        int L = A_.length;
+        x_ = new double[L][];
+        b_ = new double[L][];
+        r_ = new double[L][];
+        for (int l = 0; l < L; l++) {
+            int n = (l == 0) ? n_ : P_[l - 1].cols();
+            x_[l] = new double[n * k];
+            b_[l] = new double[n * k];
+            r_[l] = new double[n * k];
+        }
+        pr_ = new double[n_ * k];
+        pz_ = new double[n_ * k];
+        pp_ = new double[n_ * k];
+        pq_ = new double[n_ * k];
+        s_ = new double[k];
+        rz_ = new double[k];
+        rzNew_ = new double[k];
+        rr_ = new double[k];
+        pAp_ = new double[k];
+        stop_ = new double[k];
+        done_ = new boolean[k];
+        k_ = k;
+    }
+
+    // x = V-cycle applied to b on level l, for k packed columns
+    private void cycle(int l, double[] b, double[] x, int k) {
+        if (l == P_.length) {
+            coarse_.solve(b, x, k);
+            return;
+        }
+        Arrays.fill(x, 0.0);
+        smooth(l, b, x, k);
+
+        // restrict the residual, correct from the next level
+        double[] r = r_[l];
+        A_[l].times(x, r, k);
+        for (int i = 0; i < r.length; i++) r[i] = b[i] - r[i];
+        R_[l].times(r, b_[l + 1], k);
+        cycle(l + 1, b_[l + 1], x_[l + 1], k);
+        P_[l].times(x_[l + 1], r, k);
+        for (int i = 0; i < r.length; i++) x[i] += r[i];
+
+        smooth(l, b, x, k);
+    }
+
+    // one symmetric Gauss-Seidel sweep, forward then backward
+    private void smooth(int l, double[] b, double[] x, int k) {
+        SparseMatrix A = A_[l];
+        int n = A.rows();
+        int[] Ap = A.rowPtr(), Ai = A.colInd(), d = diag_[l];
+        double[] Ax = A.values(), s = s_;
+        for (int sweep = 0; sweep < 2; sweep++) {
+            for (int t = 0; t < n; t++) {
+                int i = (sweep == 0) ? t : n - 1 - t;
+                int o = i * k;
+
+                // the row is applied to all columns at once, the diagonal
+                // term is taken out again afterwards
+                double aii = Ax[d[i]];
+                for (int c = 0; c < k; c++) s[c] = b[o + c] + aii * x[o + c];
+                for (int p = Ap[i]; p < Ap[i + 1]; p++) {
+                    double a = Ax[p];
+                    int xo = Ai[p] * k;
+                    for (int c = 0; c < k; c++) s[c] -= a * x[xo + c];
+                }
+                for (int c = 0; c < k; c++) x[o + c] = s[c] / aii;
+            }
+        }
+    }
+
+    // S O L V E
+
+    public void solve(double[] b, double[] x) {  solve(b, x, 1);  }
+
+    // conjugate gradients for every column, preconditioned together by one V-cycle
+    public void solve(double[] B, double[] X, int k) {
+        if (A_[0] == null) throw new RuntimeException("Matrix has not been factored");
+        workspace(k);
+        int n = n_;
+        double[] r = pr_, z = pz_, p = pp_, q = pq_;
+        double[] rz = rz_, stop = stop_, rr = rr_, pq = pAp_, rzNew = rzNew_;
+        boolean[] done = done_;
+        Arrays.fill(done, false);
+
+        for (int c = 0; c < k; c++) {
+            double bb = 0;
+            for (int i = 0; i < n; i++) bb += B[i * k + c] * B[i * k + c];
+            stop[c] = tolerance_ * Math.sqrt(bb);
+            if (bb == 0) {
+                for (int i = 0; i < n; i++) X[i * k + c] = 0;
+                done[c] = true;
+            }
+        }
+        A_[0].times(X, r, k);
+        for (int i = 0; i < r.length; i++) r[i] = B[i] - r[i];
+        cycle(0, r, z, k);
+        System.arraycopy(z, 0, p, 0, p.length);
+        dots(r, z, k, rz);
+        dots(r, r, k, rr);
+
+        iterations_ = 0;
+        while (iterations_ < maxIterations_) {
+            boolean all = true;
+            for (int c = 0; c < k; c++) {
+                if (!done[c] && Math.sqrt(rr[c]) <= stop[c]) done[c] = true;
+                all &= done[c];
+            }
+            if (all) break;
+
+            A_[0].times(p, q, k);
+            dots(p, q, k, pq);
+            for (int c = 0; c < k; c++) {
+                if (done[c]) continue;
+                double alpha = rz[c] / pq[c];
+                for (int i = 0; i < n; i++) {
+                    X[i * k + c] += alpha * p[i * k + c];
+                    r[i * k + c] -= alpha * q[i * k + c];
+                }
+            }
+            cycle(0, r, z, k);
+            dots(r, z, k, rzNew);
+            dots(r, r, k, rr);
+            for (int c = 0; c < k; c++) {
+                if (done[c]) continue;
+                double beta = rzNew[c] / rz[c];
+                rz[c] = rzNew[c];
+                for (int i = 0; i < n; i++) p[i * k + c] = z[i * k + c] + beta * p[i * k + c];
+            }
+            iterations_++;
+        }
+    }
+
+    // d[c] = u[:, c] . v[:, c] for k packed columns
+    private static void dots(double[] u, double[] v, int k, double[] d) {
+        Arrays.fill(d, 0.0);
+        for (int o = 0; o < u.length; o += k) {
+            for (int c = 0; c < k; c++) d[c] += u[o + c] * v[o + c];
+        }
+    }
+
+    /**
+     *  Test client and sample execution: a square grid pinned along its
+     *  boundary and at its four corners, solved with multigrid and with the
+     *  sparse Cholesky solver.
+     */
+    public static void main(String[] args) {
+        int m = (args.length > 0) ? Integer.parseInt(args[0]) : 300;
+
+        int V = m * m;
+        double[] xp = new double[V], yp = new double[V], zp = new double[V];
+        for (int j = 0; j < m; j++) {
+            for (int i = 0; i < m; i++) {
+                xp[j * m + i] = i * 100;
+                yp[j * m + i] = j * 100;
+            }
+        }
+        zp[V - 1] = 300;
+
+        int[] edge = new int[4 * m - 4];
+        for (int i = 0, k = 0; i < V; i++) {
+            int x = i % m, y = i / m;
+            if (x == 0 || y == 0 || x == m - 1 || y == m - 1) edge[k++] = i;
+        }
+        int[][] supports = { edge, { 0, m - 1, m * (m - 1), V - 1 } };
+        String[] names = { "boundary", "corners" };
+
+        for (int s = 0; s < supports.length; s++) {
+            BranchNodeGraph bng = new BranchNodeGraph(V, supports[s]);
+            for (int y = 0; y < m; y++)
+                for (int x = 0; x < m - 1; x++) bng.addBranch(y * m + x, y * m + x + 1);
+            for (int x = 0; x < m; x++)
+                for (int y = 0; y < m - 1; y++) bng.addBranch(y * m + x, (y + 1) * m + x);
+            bng.build();
+
+            GridMultigridSolver mg = new GridMultigridSolver(bng);
+            ForceDensityMethod a = new ForceDensityMethod(bng), c = new ForceDensityMethod(bng);
+            a.setSolver(mg);
+            c.setSolver(new SparseCholeskySolver());
+            for (ForceDensityMethod f : new ForceDensityMethod[] { a, c }) {
+                f.setBoundaryConditions(xp, yp, zp);
+                f.setLoad(new Vec3D(0, 0, -10));
+            }
+            long t0 = System.nanoTime();
+            a.evalFD();
+            long t1 = System.nanoTime();
+            c.evalFD();
+            long t2 = System.nanoTime();
+
+            double[] za = new double[V], zc = new double[V], x = new double[V], y = new double[V];
+            a.getPositions(x, y, za);
+            c.getPositions(x, y, zc);
+            double worst = 0, scale = 0;
+            for (int i = 0; i < V; i++) {
+                worst = Math.max(worst, Math.abs(za[i] - zc[i]));
+                scale = Math.max(scale, Math.abs(zc[i]));
+            }
+            System.out.println(names[s] + ": " + mg.levels() + " levels, " + mg.iterations() + " iterations, "
+                    + String.format("multigrid %.1f ms, Cholesky %.1f ms", (t1 - t0) / 1e6, (t2 - t1) / 1e6)
+                    + ", largest relative difference " + worst / scale);
+        }
+    }
+
+}
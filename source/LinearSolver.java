@@ -0,0 +1,125 @@
+/******************************************************************************
+ *  Compilation:  javac LinearSolver.java
+ *  Execution:    java LinearSolver [grid size]
+ *  Dependencies: SparseMatrix.java  SparseCholeskySolver.java
+ *                ConjugateGradientSolver.java  MinimumDegree.java
+ *                BranchNodeGraph.java  BranchIncidence.java
+ *
+ *  Strategy for solving the symmetric positive definite system Dn x = b of
+ *  the Force Density Method. An implementation is first prepared for a
+ *  matrix with factor(), which computes a factorization or a precondi-
+ *  tioner, and then solves any number of right-hand sides against it,
+ *  one at a time or packed together in a single pass. Small changes of A,
+ *  such as the force density of a single branch, are passed on as rank-1
+ *  updates so that a factorization does not have to be recomputed.
+ *
+ *  The test client solves Dn of a small grid pinned along its boundary
+ *  with every implementation and compares the solutions to Jama.
+ *
+ *  @author Alexandros Haridis | Digital Structures, MIT
+ ******************************************************************************/
+
+import java.util.Random;
+
+public interface LinearSolver {
+
+    /**
+     *  prepares the solver for the symmetric positive definite matrix {@code A}.
+     *  The solver may keep a reference to {@code A} until the next call.
+     *  @throws RuntimeException if A is not positive definite
+     */
+    void factor(SparseMatrix A);
+
+    /**
+     *  solves A x = b for the matrix of the last factor() call. On entry
+     *  {@code x} holds the initial guess used by iterative solvers.
+     */
+    void solve(double[] b, double[] x);
+
+    /**
+     *  solves A X = B for {@code k} right-hand sides at once, packed row-major
+     *  as n x k arrays, i.e. entry (i, c) at [i*k + c]. Direct solvers sweep
+     *  the factor once for all columns.
+     */
+    void solve(double[] B, double[] X, int k);
+
+    /**
+     *  brings the solver up to date after {@code A} was modified in place by
+     *  the symmetric rank-1 term sigma * w w^T, where w has {@code nz} nonzeros
+     *  with indices {@code wi} and values {@code wx}.
+     *  @return false if the change cannot be applied incrementally, in
+     *          which case factor() has to be called again
+     */
+    boolean update(SparseMatrix A, double sigma, int[] wi, double[] wx, int nz);
+
+    /**
+     *  Test client and sample execution: Dn of a grid pinned along its
+     *  boundary, with random force densities, solved by sparse Cholesky and
+     *  by PCG with each preconditioner for one and for three right-hand
+     *  sides, and checked against the dense solve of Jama.
+     *  @throws RuntimeException if the ordering is not a permutation or a
+     *          solution differs from the one of Jama
+     */
+    public static void main(String[] args) {
+        int m = (args.length > 0) ? Integer.parseInt(args[0]) : 12;
+
+        int V = m * m;
+        int[] fixed = new int[4 * (m - 1)];
+        for (int i = 0, f = 0; i < V; i++) {
+            int x = i % m, y = i / m;
+            if (x == 0 || y == 0 || x == m - 1 || y == m - 1) fixed[f++] = i;
+        }
+        BranchNodeGraph bng = new BranchNodeGraph(V, fixed);
+        for (int y = 0; y < m; y++)
+            for (int x = 0; x < m - 1; x++) bng.addBranch(y * m + x, y * m + x + 1);
+        for (int x = 0; x < m; x++)
+            for (int y = 0; y < m - 1; y++) bng.addBranch(y * m + x, (y + 1) * m + x);
+        bng.build();
+
+        Random rnd = new Random(0);
+        double[] q = new double[bng.B()];
+        for (int b = 0; b < q.length; b++) q[b] = 0.5 + rnd.nextDouble();
+        SparseMatrix Dn = bng.incidence().assembleDn(q);
+        int n = Dn.rows();
+
+        // the ordering of the factorization must visit every row once
+        int[] perm = MinimumDegree.order(Dn);
+        boolean[] seen = new boolean[n];
+        if (perm.length != n) throw new RuntimeException("Ordering has " + perm.length + " rows, expected " + n);
+        for (int k = 0; k < n; k++) {
+            if (perm[k] < 0 || perm[k] >= n || seen[perm[k]]) throw new RuntimeException("Ordering is not a permutation at " + k);
+            seen[perm[k]] = true;
+        }
+
+        // three right-hand sides, packed n x 3, and their dense solution
+        double[] B = new double[3 * n];
+        for (int i = 0; i < B.length; i++) B[i] = rnd.nextDouble() - 0.5;
+        Jama.Matrix ref = Dn.toJama().solve(new Jama.Matrix(B, 3).transpose());
+
+        ConjugateGradientSolver jacobi = new ConjugateGradientSolver(ConjugateGradientSolver.Preconditioner.JACOBI);
+        ConjugateGradientSolver ic0 = new ConjugateGradientSolver(ConjugateGradientSolver.Preconditioner.IC0);
+        jacobi.setTolerance(1e-12);
+        ic0.setTolerance(1e-12);
+        LinearSolver[] solvers = { new SparseCholeskySolver(), jacobi, ic0 };
+        String[] names = { "Cholesky", "PCG, Jacobi", "PCG, IC0" };
+        for (int s = 0; s < solvers.length; s++) {
+            LinearSolver solver = solvers[s];
+            solver.factor(Dn);
+
+            // the first column alone, then all three in one pass
+            double[] b = new double[n], x = new double[n], X = new double[3 * n];
+            for (int i = 0; i < n; i++) b[i] = B[3 * i];
+            solver.solve(b, x);
+            solver.solve(B, X, 3);
+
+            double err = 0, scale = ref.normInf();
+            for (int i = 0; i < n; i++) {
+                err = Math.max(err, Math.abs(x[i] - ref.get(i, 0)));
+                for (int c = 0; c < 3; c++) err = Math.max(err, Math.abs(X[3 * i + c] - ref.get(i, c)));
+            }
+            System.out.println(String.format("%-12s n = %d, relative error %.2e", names[s], n, err / scale));
+            if (err > 1e-8 * scale) throw new RuntimeException(names[s] + " differs from Jama by " + err);
+        }
+    }
+
+}
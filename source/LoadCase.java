@@ -0,0 +1,70 @@
+/******************************************************************************
+ *  Compilation:  javac LoadCase.java
+ *  Execution:    java LoadCase
+ *  Dependencies: toxi.geom.Vec3D
+ *
+ *  One variant of a form-finding study: the load applied on the free
+ *  nodes, either one vector for all of them or one per node, and,
+ *  optionally, the force densities and the coordinates of the fixed
+ *  nodes. Whatever is left out is taken from the defaults of the
+ *  BatchFormFinder the case is submitted to. The arrays are used by
+ *  reference and must not be modified once the case has been submitted.
+ *
+ *  @author Alexandros Haridis | Digital Structures, MIT
+ ******************************************************************************/
+
+import toxi.geom.Vec3D;
+
+public class LoadCase {
+
+    private final int id_;                    // caller's identifier of the case
+    private final Vec3D p_;                   // load on every free node, null for per-node loads
+    private double[] px_, py_, pz_;           // per-node loads, null for the uniform load
+    private double[] q_;                      // force densities, null for the default
+    private double[] xp_, yp_, zp_;           // node coordinates, null for the default
+
+    // case with the given load, default force densities and boundary conditions
+    public LoadCase(int id, Vec3D p) {
+        if (p == null) throw new RuntimeException("Load must not be null");
+        id_ = id;
+        p_ = p;
+    }
+
+    // case with a load per node, indexed by node
+    public LoadCase(int id, double[] px, double[] py, double[] pz) {
+        if (px == null || py == null || pz == null) throw new RuntimeException("Loads must not be null");
+        id_ = id;
+        p_ = null;
+        px_ = px;
+        py_ = py;
+        pz_ = pz;
+    }
+
+    // set the force density of every branch for this case
+    public LoadCase setForceDensities(double[] q) {
+        q_ = q;
+        return this;
+    }
+
+    // set the coordinates of all nodes for this case, of which the fixed ones are used
+    public LoadCase setBoundaryConditions(double[] xp, double[] yp, double[] zp) {
+        xp_ = xp;
+        yp_ = yp;
+        zp_ = zp;
+        return this;
+    }
+
+    // G E T T E R S
+
+    public int id()                      {  return id_;  }
+    public Vec3D getLoad()               {  return p_;   }
+    public boolean hasNodeLoads()        {  return px_ != null;  }
+    public double[] getLoadX()           {  return px_;  }
+    public double[] getLoadY()           {  return py_;  }
+    public double[] getLoadZ()           {  return pz_;  }
+    public double[] getForceDensities()  {  return q_;   }
+    public double[] getX()               {  return xp_;  }
+    public double[] getY()               {  return yp_;  }
+    public double[] getZ()               {  return zp_;  }
+
+}
@@ -0,0 +1,69 @@
+/*************************************************************************
+ *  Compilation:  javac MatrixUtils.java
+ *  Execution:    java MatrixUtils
+ *  Dependencies: Jama.Matrix
+ *
+ *  Helper functions for operating with matrices in double precision.
+ *  Unlike Misc, nothing here depends on Processing, so the numerical
+ *  core (BranchNodeGraph, ForceDensityMethod and the solvers) can run
+ *  headless and from several threads.
+ *
+ *  @author Alexandros Haridis, MIT
+ *************************************************************************/
+
+import java.io.PrintStream;
+
+public class MatrixUtils {
+
+	/**
+	 *  returns the diagonal matrix of the input {@code vector}
+	 *  @throws RuntimeException if input not vector
+	 */
+	public static Jama.Matrix makeDiagonal(Jama.Matrix vector) {
+	    if (vector.getColumnDimension() != 1) throw new RuntimeException("Matrix is not a column vector");
+	    int n = vector.getRowDimension();
+	    Jama.Matrix diag = new Jama.Matrix(n, n);
+	    for (int i = 0; i < n; i++) diag.set(i, i, vector.get(i, 0));
+	    return diag;
+	}
+
+	/**
+	 *  raises every entry of {@code x} to the power {@code power}, in double
+	 *  precision and with the common powers 1/2, 1 and 2 specialised
+	 */
+	public static void pow(double[] x, double power, double[] out) {
+	    if (power == 0.5) {
+	        for (int i = 0; i < x.length; i++) out[i] = Math.sqrt(x[i]);
+	    } else if (power == 1) {
+	        System.arraycopy(x, 0, out, 0, x.length);
+	    } else if (power == 2) {
+	        for (int i = 0; i < x.length; i++) out[i] = x[i] * x[i];
+	    } else {
+	        for (int i = 0; i < x.length; i++) out[i] = Math.pow(x[i], power);
+	    }
+	}
+
+	/**
+	 *  raises every entry of the input matrix {@code m} to the power {@code power}
+	 *  @return the matrix
+	 */
+	public static Jama.Matrix pow(Jama.Matrix m, double power) {
+	    double[] values = m.getColumnPackedCopy();
+	    pow(values, power, values);
+	    return new Jama.Matrix(values, m.getRowDimension());
+	}
+
+	/**
+	 *  Prints the elements of a JAMA matrix, truncated to integers
+	 */
+	public static void print(PrintStream out, Jama.Matrix m) {
+	    for (int i = 0; i < m.getRowDimension(); i++) {
+	        StringBuilder line = new StringBuilder();
+	        for (int j = 0; j < m.getColumnDimension(); j++) {
+	            line.append((int) m.get(i, j)).append(' ');
+	        }
+	        out.println(line);
+	    }
+	}
+
+}
@@ -0,0 +1,189 @@
+/******************************************************************************
+ *  Compilation:  javac MinimumDegree.java
+ *  Execution:    java MinimumDegree
+ *  Dependencies: SparseMatrix.java
+ *
+ *  Fill-reducing ordering for sparse Cholesky factorization with the
+ *  approximate minimum degree (AMD) heuristic. Elimination is simulated on
+ *  a quotient graph: every eliminated node becomes an <em>element</em> that
+ *  stands for the clique it created, so the graph never grows beyond the
+ *  size of the original matrix. Degrees are the usual AMD upper bounds
+ *  |A_i| + |L_p \ i| + sum of |L_e \ L_p|, and elements that become subsets of
+ *  the new pivot element are absorbed.
+ *
+ *  For more information on the approximate minimum degree ordering, see:
+ *  P. Amestoy, T. Davis & I. Duff, "An Approximate Minimum Degree Ordering
+ *  Algorithm," SIAM J. Matrix Anal. Appl. 17(4), 1996.
+ *
+ *  @author Alexandros Haridis | Digital Structures, MIT
+ ******************************************************************************/
+
+import java.util.Arrays;
+
+public class MinimumDegree {
+
+    private MinimumDegree() { /* static helpers only */ }
+
+    /**
+     *  computes a fill-reducing permutation of the symmetric matrix {@code A},
+     *  only the pattern of A is used.
+     *  @return perm, where perm[k] is the row of A eliminated k-th
+     */
+    public static int[] order(SparseMatrix A) {
+        int n = A.rows();
+        int[] Ap = A.rowPtr();
+        int[] Ai = A.colInd();
+
+        int[][] vars = new int[n][];      // A_i: variable neighbours of i
+        int[] nvars = new int[n];
+        int[][] elems = new int[n][];     // E_i: element neighbours of i
+        int[] nelems = new int[n];
+        int[][] le = new int[n][];        // L_e: variables of element e
+        boolean[] alive = new boolean[n]; // element e exists and was not absorbed
+        boolean[] done = new boolean[n];  // variable i has been eliminated
+
+        for (int i = 0; i < n; i++) {
+            vars[i] = new int[Ap[i + 1] - Ap[i]];
+            for (int p = Ap[i]; p < Ap[i + 1]; p++) {
+                if (Ai[p] != i) vars[i][nvars[i]++] = Ai[p];
+            }
+            elems[i] = new int[2];
+        }
+
+        // degree lists
+        int[] deg = new int[n];
+        int[] head = new int[n];
+        int[] next = new int[n];
+        int[] prev = new int[n];
+        Arrays.fill(head, -1);
+        for (int i = 0; i < n; i++) {
+            deg[i] = nvars[i];
+            insert(i, deg[i], head, next, prev);
+        }
+
+        int[] flag = new int[n];          // membership of L_p, by stamp
+        int[] wflag = new int[n];         // validity of w, by stamp
+        int[] w = new int[n];             // |L_e \ L_p| for elements next to L_p
+        int[] lp = new int[n];
+        int[] perm = new int[n];
+        int stamp = 0;
+        int mindeg = 0;
+
+        for (int k = 0; k < n; k++) {
+
+            // pick a variable of minimum approximate degree
+            while (mindeg < n && head[mindeg] == -1) mindeg++;
+            int p = head[mindeg];
+            remove(p, deg[p], head, next, prev);
+            perm[k] = p;
+            done[p] = true;
+
+            // L_p = (A_p U union of L_e for e in E_p) \ p, absorbing every e
+            stamp++;
+            flag[p] = stamp;
+            int nlp = 0;
+            for (int t = 0; t < nvars[p]; t++) {
+                int v = vars[p][t];
+                if (!done[v] && flag[v] != stamp) {
+                    flag[v] = stamp;
+                    lp[nlp++] = v;
+                }
+            }
+            for (int t = 0; t < nelems[p]; t++) {
+                int e = elems[p][t];
+                if (!alive[e]) continue;
+                for (int v : le[e]) {
+                    if (!done[v] && flag[v] != stamp) {
+                        flag[v] = stamp;
+                        lp[nlp++] = v;
+                    }
+                }
+                alive[e] = false;
+                le[e] = null;
+            }
+            le[p] = Arrays.copyOf(lp, nlp);
+            alive[p] = true;
+            vars[p] = null;
+            elems[p] = null;
+
+            // prune the neighbourhoods of L_p: variables of L_p are now
+            // reached through element p, absorbed elements are dropped
+            for (int t = 0; t < nlp; t++) {
+                int i = lp[t];
+                remove(i, deg[i], head, next, prev);
+                int[] a = vars[i];
+                int na = 0;
+                for (int s = 0; s < nvars[i]; s++) {
+                    int v = a[s];
+                    if (!done[v] && flag[v] != stamp) a[na++] = v;
+                }
+                nvars[i] = na;
+                int[] el = elems[i];
+                int ne = 0;
+                for (int s = 0; s < nelems[i]; s++) {
+                    if (alive[el[s]]) el[ne++] = el[s];
+                }
+                if (ne == el.length) el = elems[i] = Arrays.copyOf(el, 2 * ne + 2);
+                el[ne++] = p;
+                nelems[i] = ne;
+            }
+
+            // w(e) = |L_e \ L_p| for the other elements of L_p
+            for (int t = 0; t < nlp; t++) {
+                int i = lp[t];
+                for (int s = 0; s < nelems[i]; s++) {
+                    int e = elems[i][s];
+                    if (e == p || !alive[e]) continue;
+                    if (wflag[e] != stamp) {
+                        wflag[e] = stamp;
+                        w[e] = le[e].length;
+                    }
+                    w[e]--;
+                }
+            }
+
+            // approximate degrees, absorbing elements covered by L_p
+            int remaining = n - k - 1;
+            for (int t = 0; t < nlp; t++) {
+                int i = lp[t];
+                int d = nvars[i] + nlp - 1;
+                int[] el = elems[i];
+                int ne = 0;
+                for (int s = 0; s < nelems[i]; s++) {
+                    int e = el[s];
+                    if (e != p) {
+                        if (!alive[e]) continue;
+                        if (w[e] == 0) {
+                            alive[e] = false;
+                            le[e] = null;
+                            continue;
+                        }
+                        d += w[e];
+                    }
+                    el[ne++] = e;
+                }
+                nelems[i] = ne;
+                deg[i] = Math.min(d, remaining - 1);
+                insert(i, deg[i], head, next, prev);
+                if (deg[i] < mindeg) mindeg = deg[i];
+            }
+        }
+        return perm;
+    }
+
+    // adds i to the list of degree d
+    private static void insert(int i, int d, int[] head, int[] next, int[] prev) {
+        next[i] = head[d];
+        prev[i] = -1;
+        if (head[d] != -1) prev[head[d]] = i;
+        head[d] = i;
+    }
+
+    // removes i from the list of degree d
+    private static void remove(int i, int d, int[] head, int[] next, int[] prev) {
+        if (prev[i] != -1) next[prev[i]] = next[i];
+        else head[d] = next[i];
+        if (next[i] != -1) prev[next[i]] = prev[i];
+    }
+
+}
@@ -2,7 +2,7 @@
  *  Compilation:  javac Misc.java
  *  Execution:    java Misc
  *  Dependencies: processing.core.PApplet  processing.core.PFont
- *                Jama.Matrix
+ *                Jama.Matrix  MatrixUtils.java  FormFindingMetrics.java
  *
  *  Helper functions primarily for displaying geometry, text, operating 
  *  with matrices in Processing API and Java.
@@ -15,38 +15,35 @@ import processing.core.PFont;
 
 public class Misc {
 	
+	// fonts of the heads-up display, created once instead of every frame
+	private static PFont hudFont11, hudFont14;
+	
+	private static PFont hudFont(PApplet p5, int size) {
+	    if (size == 14) {
+	        if (hudFont14 == null) hudFont14 = p5.createFont("Courier", 14);
+	        return hudFont14;
+	    }
+	    if (hudFont11 == null) hudFont11 = p5.createFont("Courier", 11);
+	    return hudFont11;
+	}
+	
 	/**
-	 *  returns the diagonal matrix of the input <>vector<>
+	 *  returns the diagonal matrix of the input {@code vector}
 	 *  @throws RuntimeException if input not vector
+	 *  @see MatrixUtils#makeDiagonal(Jama.Matrix)
 	 */
 	public static Jama.Matrix makeDiagonal(Jama.Matrix vector) {
-	    if (vector.getColumnDimension() == 1) {
-	        Jama.Matrix diag = new Jama.Matrix(vector.getRowDimension(), vector.getRowDimension());
-	        for (int i = 0; i < diag.getRowDimension(); i++) {
-	            for (int j = 0; j < diag.getColumnDimension(); j++) {
-	                if (i == j) diag.set(i, j, vector.get(i, 0));
-	            }
-	        }
-	        return diag;
-	    } else {
-	        throw new RuntimeException("Matrix is not a column vector");
-	    }
-	    //return new Jama.Matrix(new double[0][0]);
+	    return MatrixUtils.makeDiagonal(vector);
 	}
 	
 	/**
-	 *  raises the input matrix <>m<> to the power <>power<>
+	 *  raises the input matrix {@code m} to the power {@code power}, in double 
+	 *  precision; {@code p5} is no longer used
 	 *  @return the matrix 
+	 *  @see MatrixUtils#pow(Jama.Matrix, double)
 	 */
 	public static Jama.Matrix powJAMAMatrix(PApplet p5, Jama.Matrix m, float power) {
-	    Jama.Matrix output = new Jama.Matrix(m.getRowDimension(), m.getColumnDimension());
-	    for (int i = 0; i < m.getRowDimension(); i++) {
-	        for (int j = 0; j < m.getColumnDimension(); j++) {
-	            double token = m.get(i, j);
-	            output.set(i, j, p5.pow((float)token, power));
-	        }
-	    }
-	    return output;
+	    return MatrixUtils.pow(m, power);
 	}
 
 	/**
@@ -141,11 +138,38 @@ public class Misc {
 	/**
 	 *  draws the sum of F * L 
 	 */
-	public static void displaySigmaFl(PApplet p5, boolean drawSigmaFL, float FL, int H) {
+	public static void displaySigmaFl(PApplet p5, boolean drawSigmaFL, double FL, int H) {
 	    if (drawSigmaFL)
-	       displaytext(p5, "Sigma FL: " + FL, p5.createFont("Courier", 14), 11, 0, 'L', 290, H - 102);
+	       displaytext(p5, "Sigma FL: " + FL, hudFont(p5, 14), 11, 0, 'L', 290, H - 102);
 	   else
-	       displaytext(p5, "Sigma FL: ", p5.createFont("Courier", 11), 11, 0, 'C', 180, H - 100);
+	       displaytext(p5, "Sigma FL: ", hudFont(p5, 11), 11, 0, 'C', 180, H - 100);
+	}
+	
+	/**
+	 *  displays the time of the last solve and its latency from the load 
+	 *  change to the result, in red once it exceeds a frame at 60 fps
+	 */
+	public static void displayLatency(PApplet p5, boolean live, double solveMs, double latencyMs, int H) {
+	    String mode = live ? "LIVE" : "";
+	    int color = (latencyMs > 1000.0 / 60) ? p5.color(200, 0, 0) : 0;
+	    displaytext(p5, mode + String.format("  solve %.2f ms  latency %.2f ms", solveMs, latencyMs), hudFont(p5, 11), 11, color, 'L', 290, H - 84);
+	}
+	
+	/**
+	 *  displays the mean and last time of each stage of the solver and its 
+	 *  counters, as kept by FormFindingMetrics, one line each from the top
+	 */
+	public static void displayMetrics(PApplet p5, FormFindingMetrics m, int x, int y) {
+	    PFont font = hudFont(p5, 11);
+	    for (FormFindingMetrics.Stage stage : FormFindingMetrics.Stage.values()) {
+	        String line = String.format("%-9s %6d x %8.3f ms  last %8.3f ms", stage, m.calls(stage), m.meanMillis(stage), m.lastNanos(stage) / 1e6);
+	        displaytext(p5, line, font, 11, 0, 'L', x, y);
+	        y += 14;
+	    }
+	    for (FormFindingMetrics.Counter counter : FormFindingMetrics.Counter.values()) {
+	        displaytext(p5, String.format("%-17s %12d", counter, m.count(counter)), font, 11, 0, 'L', x, y);
+	        y += 14;
+	    }
 	}
 
 }
@@ -0,0 +1,54 @@
+/******************************************************************************
+ *  Compilation:  javac Network.java
+ *  Execution:    java Network
+ *  Dependencies: BranchNodeGraph.java  ForceDensityMethod.java
+ *
+ *  A node/branch network ready for form finding: the built BranchNodeGraph
+ *  with its fixed nodes, the coordinates of every node, which fix the
+ *  supports, and optionally a force density per branch. Networks are read
+ *  from and written to files by NetworkIO.
+ *
+ *  @author Alexandros Haridis | Digital Structures, MIT
+ ******************************************************************************/
+
+public class Network {
+
+    private final BranchNodeGraph bng_;       // topology, built
+    private final double[] x_, y_, z_;        // node coordinates, original node order
+    private final double[] q_;                // force density of each branch, or null
+
+    // network of the built graph bng with node coordinates x, y, z and densities q, which may be null
+    public Network(BranchNodeGraph bng, double[] x, double[] y, double[] z, double[] q) {
+        if (bng.incidence() == null) throw new RuntimeException("Branch node graph must be built");
+        int N = bng.N();
+        if (x.length != N || y.length != N || z.length != N) throw new RuntimeException("Expected coordinates for each of the " + N + " nodes");
+        if (q != null && q.length != bng.B()) throw new RuntimeException("Expected " + bng.B() + " force densities, found " + q.length);
+        bng_ = bng;
+        x_ = x;
+        y_ = y;
+        z_ = z;
+        q_ = q;
+    }
+
+    // @return a ForceDensityMethod with the coordinates as boundary conditions and the force densities set
+    public ForceDensityMethod newForceDensityMethod() {
+        ForceDensityMethod fdm = new ForceDensityMethod(bng_);
+        fdm.setBoundaryConditions(x_, y_, z_);
+        if (q_ != null) fdm.setForceDensities(q_);
+        return fdm;
+    }
+
+    // G E T T E R S
+
+    public BranchNodeGraph graph()        {  return bng_;           }
+    public int N()                        {  return bng_.N();       }
+    public int B()                        {  return bng_.B();       }
+
+    // coordinates and densities, shared with the caller
+    public double[] getX()                {  return x_;             }
+    public double[] getY()                {  return y_;             }
+    public double[] getZ()                {  return z_;             }
+    public double[] getForceDensities()   {  return q_;             }
+    public boolean hasForceDensities()    {  return q_ != null;     }
+
+}
@@ -0,0 +1,496 @@
+/******************************************************************************
+ *  Compilation:  javac NetworkIO.java
+ *  Execution:    java NetworkIO [grid size]
+ *  Dependencies: Network.java  BranchNodeGraph.java  BranchNodeTopology.java
+ *                ForceDensityMethod.java
+ *
+ *  Reads node/branch networks of arbitrary topology into a Network, from
+ *
+ *    - OBJ meshes: every vertex is a node, every polyline segment (l) and
+ *      every polygon edge (f) a branch, edges shared by faces taken once;
+ *      point elements (p) mark the fixed nodes unless these are given
+ *    - CSV tables: a node table of rows "node,x,y,z[,fixed]" and a branch
+ *      table of rows "from,to[,q]", node indices from 0, an optional
+ *      header line and lines starting with # are skipped
+ *    - a compact binary format, which is memory-mapped and copied in bulk
+ *      without any parsing:
+ *
+ *        int     magic "FDMN", version, N, F, B, flags (bit 0: densities)
+ *        double  x[N] y[N] z[N]
+ *        int     fixed[F] from[B] to[B]
+ *        double  q[B], if flagged, after padding to a multiple of 8 bytes
+ *
+ *      all little-endian, written by writeBinary
+ *
+ *  The text formats are streamed line by line, and only the from/to arrays
+ *  of the branches are kept, so the dense C matrix is never materialized.
+ *  The graph of a network read is built.
+ *
+ *  @author Alexandros Haridis | Digital Structures, MIT
+ ******************************************************************************/
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+public class NetworkIO {
+
+    private static final int MAGIC = 0x4E4D4446;     // "FDMN" little-endian
+    private static final int VERSION = 1;
+    private static final int HEADER = 24;            // bytes of the header
+    private static final int FLAG_DENSITIES = 1;
+
+    private NetworkIO() { }
+
+    // O B J
+
+    // reads an OBJ mesh, the nodes of its point elements are fixed
+    public static Network readOBJ(String path) {
+        return readOBJ(path, null);
+    }
+
+    // reads an OBJ mesh with the given fixed nodes, numbered from 0, or with those of its point elements if null
+    public static Network readOBJ(String path, int[] fixed) {
+        int N = 0, B = 0, F = 0;
+        double[] x = new double[1024], y = new double[1024], z = new double[1024];
+        int[] from = new int[1024], to = new int[1024], pinned = new int[16];
+        EdgeSet edges = new EdgeSet();
+        int[] poly = new int[16];
+        Tokenizer t = new Tokenizer();
+
+        try (BufferedReader in = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+            String line;
+            int lineNo = 0;
+            while ((line = in.readLine()) != null) {
+                lineNo++;
+                t.reset(line, ' ');
+                if (!t.hasNext()) continue;
+                String key = t.next();
+                try {
+                    if (key.equals("v")) {
+                        if (N == x.length) {
+                            x = Arrays.copyOf(x, 2 * N);
+                            y = Arrays.copyOf(y, 2 * N);
+                            z = Arrays.copyOf(z, 2 * N);
+                        }
+                        x[N] = Double.parseDouble(t.next());
+                        y[N] = Double.parseDouble(t.next());
+                        z[N] = Double.parseDouble(t.next());
+                        N++;
+                    } else if (key.equals("l") || key.equals("f") || key.equals("p")) {
+                        int k = 0;
+                        while (t.hasNext()) {
+                            if (k == poly.length) poly = Arrays.copyOf(poly, 2 * k);
+                            poly[k++] = objIndex(t.next(), N);
+                        }
+                        if (key.equals("p")) {
+                            if (F + k > pinned.length) pinned = Arrays.copyOf(pinned, 2 * (F + k));
+                            System.arraycopy(poly, 0, pinned, F, k);
+                            F += k;
+                            continue;
+                        }
+                        // segments of a polyline, sides of a polygon
+                        int sides = key.equals("f") && k > 2 ? k : k - 1;
+                        for (int s = 0; s < sides; s++) {
+                            int v = poly[s], w = poly[(s + 1) % k];
+                            if (v == w || !edges.add(v, w)) continue;
+                            if (B == from.length) {
+                                from = Arrays.copyOf(from, 2 * B);
+                                to = Arrays.copyOf(to, 2 * B);
+                            }
+                            from[B] = v;
+                            to[B] = w;
+                            B++;
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    throw new RuntimeException(path + ":" + lineNo + ": cannot read \"" + line + "\"", e);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read " + path, e);
+        }
+
+        if (fixed == null) fixed = Arrays.copyOf(pinned, F);
+        return network(N, fixed, from, to, B, Arrays.copyOf(x, N), Arrays.copyOf(y, N), Arrays.copyOf(z, N), null);
+    }
+
+    // node of an OBJ vertex reference such as 7, 7/1/3 or -1, which counts back from the last vertex
+    private static int objIndex(String token, int N) {
+        int slash = token.indexOf('/');
+        int v = Integer.parseInt(slash < 0 ? token : token.substring(0, slash));
+        if (v == 0) throw new RuntimeException("OBJ vertex references start at 1");
+        return v > 0 ? v - 1 : N + v;
+    }
+
+    // C S V
+
+    // reads a node table and a branch table, see the header for their rows
+    public static Network readCSV(String nodesPath, String branchesPath) {
+        int N = 0, F = 0;
+        double[] x = new double[1024], y = new double[1024], z = new double[1024];
+        boolean[] seen = new boolean[1024], pinned = new boolean[1024];
+        Tokenizer t = new Tokenizer();
+
+        try (BufferedReader in = Files.newBufferedReader(Paths.get(nodesPath), StandardCharsets.UTF_8)) {
+            String line;
+            int lineNo = 0;
+            while ((line = in.readLine()) != null) {
+                lineNo++;
+                if (skip(line, lineNo)) continue;
+                t.reset(line, ',');
+                try {
+                    int i = Integer.parseInt(t.next());
+                    if (i < 0) throw new RuntimeException("Node indices must be nonnegative");
+                    if (i >= x.length) {
+                        int capacity = Math.max(i + 1, 2 * x.length);
+                        x = Arrays.copyOf(x, capacity);
+                        y = Arrays.copyOf(y, capacity);
+                        z = Arrays.copyOf(z, capacity);
+                        seen = Arrays.copyOf(seen, capacity);
+                        pinned = Arrays.copyOf(pinned, capacity);
+                    }
+                    if (seen[i]) throw new RuntimeException("Node " + i + " is given twice");
+                    seen[i] = true;
+                    x[i] = Double.parseDouble(t.next());
+                    y[i] = Double.parseDouble(t.next());
+                    z[i] = Double.parseDouble(t.next());
+                    if (t.hasNext()) {
+                        String s = t.next();
+                        pinned[i] = s.equals("1") || s.equalsIgnoreCase("true");
+                        if (pinned[i]) F++;
+                    }
+                    N = Math.max(N, i + 1);
+                } catch (RuntimeException e) {
+                    throw new RuntimeException(nodesPath + ":" + lineNo + ": cannot read \"" + line + "\"", e);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read " + nodesPath, e);
+        }
+        for (int i = 0; i < N; i++) {
+            if (!seen[i]) throw new RuntimeException(nodesPath + ": node " + i + " is missing");
+        }
+        int[] fixed = new int[F];
+        for (int i = 0, k = 0; i < N; i++) if (pinned[i]) fixed[k++] = i;
+
+        int B = 0;
+        int[] from = new int[1024], to = new int[1024];
+        double[] q = null;
+        try (BufferedReader in = Files.newBufferedReader(Paths.get(branchesPath), StandardCharsets.UTF_8)) {
+            String line;
+            int lineNo = 0;
+            while ((line = in.readLine()) != null) {
+                lineNo++;
+                if (skip(line, lineNo)) continue;
+                t.reset(line, ',');
+                try {
+                    if (B == from.length) {
+                        from = Arrays.copyOf(from, 2 * B);
+                        to = Arrays.copyOf(to, 2 * B);
+                        if (q != null) q = Arrays.copyOf(q, 2 * B);
+                    }
+                    from[B] = Integer.parseInt(t.next());
+                    to[B] = Integer.parseInt(t.next());
+                    if (t.hasNext()) {
+                        // densities given from the first branch on or not at all
+                        if (q == null && B > 0) throw new RuntimeException("Force densities must be given for every branch");
+                        if (q == null) q = new double[from.length];
+                        q[B] = Double.parseDouble(t.next());
+                    } else if (q != null) {
+                        throw new RuntimeException("Force densities must be given for every branch");
+                    }
+                    B++;
+                } catch (RuntimeException e) {
+                    throw new RuntimeException(branchesPath + ":" + lineNo + ": cannot read \"" + line + "\"", e);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read " + branchesPath, e);
+        }
+
+        return network(N, fixed, from, to, B, Arrays.copyOf(x, N), Arrays.copyOf(y, N), Arrays.copyOf(z, N),
+                (q == null) ? null : Arrays.copyOf(q, B));
+    }
+
+    // true for blank lines, comments, and a header as first line
+    private static boolean skip(String line, int lineNo) {
+        String s = line.trim();
+        if (s.isEmpty() || s.charAt(0) == '#') return true;
+        char c = s.charAt(0);
+        return lineNo == 1 && !(c == '-' || c == '+' || c == '.' || Character.isDigit(c));
+    }
+
+    // B I N A R Y
+
+    /**
+     *  maps a network written by writeBinary and copies its arrays in bulk,
+     *  with no parsing; the mapping is released by the garbage collector
+     */
+    public static Network readBinary(String path) {
+        try (FileChannel ch = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size < HEADER) throw new RuntimeException(path + " is not a network file");
+            if (size > Integer.MAX_VALUE) throw new RuntimeException(path + " is larger than 2 GB");
+            MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (map.getInt(0) != MAGIC) throw new RuntimeException(path + " is not a network file");
+            if (map.getInt(4) != VERSION) throw new RuntimeException(path + " has unsupported version " + map.getInt(4));
+            int N = map.getInt(8), F = map.getInt(12), B = map.getInt(16), flags = map.getInt(20);
+            if (N < 0 || F < 0 || F > N || B < 0) throw new RuntimeException(path + " has an invalid header");
+            boolean densities = (flags & FLAG_DENSITIES) != 0;
+            if (size != binarySize(N, F, B, densities)) throw new RuntimeException(path + " is truncated or corrupt");
+
+            double[] x = new double[N], y = new double[N], z = new double[N];
+            int[] fixed = new int[F], from = new int[B], to = new int[B];
+            map.position(HEADER);
+            map.asDoubleBuffer().get(x).get(y).get(z);
+            map.position(HEADER + 24 * N);
+            map.asIntBuffer().get(fixed).get(from).get(to);
+            double[] q = null;
+            if (densities) {
+                q = new double[B];
+                map.position((int) pad8(HEADER + 24L * N + 4L * (F + 2L * B)));
+                map.asDoubleBuffer().get(q);
+            }
+            return network(N, fixed, from, to, B, x, y, z, q);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read " + path, e);
+        }
+    }
+
+    // writes the network in the binary format, through one direct buffer
+    public static void writeBinary(Network net, String path) {
+        BranchNodeTopology top = net.graph().freeze();
+        int N = top.N(), B = top.B();
+        int[] fixed = top.fixedNodes();
+        double[] q = net.getForceDensities();
+
+        try (FileChannel ch = FileChannel.open(Paths.get(path), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            buf.putInt(MAGIC).putInt(VERSION).putInt(N).putInt(fixed.length).putInt(B)
+               .putInt(q != null ? FLAG_DENSITIES : 0);
+            put(ch, buf, net.getX());
+            put(ch, buf, net.getY());
+            put(ch, buf, net.getZ());
+            for (int f : fixed) putInt(ch, buf, f);
+
+            // branch ends in the original node order
+            int[] ends = top.fromNodes();
+            for (int b = 0; b < B; b++) putInt(ch, buf, ends[b]);
+            ends = top.toNodes();
+            for (int b = 0; b < B; b++) putInt(ch, buf, ends[b]);
+            if (q != null) {
+                if ((HEADER + 24L * N + 4L * (fixed.length + 2L * B)) % 8 != 0) putInt(ch, buf, 0);
+                put(ch, buf, q);
+            }
+            flush(ch, buf);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot write " + path, e);
+        }
+    }
+
+    private static void put(FileChannel ch, ByteBuffer buf, double[] a) throws IOException {
+        for (double v : a) {
+            if (buf.remaining() < 8) flush(ch, buf);
+            buf.putDouble(v);
+        }
+    }
+
+    private static void putInt(FileChannel ch, ByteBuffer buf, int v) throws IOException {
+        if (buf.remaining() < 4) flush(ch, buf);
+        buf.putInt(v);
+    }
+
+    private static void flush(FileChannel ch, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) ch.write(buf);
+        buf.clear();
+    }
+
+    // size in bytes of a binary network file
+    private static long binarySize(int N, int F, int B, boolean densities) {
+        long size = HEADER + 24L * N + 4L * (F + 2L * B);
+        return densities ? pad8(size) + 8L * B : size;
+    }
+
+    private static long pad8(long n) {  return (n + 7) & ~7L;  }
+
+    // builds the graph of the first B branches, with the fixed nodes sorted
+    private static Network network(int N, int[] fixed, int[] from, int[] to, int B,
+                                   double[] x, double[] y, double[] z, double[] q) {
+        fixed = fixed.clone();
+        Arrays.sort(fixed);
+        int F = 0;
+        for (int k = 0; k < fixed.length; k++) {
+            if (fixed[k] < 0 || fixed[k] >= N) throw new RuntimeException("Fixed node " + fixed[k] + " is not between 0 and " + N);
+            if (F == 0 || fixed[k] != fixed[F - 1]) fixed[F++] = fixed[k];
+        }
+        BranchNodeGraph bng = new BranchNodeGraph(N, Arrays.copyOf(fixed, F));
+        bng.addBranches(from, to, B);
+        bng.build();
+        return new Network(bng, x, y, z, q);
+    }
+
+    // splits a line at a separator, or at white space if the separator is blank
+    private static class Tokenizer {
+        private String s;
+        private char sep;
+        private int pos;
+
+        void reset(String line, char separator) {
+            s = line;
+            sep = separator;
+            pos = 0;
+            skipBlank();
+        }
+
+        boolean hasNext() {  return pos < s.length() && s.charAt(pos) != '#';  }
+
+        String next() {
+            if (!hasNext()) throw new RuntimeException("Expected more values");
+            int start = pos;
+            while (pos < s.length() && !isSeparator(s.charAt(pos))) pos++;
+            String token = s.substring(start, pos).trim();
+            if (pos < s.length()) pos++;
+            skipBlank();
+            return token;
+        }
+
+        private boolean isSeparator(char c) {  return (sep == ' ') ? Character.isWhitespace(c) : c == sep;  }
+
+        private void skipBlank() {
+            while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) pos++;
+        }
+    }
+
+    // set of undirected edges v-w, open addressing on the key min(v,w) max(v,w)
+    private static class EdgeSet {
+        private long[] keys = new long[1 << 12];
+        private int size;
+
+        // @return false if the edge was already in the set
+        boolean add(int v, int w) {
+            long key = ((long) Math.min(v, w) << 32) | (Math.max(v, w) & 0xffffffffL);
+            key++;  // 0 marks an empty slot
+            if (2 * (size + 1) > keys.length) rehash();
+            int mask = keys.length - 1;
+            int h = hash(key) & mask;
+            while (keys[h] != 0) {
+                if (keys[h] == key) return false;
+                h = (h + 1) & mask;
+            }
+            keys[h] = key;
+            size++;
+            return true;
+        }
+
+        private void rehash() {
+            long[] old = keys;
+            keys = new long[2 * old.length];
+            int mask = keys.length - 1;
+            for (long key : old) {
+                if (key == 0) continue;
+                int h = hash(key) & mask;
+                while (keys[h] != 0) h = (h + 1) & mask;
+                keys[h] = key;
+            }
+        }
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
+    /**
+     *  Test client and sample execution: writes a square grid pinned at its
+     *  corners as OBJ, CSV and binary files, reads each back and compares
+     *  the forms found for them.
+     */
+    public static void main(String[] args) throws IOException {
+        int m = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+
+        int V = m * m;
+        int[] corners = { 0, m - 1, m * (m - 1), V - 1 };
+        BranchNodeGraph bng = new BranchNodeGraph(V, corners);
+        for (int j = 0; j < m; j++)
+            for (int i = 0; i < m - 1; i++) bng.addBranch(j * m + i, j * m + i + 1);
+        for (int i = 0; i < m; i++)
+            for (int j = 0; j < m - 1; j++) bng.addBranch(j * m + i, (j + 1) * m + i);
+        bng.build();
+        double[] xp = new double[V], yp = new double[V], zp = new double[V];
+        for (int j = 0; j < m; j++) {
+            for (int i = 0; i < m; i++) {
+                xp[j * m + i] = i * 100;
+                yp[j * m + i] = j * 100;
+            }
+        }
+        zp[V - 1] = 300;
+        Network grid = new Network(bng, xp, yp, zp, null);
+
+        File obj = File.createTempFile("network", ".obj");
+        File nodes = File.createTempFile("nodes", ".csv");
+        File branches = File.createTempFile("branches", ".csv");
+        File bin = File.createTempFile("network", ".fdmn");
+        obj.deleteOnExit();
+        nodes.deleteOnExit();
+        branches.deleteOnExit();
+        bin.deleteOnExit();
+
+        // the grid as quads, so every inner branch is shared by two faces
+        try (PrintWriter out = new PrintWriter(obj, "UTF-8")) {
+            for (int i = 0; i < V; i++) out.println("v " + xp[i] + " " + yp[i] + " " + zp[i]);
+            for (int j = 0; j < m - 1; j++)
+                for (int i = 0; i < m - 1; i++) {
+                    int a = j * m + i + 1;
+                    out.println("f " + a + " " + (a + 1) + " " + (a + 1 + m) + " " + (a + m));
+                }
+            for (int c : corners) out.println("p " + (c + 1));
+        }
+        try (PrintWriter out = new PrintWriter(nodes, "UTF-8")) {
+            out.println("node,x,y,z,fixed");
+            for (int i = 0; i < V; i++) out.println(i + "," + xp[i] + "," + yp[i] + "," + zp[i] + "," + (Arrays.binarySearch(corners, i) >= 0 ? 1 : 0));
+        }
+        try (PrintWriter out = new PrintWriter(branches, "UTF-8")) {
+            out.println("from,to");
+            int[] from = bng.freeze().getFrom(), to = bng.freeze().getTo();
+            for (int b = 0; b < bng.B(); b++) out.println(from[b] + "," + to[b]);
+        }
+        writeBinary(grid, bin.getPath());
+
+        String[] names = { "OBJ", "CSV", "binary" };
+        double reference = evaluate(grid);
+        for (int k = 0; k < names.length; k++) {
+            long t0 = System.nanoTime();
+            Network net = (k == 0) ? readOBJ(obj.getPath())
+                        : (k == 1) ? readCSV(nodes.getPath(), branches.getPath())
+                        : readBinary(bin.getPath());
+            long t1 = System.nanoTime();
+            double sigmaFL = evaluate(net);
+            System.out.println(names[k] + ": " + net.N() + " nodes, " + net.B() + " branches, " + net.graph().fixed()
+                    + " fixed, read in " + String.format("%.1f ms", (t1 - t0) / 1e6)
+                    + ", Sigma FL " + sigmaFL + " / " + reference);
+        }
+    }
+
+    // Sigma FL of the network for unit densities and a downward load
+    private static double evaluate(Network net) {
+        ForceDensityMethod fdm = net.newForceDensityMethod();
+        fdm.evalFD();
+        return fdm.getSigmaFL();
+    }
+
+}
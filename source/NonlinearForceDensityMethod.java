@@ -0,0 +1,216 @@
+/******************************************************************************
+ *  Compilation:  javac NonlinearForceDensityMethod.java
+ *  Execution:    java NonlinearForceDensityMethod [grid size]
+ *  Dependencies: ForceDensityMethod.java  BranchNodeGraph.java  toxi.geom.Vec3D
+ *
+ *  Nonlinear form finding on top of the linear Force Density Method: the
+ *  force densities are found such that chosen branches reach a target
+ *  tension force or a target length. Starting from the current densities,
+ *  every iteration solves the linear FDM and resets the density of each
+ *  targeted branch,
+ *
+ *      target force F*:   q_i <- F* / L_i
+ *      target length L*:  q_i <- q_i * L_i / L*  (= F_i / L*)
+ *
+ *  until the largest relative error of a target falls below the tolerance
+ *  or the iteration cap is reached. Branches without a target keep their
+ *  density. The iterations reuse the ForceDensityMethod they run on: the
+ *  symbolic analysis of Dn is kept, only the numeric factorization is
+ *  repeated, and an iterative solver starts from the previous solution,
+ *  so later iterations cost a fraction of the first one.
+ *
+ *  For more information on the nonlinear force density method, see:
+ *  H.-J. Schek, "The Force Density Method for Form Finding and Computation
+ *  of General Networks," Computer Methods in Applied Mechanics and
+ *  Engineering 3(1), 1974.
+ *
+ *  @author Alexandros Haridis | Digital Structures, MIT
+ ******************************************************************************/
+
+import java.util.Arrays;
+import java.util.Random;
+
+import toxi.geom.Vec3D;
+
+public class NonlinearForceDensityMethod {
+
+    private final ForceDensityMethod fdm_;    // linear FDM the iterations run on
+    private final double[] targetF_;          // target force of each branch, NaN if none
+    private final double[] targetL_;          // target length of each branch, NaN if none
+    private final double[] q_, L_, F_;        // scratch densities, lengths and forces
+    private double tolerance_;                // largest relative error accepted
+    private int maxIterations_;               // iteration cap
+    private int iterations_;                  // iterations of the last solve
+    private double error_;                    // largest relative error after the last solve
+
+    // nonlinear form finding on fdm, whose boundary conditions and load are used
+    public NonlinearForceDensityMethod(ForceDensityMethod fdm) {
+        int B = fdm.getForceDensities().length;
+        fdm_ = fdm;
+        targetF_ = new double[B];
+        targetL_ = new double[B];
+        Arrays.fill(targetF_, Double.NaN);
+        Arrays.fill(targetL_, Double.NaN);
+        q_ = new double[B];
+        L_ = new double[B];
+        F_ = new double[B];
+        tolerance_ = 1e-6;
+        maxIterations_ = 100;
+    }
+
+    // S E T T E R S
+
+    // set the target tension force of branch b, replacing a target length
+    public void setTargetForce(int b, double F) {
+        if (!(F > 0)) throw new RuntimeException("Target force of branch " + b + " must be positive");
+        targetF_[b] = F;
+        targetL_[b] = Double.NaN;
+    }
+
+    // set the target length of branch b, replacing a target force
+    public void setTargetLength(int b, double L) {
+        if (!(L > 0)) throw new RuntimeException("Target length of branch " + b + " must be positive");
+        targetL_[b] = L;
+        targetF_[b] = Double.NaN;
+    }
+
+    // set a target force on every branch
+    public void setTargetForces(double[] F) {
+        if (F.length != targetF_.length) throw new RuntimeException("Expected " + targetF_.length + " target forces, found " + F.length);
+        for (int b = 0; b < F.length; b++) setTargetForce(b, F[b]);
+    }
+
+    // set a target length on every branch
+    public void setTargetLengths(double[] L) {
+        if (L.length != targetL_.length) throw new RuntimeException("Expected " + targetL_.length + " target lengths, found " + L.length);
+        for (int b = 0; b < L.length; b++) setTargetLength(b, L[b]);
+    }
+
+    // removes the target of branch b, its force density is then kept as is
+    public void clearTarget(int b) {
+        targetF_[b] = Double.NaN;
+        targetL_[b] = Double.NaN;
+    }
+
+    public void setTolerance(double tol)      {  tolerance_ = tol;      }
+    public void setMaxIterations(int max)     {  maxIterations_ = max;  }
+
+    // S O L V E
+
+    /**
+     *  iterates the force densities from their current values until every
+     *  target is met within the tolerance, or for at most maxIterations.
+     *  The ForceDensityMethod is left evaluated for the final densities.
+     *  @return true if the targets were met
+     */
+    public boolean solve() {
+        int B = q_.length;
+        double[] q = q_, L = L_, F = F_;
+        System.arraycopy(fdm_.getForceDensities(), 0, q, 0, B);
+
+        iterations_ = 0;
+        error_ = Double.POSITIVE_INFINITY;
+        while (true) {
+            fdm_.setForceDensities(q);
+            fdm_.evalFD();
+            fdm_.getBranchLengths(L);
+            fdm_.getBranchForces(F);
+
+            // largest relative error of the targets for the current shape
+            double err = 0;
+            for (int b = 0; b < B; b++) {
+                if (!Double.isNaN(targetF_[b]))      err = Math.max(err, Math.abs(F[b] - targetF_[b]) / targetF_[b]);
+                else if (!Double.isNaN(targetL_[b])) err = Math.max(err, Math.abs(L[b] - targetL_[b]) / targetL_[b]);
+            }
+            error_ = err;
+            if (err <= tolerance_ || iterations_ >= maxIterations_) break;
+
+            // new densities from the current lengths and forces; a branch
+            // of zero length has no direction and keeps its density
+            for (int b = 0; b < B; b++) {
+                if (L[b] == 0) continue;
+                if (!Double.isNaN(targetF_[b]))      q[b] = targetF_[b] / L[b];
+                else if (!Double.isNaN(targetL_[b])) q[b] = F[b] / targetL_[b];
+            }
+            iterations_++;
+        }
+        return error_ <= tolerance_;
+    }
+
+    // G E T T E R S
+
+    public ForceDensityMethod getForceDensityMethod()  {  return fdm_;            }
+    public double getTolerance()                       {  return tolerance_;      }
+    public int getMaxIterations()                      {  return maxIterations_;  }
+
+    // @return the number of density updates of the last solve
+    public int iterations() {  return iterations_;  }
+
+    // @return the largest relative error of a target after the last solve
+    public double error() {  return error_;  }
+
+    /**
+     *  Test client and sample execution: a square grid pinned at its four
+     *  corners, where every fourth branch has its density perturbed and its
+     *  force for unit densities recovered as a target.
+     *  @throws RuntimeException if the iteration does not converge or a
+     *          branch force misses its target
+     */
+    public static void main(String[] args) {
+        int m = (args.length > 0) ? Integer.parseInt(args[0]) : 40;
+
+        int V = m * m;
+        BranchNodeGraph bng = new BranchNodeGraph(V, new int[] { 0, m - 1, m * (m - 1), V - 1 });
+        for (int j = 0; j < m; j++)
+            for (int i = 0; i < m - 1; i++) bng.addBranch(j * m + i, j * m + i + 1);
+        for (int i = 0; i < m; i++)
+            for (int j = 0; j < m - 1; j++) bng.addBranch(j * m + i, (j + 1) * m + i);
+        bng.build();
+
+        double[] xp = new double[V], yp = new double[V], zp = new double[V];
+        for (int j = 0; j < m; j++) {
+            for (int i = 0; i < m; i++) {
+                xp[j * m + i] = i * 100;
+                yp[j * m + i] = j * 100;
+            }
+        }
+
+        // the branch forces of the form for unit densities are the targets
+        ForceDensityMethod fdm = new ForceDensityMethod(bng);
+        fdm.setBoundaryConditions(xp, yp, zp);
+        fdm.setLoad(new Vec3D(0, 0, -10));
+        long t0 = System.nanoTime();
+        fdm.evalFD();
+        long t1 = System.nanoTime();
+        double[] target = new double[bng.B()];
+        fdm.getBranchForces(target);
+        double sigmaFL = fdm.getSigmaFL();
+
+        // every fourth of them is recovered starting from a perturbed density
+        Random rnd = new Random(0);
+        NonlinearForceDensityMethod nl = new NonlinearForceDensityMethod(fdm);
+        for (int b = 0; b < bng.B(); b += 4) {
+            fdm.setForceDensity(b, 0.8 + 0.4 * rnd.nextDouble());
+            nl.setTargetForce(b, target[b]);
+        }
+        nl.setTolerance(1e-6);
+        nl.setMaxIterations(2000);
+        long t2 = System.nanoTime();
+        boolean converged = nl.solve();
+        long t3 = System.nanoTime();
+
+        System.out.println("cold evaluation: " + String.format("%.2f ms", (t1 - t0) / 1e6));
+        System.out.println((converged ? "converged" : "stopped") + " after " + nl.iterations() + " iterations, "
+                + String.format("%.2f ms each", (t3 - t2) / 1e6 / (nl.iterations() + 1)) + ", error " + nl.error());
+        System.out.println("Sigma FL " + fdm.getSigmaFL() + ", target form " + sigmaFL);
+        if (!converged) throw new RuntimeException("Iteration did not converge, error " + nl.error());
+
+        // the forces of the final form, checked apart from the iteration's own error
+        double[] F = new double[bng.B()];
+        fdm.getBranchForces(F);
+        for (int b = 0; b < F.length; b++) {
+            if (Math.abs(F[b] - target[b]) > 1e-5 * target[b]) throw new RuntimeException("Branch " + b + " has force " + F[b] + ", target " + target[b]);
+        }
+    }
+
+}
@@ -0,0 +1,141 @@
+/******************************************************************************
+ *  Compilation:  javac ResultReader.java
+ *  Execution:    java ResultReader
+ *  Dependencies: ResultWriter.java  FormFindingResult.java
+ *
+ *  Reads a result file written by ResultWriter by memory-mapping it. The
+ *  columns of a record are handed out as read-only DoubleBuffer views of
+ *  the mapping, so scanning results copies nothing; getResult copies one
+ *  record into a FormFindingResult when arrays are needed. Files larger
+ *  than a single mapping are mapped in windows of whole records, which are
+ *  replaced as the records asked for move on. A reader is used by one
+ *  thread.
+ *
+ *  @author Alexandros Haridis | Digital Structures, MIT
+ ******************************************************************************/
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+public class ResultReader implements Closeable {
+
+    private static final long WINDOW = 1L << 30;  // bytes mapped at once, unless a record is larger
+
+    private final String path_;
+    private final FileChannel ch_;
+    private final int N_, B_;                 // nodes and branches of every result
+    private final long count_;                // number of records
+    private final long record_;               // bytes per record
+    private final long perWindow_;            // records per mapped window
+    private MappedByteBuffer window_;         // mapping of the current window
+    private long first_ = -1;                 // first record of the current window
+
+    // reader of the result file at path
+    public ResultReader(String path) {
+        path_ = path;
+        try {
+            ch_ = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read " + path, e);
+        }
+        
+        // a file that is not a valid result file is closed before the error is passed on
+        try {
+            ByteBuffer header = ByteBuffer.allocate(ResultWriter.HEADER).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining() && ch_.read(header, header.position()) >= 0) { }
+            if (header.hasRemaining() || header.getInt(0) != ResultWriter.MAGIC) throw new RuntimeException(path + " is not a result file");
+            if (header.getInt(4) != ResultWriter.VERSION) throw new RuntimeException(path + " has unsupported version " + header.getInt(4));
+            N_ = header.getInt(8);
+            B_ = header.getInt(12);
+            record_ = header.getLong(24);
+            if (N_ < 0 || B_ < 0 || record_ != ResultWriter.recordBytes(N_, B_)) throw new RuntimeException(path + " has an invalid header");
+
+            // a file whose writer was not closed holds the records that reached the disk
+            long count = header.getLong(16), stored = (ch_.size() - ResultWriter.HEADER) / record_;
+            if (count > stored) throw new RuntimeException(path + " is truncated");
+            count_ = (count < 0) ? stored : count;
+            perWindow_ = Math.max(1, WINDOW / record_);
+        } catch (IOException | RuntimeException e) {
+            try {
+                ch_.close();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            if (e instanceof RuntimeException) throw (RuntimeException) e;
+            throw new RuntimeException("Cannot read " + path, e);
+        }
+    }
+
+    // the bytes of record k, positioned at its start
+    private ByteBuffer record(long k) {
+        if (k < 0 || k >= count_) throw new IndexOutOfBoundsException("record " + k + " is not between 0 and " + count_);
+        if (record_ > Integer.MAX_VALUE) throw new RuntimeException("Records of " + path_ + " are larger than 2 GB");
+        if (first_ < 0 || k < first_ || k >= first_ + perWindow_) {
+            first_ = k - k % perWindow_;
+            long records = Math.min(perWindow_, count_ - first_);
+            try {
+                window_ = ch_.map(FileChannel.MapMode.READ_ONLY, ResultWriter.HEADER + first_ * record_, records * record_);
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot map " + path_, e);
+            }
+            window_.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        ByteBuffer b = window_.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        b.position((int) ((k - first_) * record_));
+        return b;
+    }
+
+    // view of the column of n doubles starting offset bytes into record k
+    private DoubleBuffer column(long k, long offset, int n) {
+        ByteBuffer b = record(k);
+        b.position(b.position() + (int) offset);
+        DoubleBuffer d = b.asDoubleBuffer();
+        d.limit(n);
+        return d.asReadOnlyBuffer();
+    }
+
+    // G E T T E R S
+
+    public int N()           {  return N_;      }
+    public int B()           {  return B_;      }
+    public long count()      {  return count_;  }
+
+    public long id(long k)          {  return record(k).getLong();  }
+    public double sigmaFL(long k)   {  ByteBuffer b = record(k);  return b.getDouble(b.position() + 8);  }
+
+    // columns of record k, as views of the mapped file
+    public DoubleBuffer x(long k)   {  return column(k, 16, N_);                     }
+    public DoubleBuffer y(long k)   {  return column(k, 16 + 8L * N_, N_);           }
+    public DoubleBuffer z(long k)   {  return column(k, 16 + 16L * N_, N_);          }
+    public DoubleBuffer branchForces(long k)   {  return column(k, 16 + 24L * N_, B_);             }
+    public DoubleBuffer branchLengths(long k)  {  return column(k, 16 + 24L * N_ + 8L * B_, B_);  }
+
+    // @return a copy of record k, whose id is truncated to an int
+    public FormFindingResult getResult(long k) {
+        double[] x = new double[N_], y = new double[N_], z = new double[N_];
+        double[] F = new double[B_], L = new double[B_];
+        x(k).get(x);
+        y(k).get(y);
+        z(k).get(z);
+        branchForces(k).get(F);
+        branchLengths(k).get(L);
+        return new FormFindingResult((int) id(k), x, y, z, F, L, sigmaFL(k));
+    }
+
+    // closes the file, the mapping is released once no view refers to it
+    public void close() {
+        try {
+            ch_.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot close " + path_, e);
+        }
+    }
+
+}
@@ -0,0 +1,205 @@
+/******************************************************************************
+ *  Compilation:  javac ResultWriter.java
+ *  Execution:    java ResultWriter [grid size] [cases] [file]
+ *  Dependencies: FormFindingResult.java  ResultReader.java  BatchFormFinder.java
+ *                LoadCase.java  toxi.geom.Vec3D
+ *
+ *  Streams form-finding results to a file as they are produced, so a batch
+ *  of any length is persisted without holding more than one result in
+ *  memory. Every result is one fixed-size record, laid out by column,
+ *
+ *      long id, double sigmaFL, double x[N] y[N] z[N] F[B] L[B]
+ *
+ *  coordinates in the original node order, after a 32 byte header
+ *
+ *      int magic "FDMR", version, N, B
+ *      long count, -1 until the writer is closed, and bytes per record
+ *
+ *  all little-endian. The columns are copied into one direct buffer and
+ *  written to the FileChannel in chunks of its size. Records follow each
+ *  other in the order they are written; ResultReader maps the file back.
+ *  A writer is the sink of BatchFormFinder.run, and is used by one thread.
+ *
+ *  @author Alexandros Haridis | Digital Structures, MIT
+ ******************************************************************************/
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.function.Consumer;
+
+import toxi.geom.Vec3D;
+
+public class ResultWriter implements Consumer<FormFindingResult>, Closeable {
+
+    static final int MAGIC = 0x524D4446;      // "FDMR" little-endian
+    static final int VERSION = 1;
+    static final int HEADER = 32;             // bytes of the header
+
+    private final FileChannel ch_;
+    private final ByteBuffer buf_;            // direct staging buffer, one chunk
+    private final int N_, B_;                 // nodes and branches of every result
+    private long count_;                      // records written
+
+    // writer of results with N nodes and B branches, replacing the file at path
+    public ResultWriter(String path, int N, int B) {
+        this(path, N, B, 1 << 20);
+    }
+
+    // writer staging chunks of the given number of bytes, at least 16 for the
+    // id and Sigma FL of a record, rounded to whole doubles and up to one node row
+    public ResultWriter(String path, int N, int B, int chunk) {
+        if (N < 0 || B < 0) throw new RuntimeException("Numbers of nodes and branches must be nonnegative");
+        if (chunk < 16) throw new RuntimeException("Chunks must hold at least 16 bytes");
+        N_ = N;
+        B_ = B;
+        buf_ = ByteBuffer.allocateDirect(Math.max(chunk & ~7, 24)).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            ch_ = FileChannel.open(Paths.get(path), StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot write " + path, e);
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(N).putInt(B).putLong(-1).putLong(recordBytes(N, B));
+        header.flip();
+        try {
+            while (header.hasRemaining()) ch_.write(header);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot write " + path, e);
+        }
+    }
+
+    // bytes of one record with N nodes and B branches
+    static long recordBytes(int N, int B) {  return 16 + 8L * (3L * N + 2L * B);  }
+
+    // appends the result r as the next record
+    public void write(FormFindingResult r) {
+        write(r.id(), r.x(), r.y(), r.z(), r.F(), r.L(), r.getSigmaFL());
+    }
+
+    // appends a result given by its columns, coordinates in the original node order
+    public void write(long id, double[] x, double[] y, double[] z, double[] F, double[] L, double sigmaFL) {
+        if (x.length != N_ || y.length != N_ || z.length != N_) throw new RuntimeException("Expected coordinates for each of the " + N_ + " nodes");
+        if (F.length != B_ || L.length != B_) throw new RuntimeException("Expected forces and lengths for each of the " + B_ + " branches");
+        try {
+            if (buf_.remaining() < 16) flush();
+            buf_.putLong(id).putDouble(sigmaFL);
+            put(x);
+            put(y);
+            put(z);
+            put(F);
+            put(L);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot write result " + id, e);
+        }
+        count_++;
+    }
+
+    // same as write(r), so the writer can be the sink of a batch
+    public void accept(FormFindingResult r) {  write(r);  }
+
+    // copies a column through the staging buffer, a chunk at a time
+    private void put(double[] a) throws IOException {
+        int off = 0;
+        while (off < a.length) {
+            if (buf_.remaining() < 8) flush();
+            int n = Math.min(a.length - off, buf_.remaining() / 8);
+            buf_.asDoubleBuffer().put(a, off, n);
+            buf_.position(buf_.position() + 8 * n);
+            off += n;
+        }
+    }
+
+    private void flush() throws IOException {
+        buf_.flip();
+        while (buf_.hasRemaining()) ch_.write(buf_);
+        buf_.clear();
+    }
+
+    // @return the number of results written
+    public long count() {  return count_;  }
+
+    // writes what is staged and the number of records, and closes the file
+    public void close() {
+        if (!ch_.isOpen()) return;
+        try {
+            flush();
+            ByteBuffer count = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            count.putLong(0, count_);
+            ch_.write(count, 16);
+            ch_.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot close result file", e);
+        }
+    }
+
+    /**
+     *  Test client and sample execution: a batch of random loads on a square
+     *  grid pinned at its four corners, streamed to a file and read back.
+     */
+    public static void main(String[] args) throws IOException {
+        final int m = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+        final int cases = (args.length > 1) ? Integer.parseInt(args[1]) : 100;
+        File file = (args.length > 2) ? new File(args[2]) : File.createTempFile("results", ".fdmr");
+        if (args.length <= 2) file.deleteOnExit();
+
+        int V = m * m;
+        BranchNodeGraph bng = new BranchNodeGraph(V, new int[] { 0, m - 1, m * (m - 1), V - 1 });
+        for (int y = 0; y < m; y++)
+            for (int x = 0; x < m - 1; x++) bng.addBranch(y * m + x, y * m + x + 1);
+        for (int x = 0; x < m; x++)
+            for (int y = 0; y < m - 1; y++) bng.addBranch(y * m + x, (y + 1) * m + x);
+        bng.build();
+
+        double[] xp = new double[V], yp = new double[V], zp = new double[V];
+        for (int j = 0; j < m; j++) {
+            for (int i = 0; i < m; i++) {
+                xp[j * m + i] = i * 100;
+                yp[j * m + i] = j * 100;
+            }
+        }
+
+        BatchFormFinder batch = new BatchFormFinder(bng, xp, yp, zp);
+        final Random rnd = new Random(0);
+        Iterator<LoadCase> stream = new Iterator<LoadCase>() {
+            int next = 0;
+            public boolean hasNext() {  return next < cases;  }
+            public LoadCase next() {
+                return new LoadCase(next++, new Vec3D(rnd.nextFloat() * 10 - 5, rnd.nextFloat() * 10 - 5, -rnd.nextFloat() * 80));
+            }
+        };
+
+        long t0 = System.nanoTime();
+        try (ResultWriter out = new ResultWriter(file.getPath(), bng.N(), bng.B())) {
+            batch.run(stream, out);
+        }
+        double seconds = (System.nanoTime() - t0) / 1e9;
+        batch.shutdown();
+
+        // the lowest Sigma FL, read from the mapped records without copying
+        long t1 = System.nanoTime();
+        try (ResultReader in = new ResultReader(file.getPath())) {
+            long best = 0;
+            for (long k = 1; k < in.count(); k++) {
+                if (in.sigmaFL(k) < in.sigmaFL(best)) best = k;
+            }
+            double zmin = 0;
+            for (int i = 0; i < in.N(); i++) zmin = Math.min(zmin, in.z(best).get(i));
+            double scan = (System.nanoTime() - t1) / 1e6;
+
+            System.out.println(cases + " cases on a " + m + "x" + m + " grid written in " + String.format("%.2f s", seconds)
+                    + ", " + String.format("%.1f MB", file.length() / 1e6));
+            System.out.println("lowest Sigma FL " + in.sigmaFL(best) + " for case " + in.id(best) + ", lowest node at z = " + zmin
+                    + String.format(", found in %.1f ms", scan));
+        }
+    }
+
+}
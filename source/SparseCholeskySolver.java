@@ -0,0 +1,516 @@
+/******************************************************************************
+ *  Compilation:  javac SparseCholeskySolver.java
+ *  Execution:    java SparseCholeskySolver [grid size] [updates]
+ *  Dependencies: LinearSolver.java  SparseMatrix.java  MinimumDegree.java
+ *                BranchNodeGraph.java  BranchIncidence.java
+ *                ForceDensityMethod.java  FormFindingMetrics.java
+ *
+ *  Sparse Cholesky factorization P A P^T = L L^T of a symmetric positive
+ *  definite matrix, with P a fill-reducing minimum degree ordering.
+ *  The work is split in a <em>symbolic</em> analysis, which depends on the
+ *  sparsity pattern only (ordering, elimination tree and the pattern of L),
+ *  and a <em>numeric</em> factorization computed row by row with the
+ *  up-looking algorithm. The symbolic analysis is kept for as long as the
+ *  solver is given matrices with the same pattern, so re-factoring Dn for
+ *  new force densities only repeats the numeric part, and a change of a few
+ *  densities is applied to L directly as rank-1 updates and downdates.
+ *  A symbolic analysis and a factor can also be taken from a
+ *  FactorizationCache; a factor shared with the cache is copied before
+ *  it is first modified.
+ *
+ *  The test client compares a factor brought up to date by a run of
+ *  updates and downdates with a fresh factorization, and checks that a
+ *  downdate which loses positive definiteness is refused and that the
+ *  Force Density Method refactors after it.
+ *
+ *  For more information on the algorithms implemented here, see:
+ *  Timothy A. Davis, 2006. <em>Direct Methods for Sparse Linear Systems</em>,
+ *  SIAM.
+ *
+ *  @author Alexandros Haridis | Digital Structures, MIT
+ ******************************************************************************/
+
+import java.util.Arrays;
+import java.util.Random;
+
+import toxi.geom.Vec3D;
+
+public class SparseCholeskySolver implements LinearSolver {
+
+    /**
+     *  Result of the symbolic analysis of a sparsity pattern. It holds no
+     *  values, so it can be shared by any factorization of the same pattern.
+     */
+    public static class Symbolic {
+        final int n;
+        final int[] perm;     // perm[k] = row of A eliminated k-th
+        final int[] pinv;     // inverse of perm
+        final int[] parent;   // elimination tree of P A P^T
+        final int[] Lp;       // column pointers of L
+        final int[] Cp, Ci;   // upper triangle of P A P^T, by columns
+        final int[] map;      // position in C of each entry of A, -1 if below the diagonal
+        final int[] Apat;     // pattern of A the analysis was computed for
+        final int[] Aind;
+
+        Symbolic(SparseMatrix A) {
+            n = A.rows();
+            Apat = A.rowPtr();
+            Aind = A.colInd();
+            perm = MinimumDegree.order(A);
+            pinv = new int[n];
+            for (int k = 0; k < n; k++) pinv[perm[k]] = k;
+
+            // C = upper triangle of P A P^T in compressed columns
+            int[] count = new int[n];
+            for (int r = 0; r < n; r++) {
+                for (int p = Apat[r]; p < Apat[r + 1]; p++) {
+                    int i = pinv[r], j = pinv[Aind[p]];
+                    if (i <= j) count[j]++;
+                }
+            }
+            Cp = new int[n + 1];
+            for (int j = 0; j < n; j++) Cp[j + 1] = Cp[j] + count[j];
+            Ci = new int[Cp[n]];
+            map = new int[Apat[n]];
+            int[] next = new int[n];
+            System.arraycopy(Cp, 0, next, 0, n);
+            for (int r = 0; r < n; r++) {
+                for (int p = Apat[r]; p < Apat[r + 1]; p++) {
+                    int i = pinv[r], j = pinv[Aind[p]];
+                    if (i <= j) {
+                        map[p] = next[j];
+                        Ci[next[j]++] = i;
+                    } else {
+                        map[p] = -1;
+                    }
+                }
+            }
+
+            // elimination tree
+            parent = new int[n];
+            int[] ancestor = new int[n];
+            for (int k = 0; k < n; k++) {
+                parent[k] = -1;
+                ancestor[k] = -1;
+                for (int p = Cp[k]; p < Cp[k + 1]; p++) {
+                    int i = Ci[p];
+                    while (i != -1 && i < k) {
+                        int inext = ancestor[i];
+                        ancestor[i] = k;
+                        if (inext == -1) parent[i] = k;
+                        i = inext;
+                    }
+                }
+            }
+
+            // column counts of L from the row patterns given by ereach
+            int[] colCount = new int[n];
+            int[] s = new int[n];
+            int[] w = new int[n];
+            for (int k = 0; k < n; k++) {
+                int top = ereach(Cp, Ci, k, parent, s, w);
+                for (int t = top; t < n; t++) colCount[s[t]]++;
+                colCount[k]++;
+            }
+            Lp = new int[n + 1];
+            for (int j = 0; j < n; j++) Lp[j + 1] = Lp[j] + colCount[j];
+        }
+
+        // true if A has the pattern this analysis was computed for
+        boolean matches(SparseMatrix A) {
+            if (A.rows() != n) return false;
+            if (A.rowPtr() == Apat && A.colInd() == Aind) return true;
+            return Arrays.equals(A.rowPtr(), Apat) && Arrays.equals(A.colInd(), Aind);
+        }
+
+        // number of nonzeros of L
+        public int nnzL() {  return Lp[n];  }
+    }
+
+    private Symbolic S_;               // symbolic analysis of the current pattern
+    private int[] Li_;                 // row indices of L, diagonal first in each column
+    private double[] Lx_;              // values of L
+    private double[] Cx_;              // values of the permuted upper triangle
+    private double[] x_;               // dense workspace
+    private double[] Y_;               // dense workspace for packed right-hand sides
+    private int[] s_, w_, c_;          // integer workspaces
+    private boolean shared_;           // Li_ and Lx_ are shared with a FactorizationCache
+    private int[] Aptr_, Aind_;        // pattern last found to match S_, compared by reference
+
+    // G E T T E R S
+
+    public Symbolic symbolic() {  return S_;  }
+
+    // number of nonzeros of the factor, zero before the first factor() call
+    public int nnzL() {  return (S_ == null) ? 0 : S_.nnzL();  }
+
+    // F A C T O R I Z A T I O N
+
+    public void factor(SparseMatrix A) {
+        if (A.rows() != A.cols()) throw new RuntimeException("Matrix must be square");
+        if (!matches(A)) analyze(A);
+        if (shared_) unshare(false);
+
+        Symbolic S = S_;
+        int n = S.n;
+        int[] Lp = S.Lp, Cp = S.Cp, Ci = S.Ci, parent = S.parent;
+        int[] Li = Li_, s = s_, w = w_, c = c_;
+        double[] Lx = Lx_, Cx = Cx_, x = x_;
+
+        // scatter the values of A into the permuted upper triangle
+        double[] Ax = A.values();
+        int[] map = S.map;
+        for (int p = 0; p < map.length; p++) {
+            if (map[p] >= 0) Cx[map[p]] = Ax[p];
+        }
+
+        // up-looking Cholesky, row k of L at step k
+        for (int k = 0; k < n; k++) {
+            c[k] = Lp[k];
+            x[k] = 0;
+        }
+        for (int k = 0; k < n; k++) {
+            int top = ereach(Cp, Ci, k, parent, s, w);
+            x[k] = 0;
+            for (int p = Cp[k]; p < Cp[k + 1]; p++) {
+                x[Ci[p]] += Cx[p];
+            }
+            double d = x[k];
+            x[k] = 0;
+            for (; top < n; top++) {
+                int i = s[top];
+                double lki = x[i] / Lx[Lp[i]];
+                x[i] = 0;
+                for (int p = Lp[i] + 1; p < c[i]; p++) {
+                    x[Li[p]] -= Lx[p] * lki;
+                }
+                d -= lki * lki;
+                int p = c[i]++;
+                Li[p] = k;
+                Lx[p] = lki;
+            }
+            if (d <= 0) throw new RuntimeException("Matrix is not positive definite");
+            int p = c[k]++;
+            Li[p] = k;
+            Lx[p] = Math.sqrt(d);
+        }
+    }
+
+    // U P D A T E
+
+    /**
+     *  updates L to the factor of A + sigma * w w^T along the path of the
+     *  elimination tree that starts at the first nonzero of P w. The pattern
+     *  of w must lie within the pattern of A, which holds for the incidence
+     *  vector of any branch of Dn.
+     */
+    public boolean update(SparseMatrix A, double sigma, int[] wi, double[] wx, int nz) {
+        if (!matches(A)) return false;
+        if (nz == 0 || sigma == 0) return true;
+        if (shared_) unshare(true);
+
+        int[] pinv = S_.pinv, parent = S_.parent, Lp = S_.Lp, Li = Li_;
+        double[] Lx = Lx_, w = x_;
+        boolean up = sigma > 0;
+        double scale = Math.sqrt(Math.abs(sigma));
+
+        int f = S_.n;
+        for (int t = 0; t < nz; t++) {
+            int j = pinv[wi[t]];
+            f = Math.min(f, j);
+            w[j] += scale * wx[t];
+        }
+
+        double beta = 1;
+        int j = f;
+        for (; j != -1; j = parent[j]) {
+            int p = Lp[j];
+            double alpha = w[j] / Lx[p];
+            double beta2 = beta * beta + (up ? alpha * alpha : -alpha * alpha);
+            if (beta2 <= 0) break;
+            beta2 = Math.sqrt(beta2);
+            double delta = up ? beta / beta2 : beta2 / beta;
+            double gamma = (up ? alpha : -alpha) / (beta2 * beta);
+            Lx[p] = delta * Lx[p] + (up ? gamma * w[j] : 0);
+            beta = beta2;
+            for (p++; p < Lp[j + 1]; p++) {
+                double w1 = w[Li[p]];
+                double w2 = w1 - alpha * Lx[p];
+                w[Li[p]] = w2;
+                Lx[p] = delta * Lx[p] + gamma * (up ? w1 : w2);
+            }
+            w[j] = 0;
+        }
+
+        // a downdate that loses positive definiteness leaves L unusable
+        if (j == -1) return true;
+        for (; j != -1; j = parent[j]) w[j] = 0;
+        return false;
+    }
+
+    // true if S_ was computed for the pattern of A, which may be a copy of the one it keeps
+    private boolean matches(SparseMatrix A) {
+        if (S_ == null) return false;
+        if (A.rowPtr() == Aptr_ && A.colInd() == Aind_) return true;
+        if (!S_.matches(A)) return false;
+        Aptr_ = A.rowPtr();
+        Aind_ = A.colInd();
+        return true;
+    }
+    
+    // symbolic analysis of the pattern of A and allocation of the factor
+    private void analyze(SparseMatrix A) {
+        use(new Symbolic(A));
+    }
+    
+    // takes over a symbolic analysis and allocates the factor and workspaces for it
+    void use(Symbolic S) {
+        if (S == S_) return;
+        S_ = S;
+        Aptr_ = S.Apat;
+        Aind_ = S.Aind;
+        int n = S.n;
+        Li_ = new int[S.nnzL()];
+        Lx_ = new double[S.nnzL()];
+        Cx_ = new double[S.Cp[n]];
+        x_ = new double[n];
+        s_ = new int[n];
+        w_ = new int[n];
+        c_ = new int[n];
+        shared_ = false;
+    }
+    
+    // takes over a numeric factor of S, copied into the factor of the solver
+    // if it has one of its own for S, otherwise read only until first modified
+    void use(Symbolic S, int[] Li, double[] Lx) {
+        if (S == S_ && !shared_) {
+            System.arraycopy(Li, 0, Li_, 0, Li.length);
+            System.arraycopy(Lx, 0, Lx_, 0, Lx.length);
+            return;
+        }
+        use(S);
+        Li_ = Li;
+        Lx_ = Lx;
+        shared_ = true;
+    }
+    
+    // copies of the current factor, for a cache, so the solver keeps its own arrays
+    int[] factorRows()      {  return Li_.clone();  }
+    double[] factorValues() {  return Lx_.clone();  }
+    
+    // copy on write of a factor shared with a cache, fresh arrays if it is overwritten anyway
+    private void unshare(boolean copy) {
+        Li_ = copy ? Li_.clone() : new int[Li_.length];
+        Lx_ = copy ? Lx_.clone() : new double[Lx_.length];
+        shared_ = false;
+    }
+
+    // nonzero pattern of row k of L, returned in s[top..n-1], w must be clear on entry
+    private static int ereach(int[] Cp, int[] Ci, int k, int[] parent, int[] s, int[] w) {
+        int n = parent.length;
+        int top = n;
+        w[k] = 1;
+        for (int p = Cp[k]; p < Cp[k + 1]; p++) {
+            int i = Ci[p];
+            if (i > k) continue;
+            int len = 0;
+            while (w[i] == 0) {
+                s[len++] = i;
+                w[i] = 1;
+                i = parent[i];
+            }
+            while (len > 0) s[--top] = s[--len];
+        }
+        for (int p = top; p < n; p++) w[s[p]] = 0;
+        w[k] = 0;
+        return top;
+    }
+
+    // S O L V E
+
+    public void solve(double[] b, double[] x) {
+        if (S_ == null) throw new RuntimeException("Matrix has not been factored");
+        int n = S_.n;
+        int[] perm = S_.perm, Lp = S_.Lp, Li = Li_;
+        double[] Lx = Lx_, y = x_;
+
+        for (int k = 0; k < n; k++) y[k] = b[perm[k]];
+
+        // L y = P b
+        for (int j = 0; j < n; j++) {
+            y[j] /= Lx[Lp[j]];
+            double yj = y[j];
+            for (int p = Lp[j] + 1; p < Lp[j + 1]; p++) {
+                y[Li[p]] -= Lx[p] * yj;
+            }
+        }
+
+        // L^T P x = y
+        for (int j = n - 1; j >= 0; j--) {
+            double yj = y[j];
+            for (int p = Lp[j] + 1; p < Lp[j + 1]; p++) {
+                yj -= Lx[p] * y[Li[p]];
+            }
+            y[j] = yj / Lx[Lp[j]];
+        }
+
+        for (int k = 0; k < n; k++) {
+            x[perm[k]] = y[k];
+            y[k] = 0;
+        }
+    }
+
+    public void solve(double[] B, double[] X, int k) {
+        if (k == 1) {
+            solve(B, X);
+            return;
+        }
+        if (S_ == null) throw new RuntimeException("Matrix has not been factored");
+        int n = S_.n;
+        int[] perm = S_.perm, Lp = S_.Lp, Li = Li_;
+        double[] Lx = Lx_;
+        if (Y_ == null || Y_.length < n * k) Y_ = new double[n * k];
+        double[] Y = Y_;
+
+        for (int j = 0; j < n; j++) {
+            System.arraycopy(B, perm[j] * k, Y, j * k, k);
+        }
+
+        // L Y = P B, all columns in one sweep over L
+        for (int j = 0; j < n; j++) {
+            int jo = j * k;
+            double d = Lx[Lp[j]];
+            for (int c = 0; c < k; c++) Y[jo + c] /= d;
+            for (int p = Lp[j] + 1; p < Lp[j + 1]; p++) {
+                double l = Lx[p];
+                int io = Li[p] * k;
+                for (int c = 0; c < k; c++) Y[io + c] -= l * Y[jo + c];
+            }
+        }
+
+        // L^T P X = Y
+        for (int j = n - 1; j >= 0; j--) {
+            int jo = j * k;
+            for (int p = Lp[j] + 1; p < Lp[j + 1]; p++) {
+                double l = Lx[p];
+                int io = Li[p] * k;
+                for (int c = 0; c < k; c++) Y[jo + c] -= l * Y[io + c];
+            }
+            double d = Lx[Lp[j]];
+            for (int c = 0; c < k; c++) Y[jo + c] /= d;
+        }
+
+        for (int j = 0; j < n; j++) {
+            System.arraycopy(Y, j * k, X, perm[j] * k, k);
+        }
+    }
+
+    /**
+     *  Test client and sample execution: random changes of the force
+     *  densities of a grid pinned along its boundary, applied to Dn and to
+     *  its factor as rank-1 updates and downdates, then a downdate that
+     *  makes Dn indefinite, on the solver and through the Force Density
+     *  Method.
+     *  @throws RuntimeException if the updated factor differs from a fresh
+     *          one, the indefinite downdate is accepted, or the form after
+     *          the fallback differs from one evaluated anew
+     */
+    public static void main(String[] args) {
+        int m = (args.length > 0) ? Integer.parseInt(args[0]) : 12;
+        int T = (args.length > 1) ? Integer.parseInt(args[1]) : 500;
+
+        int V = m * m;
+        int[] fixed = new int[4 * (m - 1)];
+        for (int i = 0, f = 0; i < V; i++) {
+            int x = i % m, y = i / m;
+            if (x == 0 || y == 0 || x == m - 1 || y == m - 1) fixed[f++] = i;
+        }
+        BranchNodeGraph bng = new BranchNodeGraph(V, fixed);
+        for (int y = 0; y < m; y++)
+            for (int x = 0; x < m - 1; x++) bng.addBranch(y * m + x, y * m + x + 1);
+        for (int x = 0; x < m; x++)
+            for (int y = 0; y < m - 1; y++) bng.addBranch(y * m + x, (y + 1) * m + x);
+        bng.build();
+        BranchIncidence inc = bng.incidence();
+
+        Random rnd = new Random(0);
+        double[] q = new double[bng.B()];
+        for (int b = 0; b < q.length; b++) q[b] = 0.5 + rnd.nextDouble();
+        SparseMatrix Dn = inc.assembleDn(q), Df = inc.assembleDf(q);
+        SparseCholeskySolver solver = new SparseCholeskySolver();
+        solver.factor(Dn);
+
+        // T random densities, each a rank-1 update or downdate of Dn and L
+        int[] wi = new int[2];
+        double[] wx = new double[2];
+        int downdates = 0;
+        for (int t = 0; t < T; t++) {
+            int b = rnd.nextInt(q.length);
+            double dq = 0.1 + 2 * rnd.nextDouble() - q[b];
+            q[b] += dq;
+            inc.addDensity(b, dq, Dn.values(), Df.values());
+            if (dq < 0) downdates++;
+            if (!solver.update(Dn, dq, wi, wx, inc.unknownRow(b, wi, wx))) throw new RuntimeException("Update " + t + " was refused");
+        }
+
+        // the same pattern gets the same ordering, so L compares entry by entry
+        SparseCholeskySolver fresh = new SparseCholeskySolver();
+        fresh.factor(Dn);
+        double[] Lx = solver.factorValues(), Fx = fresh.factorValues();
+        double err = 0, scale = 0;
+        for (int p = 0; p < Fx.length; p++) {
+            err = Math.max(err, Math.abs(Lx[p] - Fx[p]));
+            scale = Math.max(scale, Math.abs(Fx[p]));
+        }
+        System.out.println(String.format("%d updates, %d of them downdates: relative difference from a fresh factor %.2e", T, downdates, err / scale));
+        if (err > 1e-10 * scale) throw new RuntimeException("Updated factor differs from a fresh one by " + err);
+
+        // a downdate of one diagonal below zero leaves Dn indefinite
+        int i = Dn.rows() / 2, ii = Dn.find(i, i);
+        double sigma = -2 * Dn.values()[ii];
+        Dn.values()[ii] += sigma;
+        wi[0] = i;
+        wx[0] = 1;
+        if (solver.update(Dn, sigma, wi, wx, 1)) throw new RuntimeException("Indefinite downdate was accepted");
+        System.out.println("indefinite downdate refused");
+
+        // in the Force Density Method the same takes a refactorization: the
+        // density of 0-1 is lowered first, which leaves node 1 without
+        // stiffness until the density of 0-2 is raised
+        BranchNodeGraph tri = new BranchNodeGraph(3, new int[] { 0 });
+        tri.addBranch(0, 1);
+        tri.addBranch(1, 2);
+        tri.addBranch(0, 2);
+        double[] xp = { 0, 100, 0 }, yp = { 0, 0, 100 }, zp = new double[3];
+        ForceDensityMethod fdm = new ForceDensityMethod(tri);
+        fdm.setBoundaryConditions(xp, yp, zp);
+        fdm.setLoad(new Vec3D(0, 0, -10));
+        fdm.setForceDensities(new double[] { 1, 1, 0 });
+        fdm.evalFD();
+
+        FormFindingMetrics metrics = FormFindingMetrics.get();
+        metrics.setEnabled(true);
+        long factorizations = metrics.getFactorizations(), updates = metrics.getRankUpdates();
+        double[] q1 = { -0.5, 1, 5 };
+        fdm.setForceDensities(q1);
+        fdm.evalFD();
+        factorizations = metrics.getFactorizations() - factorizations;
+        updates = metrics.getRankUpdates() - updates;
+        metrics.setEnabled(false);
+
+        ForceDensityMethod ref = new ForceDensityMethod(tri);
+        ref.setBoundaryConditions(xp, yp, zp);
+        ref.setLoad(new Vec3D(0, 0, -10));
+        ref.setForceDensities(q1);
+        ref.evalFD();
+        double[] x = new double[3], y = new double[3], z = new double[3], rx = new double[3], ry = new double[3], rz = new double[3];
+        fdm.getPositions(x, y, z);
+        ref.getPositions(rx, ry, rz);
+        double diff = 0;
+        for (int k = 0; k < 3; k++) diff = Math.max(diff, Math.abs(x[k] - rx[k]) + Math.abs(y[k] - ry[k]) + Math.abs(z[k] - rz[k]));
+        System.out.println(String.format("fallback: %d factorizations, %d rank-1 updates, difference from a new evaluation %.2e", factorizations, updates, diff));
+        if (factorizations != 1 || updates != 0) throw new RuntimeException("Indefinite update did not fall back to a factorization");
+        if (diff > 1e-9 * Math.abs(rz[1])) throw new RuntimeException("Form after the fallback differs from a new evaluation by " + diff);
+    }
+
+}
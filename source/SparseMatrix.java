@@ -0,0 +1,111 @@
+/******************************************************************************
+ *  Compilation:  javac SparseMatrix.java
+ *  Execution:    java SparseMatrix
+ *  Dependencies: Jama.Matrix
+ *
+ *  A compressed sparse row (CSR) matrix. Column indices are sorted and
+ *  unique within each row, so that an entry can be located with a binary
+ *  search and a symmetric matrix can be read column-wise as well.
+ *  The sparsity pattern is fixed at construction; only the values may be
+ *  rewritten, which lets a matrix such as <b>Dn</b> be re-assembled for a
+ *  new set of force densities without allocating.
+ *
+ *  @author Alexandros Haridis | Digital Structures, MIT
+ ******************************************************************************/
+
+public class SparseMatrix {
+
+    private final int rows_;           // number of rows
+    private final int cols_;           // number of columns
+    private final int[] rowPtr_;       // row i occupies [rowPtr_[i], rowPtr_[i+1])
+    private final int[] colInd_;       // column index of each stored entry
+    private final double[] val_;       // value of each stored entry
+
+    // sparse matrix over the given pattern, values are used by reference
+    public SparseMatrix(int rows, int cols, int[] rowPtr, int[] colInd, double[] val) {
+        if (rows < 0 || cols < 0) throw new RuntimeException("Matrix dimensions must be nonnegative");
+        if (rowPtr.length != rows + 1) throw new RuntimeException("Row pointer must have rows + 1 entries");
+        if (val.length < rowPtr[rows]) throw new RuntimeException("Value array is shorter than the pattern");
+        rows_ = rows;
+        cols_ = cols;
+        rowPtr_ = rowPtr;
+        colInd_ = colInd;
+        val_ = val;
+    }
+
+    // zero matrix over the given pattern
+    public SparseMatrix(int rows, int cols, int[] rowPtr, int[] colInd) {
+        this(rows, cols, rowPtr, colInd, new double[rowPtr[rows]]);
+    }
+
+    // G E T T E R S
+
+    public int rows()         {  return rows_;          }
+    public int cols()         {  return cols_;          }
+    public int nnz()          {  return rowPtr_[rows_]; }
+
+    // internal arrays, shared with the caller
+    public int[] rowPtr()     {  return rowPtr_;        }
+    public int[] colInd()     {  return colInd_;        }
+    public double[] values()  {  return val_;           }
+
+    // @return the position of entry (i, j) in the value array, or -1 if not stored
+    public int find(int i, int j) {
+        return find(rowPtr_, colInd_, i, j);
+    }
+
+    // @return the position of entry (i, j) within a sorted CSR pattern, or -1 if not stored
+    public static int find(int[] rowPtr, int[] colInd, int i, int j) {
+        int lo = rowPtr[i], hi = rowPtr[i + 1] - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = colInd[mid];
+            if (c < j) lo = mid + 1;
+            else if (c > j) hi = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    // @return entry (i, j), zero if not stored
+    public double get(int i, int j) {
+        int p = find(i, j);
+        return (p < 0) ? 0.0 : val_[p];
+    }
+
+    // y = A * x
+    public void times(double[] x, double[] y) {
+        for (int i = 0; i < rows_; i++) {
+            double sum = 0;
+            for (int p = rowPtr_[i]; p < rowPtr_[i + 1]; p++) {
+                sum += val_[p] * x[colInd_[p]];
+            }
+            y[i] = sum;
+        }
+    }
+
+    // Y = A * X for k columns packed row-major, i.e. X[r*k + c]
+    public void times(double[] X, double[] Y, int k) {
+        for (int i = 0; i < rows_; i++) {
+            int yo = i * k;
+            for (int c = 0; c < k; c++) Y[yo + c] = 0;
+            for (int p = rowPtr_[i]; p < rowPtr_[i + 1]; p++) {
+                double a = val_[p];
+                int xo = colInd_[p] * k;
+                for (int c = 0; c < k; c++) Y[yo + c] += a * X[xo + c];
+            }
+        }
+    }
+
+    // @return a dense copy, only meant for small matrices and printing
+    public Jama.Matrix toJama() {
+        Jama.Matrix m = new Jama.Matrix(rows_, cols_);
+        for (int i = 0; i < rows_; i++) {
+            for (int p = rowPtr_[i]; p < rowPtr_[i + 1]; p++) {
+                m.set(i, colInd_[p], val_[p]);
+            }
+        }
+        return m;
+    }
+
+}